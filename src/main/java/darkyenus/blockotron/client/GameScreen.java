@@ -96,6 +96,8 @@ public class GameScreen extends Screen {
             final StringBuilder sb = new StringBuilder();
             sb.append("FPS: ").append(Gdx.graphics.getFramesPerSecond()).append('\n');
             sb.append("Chunks: ").append(renderer.debug_chunksRendered).append('/').append(renderer.debug_chunksConsidered).append('\n');
+            final ChunkLoadingSystem chunkLoading = world.entityEngine().getSystem(ChunkLoadingSystem.class);
+            sb.append("Prefetch: ").append(chunkLoading.getPrefetchHits()).append(" hit, ").append(chunkLoading.getPrefetchMisses()).append(" miss, ").append(chunkLoading.getPrefetchWasted()).append(" wasted\n");
             final Runtime runtime = Runtime.getRuntime();
             sb.append("Memory: ").append((runtime.totalMemory() - runtime.freeMemory()) >> 10).append(" / ").append(runtime.totalMemory() >> 10).append(" kB\n");
             sb.append("Entities: ").append(world.entityEngine().getEntities().size()).append('\n');
@@ -0,0 +1,68 @@
+package darkyenus.blockotron.render;
+
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.shaders.DefaultShader;
+
+/**
+ * Shader of meshes built by {@link RectangleMeshBuilder}.
+ *
+ * All block faces are in a single texture atlas, so the texture can't be repeated over a merged face by the texture wrap mode.
+ * Instead, each vertex carries the atlas region of its face and texture coordinates say how many times is the region repeated,
+ * the fragment shader then wraps the coordinates into the region itself.
+ *
+ * Uses the uniforms of {@link DefaultShader}, without lighting, which block meshes don't use anyway (they have no normals).
+ */
+public class BlockShader extends DefaultShader {
+
+    private static final String VERTEX_SHADER = "" +
+            "attribute vec3 a_position;\n" +
+            "attribute vec2 a_texCoord0;\n" +
+            "attribute vec4 a_color;\n" +
+            "attribute vec4 " + RectangleMeshBuilder.REGION_ATTRIBUTE + ";\n" +
+            "uniform mat4 u_projViewTrans;\n" +
+            "uniform mat4 u_worldTrans;\n" +
+            "varying vec2 v_repeat;\n" +
+            "varying vec4 v_region;\n" +
+            "varying vec4 v_color;\n" +
+            "void main() {\n" +
+            "    v_repeat = a_texCoord0;\n" +
+            "    v_region = " + RectangleMeshBuilder.REGION_ATTRIBUTE + ";\n" +
+            "    v_color = a_color;\n" +
+            "    gl_Position = u_projViewTrans * (u_worldTrans * vec4(a_position, 1.0));\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER = "" +
+            "#ifdef GL_ES\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "uniform sampler2D u_diffuseTexture;\n" +
+            "#ifdef blendedFlag\n" +
+            "uniform float u_opacity;\n" +
+            "#endif\n" +
+            "varying vec2 v_repeat;\n" +
+            "varying vec4 v_region;\n" +
+            "varying vec4 v_color;\n" +
+            "void main() {\n" +
+            "    vec4 diffuse = texture2D(u_diffuseTexture, v_region.xy + fract(v_repeat) * v_region.zw) * v_color;\n" +
+            "    gl_FragColor.rgb = diffuse.rgb;\n" +
+            "#ifdef blendedFlag\n" +
+            "    gl_FragColor.a = diffuse.a * u_opacity;\n" +
+            "#else\n" +
+            "    gl_FragColor.a = 1.0;\n" +
+            "#endif\n" +
+            "}\n";
+
+    public BlockShader(Renderable renderable, Config config) {
+        super(renderable, config, createPrefix(renderable, config), VERTEX_SHADER, FRAGMENT_SHADER);
+    }
+
+    /** @return true if the renderable has a mesh of {@link RectangleMeshBatch} and should be rendered by this shader */
+    public static boolean isBlockRenderable(Renderable renderable) {
+        final VertexAttributes attributes = renderable.meshPart.mesh.getVertexAttributes();
+        for (int i = 0; i < attributes.size(); i++) {
+            if (RectangleMeshBuilder.REGION_ATTRIBUTE.equals(attributes.get(i).alias)) return true;
+        }
+        return false;
+    }
+}
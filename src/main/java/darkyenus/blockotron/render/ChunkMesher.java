@@ -0,0 +1,79 @@
+package darkyenus.blockotron.render;
+
+import darkyenus.blockotron.world.Block;
+import darkyenus.blockotron.world.BlockStorage;
+import darkyenus.blockotron.world.ChunkSnapshot;
+import darkyenus.blockotron.world.blocks.Air;
+import darkyenus.blockotron.world.blocks.SimpleBlock;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Builds vertices of the mesh of a chunk from its {@link ChunkSnapshot}.
+ *
+ * Reads only the snapshot and does not touch OpenGL, so it can run on any thread.
+ * Faces of {@link SimpleBlock}s are merged by {@link GreedyMesher}, other blocks draw themselves through {@link Block#render}.
+ * Not thread safe, each thread needs its own instance.
+ */
+public final class ChunkMesher {
+
+    private final GreedyMesher greedyMesher = new GreedyMesher();
+
+    /** Clear the builder and build the mesh of the snapshot into it.
+     * Coordinates of the mesh are relative to the chunk origin. */
+    public void build(ChunkSnapshot chunk, RectangleMeshBuilder builder) {
+        builder.begin();
+        if (chunk.isEmpty()) return;
+
+        final int worldX = chunk.x << CHUNK_SIZE_SHIFT;
+        final int worldY = chunk.y << CHUNK_SIZE_SHIFT;
+        final int worldZ = chunk.z << CHUNK_SIZE_SHIFT;
+
+        builder.beginTransparent(0, 0, 0);
+        builder.pauseTransparent();
+
+        for (int i = 0; i < BlockStorage.SIZE; i++) {
+            final Block block = chunk.getLocalBlock(i);
+            if (block == Air.AIR) continue;
+
+            final byte occlusion = chunk.getOcclusion(i);
+            if (block instanceof SimpleBlock) {
+                greedyMesher.addBlock(chunk, i, (SimpleBlock) block, occlusion);
+                continue;
+            }
+
+            final int cX = inChunkKeyToX(i);
+            final int cY = inChunkKeyToY(i);
+            final int cZ = inChunkKeyToZ(i);
+
+            final byte eastLight = chunk.getLight(cX+1, cY, cZ);
+            final byte westLight = chunk.getLight(cX-1, cY, cZ);
+            final byte northLight = chunk.getLight(cX, cY+1, cZ);
+            final byte southLight = chunk.getLight(cX, cY-1, cZ);
+            final byte topLight = chunk.getLight(cX, cY, cZ+1);
+            final byte bottomLight = chunk.getLight(cX, cY, cZ-1);
+            final byte selfLight = chunk.getLight(cX, cY, cZ);
+
+            final int skyLight = (eastLight & 0xF) | ((westLight & 0xF) << 4)
+                    | ((northLight & 0xF) << 8) | ((southLight & 0xF) << 12)
+                    | ((topLight & 0xF) << 16) | ((bottomLight & 0xF) << 20)
+                    | ((selfLight & 0xF) << 24);
+            final int blockLight = ((eastLight & 0xF0) >> 4) | ((westLight & 0xF0))
+                    | ((northLight & 0xF0) << 4) | ((southLight & 0xF0) << 8)
+                    | ((topLight & 0xF0) << 12) | ((bottomLight & 0xF0) << 16)
+                    | ((selfLight & 0xF0) << 20);
+
+            if(block.isTransparent()) {
+                builder.resumeTransparent();
+                block.render(chunk, worldX + cX, worldY + cY, worldZ + cZ, cX, cY, cZ, occlusion, skyLight, blockLight, builder);
+                builder.pauseTransparent();
+            } else {
+                block.render(chunk, worldX + cX, worldY + cY, worldZ + cZ, cX, cY, cZ, occlusion, skyLight, blockLight, builder);
+            }
+        }
+        greedyMesher.build(builder);
+
+        builder.resumeTransparent();
+        builder.endTransparent();
+    }
+}
@@ -0,0 +1,130 @@
+package darkyenus.blockotron.render;
+
+import darkyenus.blockotron.world.ChunkSnapshot;
+import darkyenus.blockotron.world.Side;
+import darkyenus.blockotron.world.blocks.SimpleBlock;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Draws faces of {@link SimpleBlock}s of a chunk, merging coplanar neighboring faces with the same texture and light
+ * into larger rectangles, through {@link RectangleMeshBuilder#createMergedFace(int, int, int, float[], BlockFaceTexture, int, int, int, float)}.
+ *
+ * Faces are collected through {@link #addBlock(ChunkSnapshot, int, SimpleBlock, byte)} and then merged and drawn by {@link #build(RectangleMeshBuilder)}.
+ * Each layer of each side is merged greedily, faces are extended first along one axis and then along the other, as far as possible.
+ * Not thread safe, but can be reused for any amount of chunks.
+ */
+final class GreedyMesher {
+
+    private static final Side[] SIDES = Side.values();
+    private static final int CHUNK_BLOCKS = CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE;
+    private static final float[][] FACE_OFFSETS = {
+            RectangleMeshBuilder.EAST_FACE_OFFSETS,
+            RectangleMeshBuilder.WEST_FACE_OFFSETS,
+            RectangleMeshBuilder.NORTH_FACE_OFFSETS,
+            RectangleMeshBuilder.SOUTH_FACE_OFFSETS,
+            RectangleMeshBuilder.TOP_FACE_OFFSETS,
+            RectangleMeshBuilder.BOTTOM_FACE_OFFSETS
+    };
+
+    /** Visible faces, by side ordinal and in chunk key. Null where there is no face. */
+    private final BlockFaceTexture[] textures = new BlockFaceTexture[SIDES.length * CHUNK_BLOCKS];
+    /** Light in front of each face in {@link #textures} */
+    private final byte[] lights = new byte[SIDES.length * CHUNK_BLOCKS];
+    /** Whether the face in {@link #textures} belongs to a transparent block */
+    private final boolean[] transparent = new boolean[SIDES.length * CHUNK_BLOCKS];
+    private boolean empty = true;
+
+    /** Remember visible faces of the block at given in chunk key. */
+    void addBlock(ChunkSnapshot chunk, int inChunkKey, SimpleBlock block, byte occlusion) {
+        if ((occlusion & 0b111111) == 0) return;
+        final int x = inChunkKeyToX(inChunkKey);
+        final int y = inChunkKeyToY(inChunkKey);
+        final int z = inChunkKeyToZ(inChunkKey);
+        final boolean transparent = block.isTransparent();
+
+        for (Side side : SIDES) {
+            if ((occlusion & side.flag) == 0) continue;
+            final int index = side.ordinal() * CHUNK_BLOCKS + inChunkKey;
+            textures[index] = block.getTexture(side);
+            lights[index] = chunk.getLight(x + side.offX, y + side.offY, z + side.offZ);
+            this.transparent[index] = transparent;
+        }
+        empty = false;
+    }
+
+    /** Draw all added faces and forget them. Transparent faces are drawn as transparent, so this should be called
+     * inside {@link RectangleMeshBuilder#beginTransparent(int, int, int)}, while paused. */
+    void build(RectangleMeshBuilder batch) {
+        if (empty) return;
+        for (Side side : SIDES) {
+            // Face lies in the plane of axes a and b, n is the normal axis
+            final int nShift, aShift, bShift;
+            if (side.offX != 0) {
+                nShift = 0;
+                aShift = CHUNK_SIZE_SHIFT;
+                bShift = CHUNK_SIZE_SHIFT * 2;
+            } else if (side.offY != 0) {
+                nShift = CHUNK_SIZE_SHIFT;
+                aShift = 0;
+                bShift = CHUNK_SIZE_SHIFT * 2;
+            } else {
+                nShift = CHUNK_SIZE_SHIFT * 2;
+                aShift = 0;
+                bShift = CHUNK_SIZE_SHIFT;
+            }
+            final int sideBase = side.ordinal() * CHUNK_BLOCKS;
+            final float[] faceOffsets = FACE_OFFSETS[side.ordinal()];
+
+            for (int n = 0; n < CHUNK_SIZE; n++) {
+                final int layerBase = sideBase + (n << nShift);
+                for (int b = 0; b < CHUNK_SIZE; b++) {
+                    for (int a = 0; a < CHUNK_SIZE; a++) {
+                        final int index = layerBase + (a << aShift) + (b << bShift);
+                        final BlockFaceTexture texture = textures[index];
+                        if (texture == null) continue;
+
+                        // Extend along a, then along b, while all faces are the same
+                        int width = 1;
+                        while (a + width < CHUNK_SIZE && isSame(index, index + (width << aShift))) {
+                            width++;
+                        }
+                        int height = 1;
+                        extend:
+                        while (b + height < CHUNK_SIZE) {
+                            final int rowIndex = index + (height << bShift);
+                            for (int i = 0; i < width; i++) {
+                                if (!isSame(index, rowIndex + (i << aShift))) break extend;
+                            }
+                            height++;
+                        }
+
+                        final float color = RectangleMeshBuilder.lightColor(lights[index]);
+                        final boolean transparent = this.transparent[index];
+                        for (int j = 0; j < height; j++) {
+                            for (int i = 0; i < width; i++) {
+                                textures[index + (i << aShift) + (j << bShift)] = null;
+                            }
+                        }
+
+                        final int inChunkKey = index - sideBase;
+                        final int sizeX = side.offX != 0 ? 1 : width;
+                        final int sizeY = side.offY != 0 ? 1 : (side.offX != 0 ? width : height);
+                        final int sizeZ = side.offZ != 0 ? 1 : height;
+                        if (transparent) batch.resumeTransparent();
+                        batch.createMergedFace(inChunkKeyToX(inChunkKey), inChunkKeyToY(inChunkKey), inChunkKeyToZ(inChunkKey),
+                                faceOffsets, texture, sizeX, sizeY, sizeZ, color);
+                        if (transparent) batch.pauseTransparent();
+                    }
+                }
+            }
+        }
+        empty = true;
+    }
+
+    private boolean isSame(int index, int otherIndex) {
+        return textures[index] == textures[otherIndex]
+                && lights[index] == lights[otherIndex]
+                && transparent[index] == transparent[otherIndex];
+    }
+}
@@ -9,48 +9,32 @@ import com.badlogic.gdx.math.Vector3;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.BufferUtils;
 import com.badlogic.gdx.utils.Pool;
-import darkyenus.blockotron.world.Side;
 
 import java.nio.FloatBuffer;
 
+import static darkyenus.blockotron.render.RectangleMeshBuilder.*;
+
 /**
- * Used to dynamically create a Mesh out of textured rectangles.
+ * Mesh made out of textured rectangles, built by {@link RectangleMeshBuilder}.
  *
  * Holds the mesh, takes care of its lifecycle, vertices and indices.
- * Provides a begin() - add - end() style API for simple rendering of shapes out of rectangles.
- * Also is a RenderableProvider and draws everything added during the last begin() - add - end() cycle.
+ * Is a RenderableProvider and draws everything built by the builder of the last {@link #upload(RectangleMeshBuilder)}.
+ * Must be used only on the rendering thread.
  */
 public class RectangleMeshBatch implements RenderableProvider {
 
-    private final static VertexAttributes attributes = new VertexAttributes(
-            VertexAttribute.Position(),//3
-            VertexAttribute.TexCoords(0),//2
-            VertexAttribute.ColorPacked()//1
-    );
-    private final static int vertexSize = 6;
-    public final static float white = Color.WHITE.toFloatBits();
-
     private final Material opaqueMaterial, transparentMaterial;
     private final Vector3 worldTranslation = new Vector3();
-    /** Opaque and transparent vertices. Opaque are filled from 0, transparent from the end, but not in reverse. */
-    private float[] vertices;
-    /** LXYZLXYZ... encoded positions and length of transparent vertices.
-     * L = meshPart.size
-     * X,Y,Z = worldTransform */
+    /** Copy of {@link RectangleMeshBuilder#getTransparentMeshPositions()} */
     private float[] transparentMeshPositions;
-    private static final int TRANSPARENT_MESH_POS_STRIDE = 4;
     /** Max amount of rectangular faces that can fit into the mesh, opaque or transparent */
     private int maxMeshFaces;
-    /** Current amount of rectangular faces in the mesh (or buffer if after begin() but before end()). */
+    /** Current amount of rectangular faces in the mesh. */
     private int opaqueFaces = 0, transparentFaces = 0, transparentBatches = 0;
     private final boolean isStatic;
     private Mesh mesh;
 
-    private int tBaseX, tBaseY, tBaseZ;
-    private int batchedTransparent;
-    private boolean drawingTransparent;
-
-    /** Note that this is a quite heavy object.
+    /** Note that this is a quite heavy object.
      * @param isStatic true if the mesh is not regenerated each frame/often
      * @param opaqueMaterial of the opaque part of the mesh
      * @param transparentMaterial of the transparent part of the mesh */
@@ -61,11 +45,14 @@ public class RectangleMeshBatch implements RenderableProvider {
         //Enlarge to the next power of two for efficiency (kept as is if already POT)
         initialMaxFaces = MathUtils.nextPowerOfTwo(initialMaxFaces);
         this.maxMeshFaces = initialMaxFaces;
+        mesh = createMesh(initialMaxFaces);
+    }
 
-        final int maxIndices = facesToIndices(initialMaxFaces);
-        mesh = new Mesh(isStatic, facesToVertices(initialMaxFaces), maxIndices, attributes);
-        vertices = new float[facesToVertices(initialMaxFaces) * vertexSize];
+    private Mesh createMesh(int maxFaces) {
+        final int maxIndices = facesToIndices(maxFaces);
+        final Mesh mesh = new Mesh(isStatic, facesToVertices(maxFaces), maxIndices, attributes);
         mesh.setIndices(getIndices(maxIndices), 0, maxIndices);
+        return mesh;
     }
 
     /** Set the world translation of renderables of this mesh */
@@ -73,273 +60,22 @@ public class RectangleMeshBatch implements RenderableProvider {
         worldTranslation.set(x, y, z);
     }
 
-    /** Return the amount of vertices that corresponds to given amount of rectangular faces. */
-    private static int facesToVertices(int faces){
-        return faces * 4;
-    }
-
-    /** Return the amount of indices that corresponds to given amount of rectangular faces. */
-    private static int facesToIndices(int faces){
-        return faces * 6;
-    }
-
-    /** Clear everything rendered and begin to add new shapes.
-     * Do not call if already called and not {@link #end()}ed. */
-    public void begin(){
-        opaqueFaces = 0;
-        transparentFaces = 0;
-        transparentBatches = 0;
-    }
-
-    /** Faces drawn between begin/endTransparent will be ordered as if they were on these coordinates. */
-    public void beginTransparent(int baseX, int baseY, int baseZ) {
-        assert !drawingTransparent;
-        tBaseX = baseX;
-        tBaseY = baseY;
-        tBaseZ = baseZ;
-        batchedTransparent = 0;
-        drawingTransparent = true;
-    }
-
-    /** Allows to draw opaque blocks inside begin/endTransparent.
-     * Must be matched with resumeTransparent, before endTransparent! */
-    public void pauseTransparent(){
-        assert drawingTransparent;
-        drawingTransparent = false;
-    }
-
-    /** @see #pauseTransparent() */
-    public void resumeTransparent(){
-        assert !drawingTransparent;
-        drawingTransparent = true;
-    }
-
-    public void endTransparent() {
-        assert drawingTransparent;
-        drawingTransparent = false;
-        if(batchedTransparent > 0){
-            int off = transparentBatches * TRANSPARENT_MESH_POS_STRIDE;
-            final int additionalLength = TRANSPARENT_MESH_POS_STRIDE;
-
-            final float[] tMePos;
-
-            //Resize transparentMeshPositions if needed
-            if(transparentMeshPositions == null){
-                assert off == 0;
-                tMePos = transparentMeshPositions = new float[MathUtils.nextPowerOfTwo(additionalLength)];
-            } else if (transparentMeshPositions.length < off + additionalLength){
-                final float[] newTransparentMeshPositions = new float[MathUtils.nextPowerOfTwo(off + additionalLength)];
-                System.arraycopy(transparentMeshPositions, 0, newTransparentMeshPositions, 0, off);
-                tMePos = transparentMeshPositions = newTransparentMeshPositions;
-            } else {
-                tMePos = transparentMeshPositions;
-            }
-
-            tMePos[off++] = facesToIndices(batchedTransparent);
-            tMePos[off++] = tBaseX;
-            tMePos[off++] = tBaseY;
-            tMePos[off] = tBaseZ;
-
-            batchedTransparent = 0;
-            transparentBatches++;
+    /** Replace the mesh with everything built by the builder.
+     * Builder is not needed after this returns and can be reused. */
+    public void upload(RectangleMeshBuilder builder){
+        final int opaqueFaces = builder.getOpaqueFaces();
+        final int transparentFaces = builder.getTransparentFaces();
+        if(opaqueFaces + transparentFaces > maxMeshFaces){
+            final int newMaxMeshFaces = grownMaxFaces(maxMeshFaces, opaqueFaces + transparentFaces);
+            //System.out.println("Resizing mesh from "+maxMeshFaces+" to "+newMaxMeshFaces);
+            this.mesh.dispose();
+            this.mesh = createMesh(newMaxMeshFaces);
+            this.maxMeshFaces = newMaxMeshFaces;
         }
-    }
-
-    /** Draw a block at given world coordinates.
-     * Must be called between begin() and end().
-     * @param faceMask occlusion mask, only faces which are not occluded will be drawn
-     *                 (see {@link darkyenus.blockotron.world.Chunk#getOcclusionMask(int, int, int)})
-     * @param texture of all faces */
-    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture texture) {
-        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, texture, white, white, white, white);
-        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, texture, white, white, white, white);
-        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, texture, white, white, white, white);
-        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, texture, white, white, white, white);
-        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, texture, white, white, white, white);
-        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, texture, white, white, white, white);
-    }
 
-    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
-    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture top, BlockFaceTexture sides, BlockFaceTexture bottom) {
-        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, sides, white, white, white, white);
-        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, sides, white, white, white, white);
-        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, sides, white, white, white, white);
-        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, sides, white, white, white, white);
-        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, white, white, white, white);
-        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, white, white, white, white);
-    }
-
-    private static final float[] colorMatrix = new float[16*16];
-    static {
-        final float[] colors = colorMatrix;
-        final Color NO_SKY = new Color(0f, 0f, 0.3f, 1f);
-        final Color ALL_SKY = Color.WHITE;
-        final Color TMP = new Color();
-
-        for (int sky = 0; sky < 16; sky++) {
-            for (int block = 0; block < 16; block++) {
-                TMP.set(NO_SKY).lerp(ALL_SKY, sky / 15f);
-                colors[sky | (block << 4)] = TMP.toFloatBits();
-            }
-        }
-    }
-
-    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
-    public void createBlock (int x, int y, int z, byte faceMask, int skyColor, int blockColor, BlockFaceTexture east, BlockFaceTexture west, BlockFaceTexture north, BlockFaceTexture south, BlockFaceTexture top, BlockFaceTexture bottom) {
-        if((faceMask & Side.east) != 0) {
-            final float eastColor = colorMatrix[skyColor & 0xFF];
-            createBlockFace(x, y, z, EAST_FACE_OFFSETS, east, eastColor, eastColor, eastColor, eastColor);
-        }
-        if((faceMask & Side.west) != 0) {
-            final float westColor = colorMatrix[(skyColor >> 4) & 0xFF];
-            createBlockFace(x, y, z, WEST_FACE_OFFSETS, west, westColor, westColor, westColor, westColor);
-        }
-        if((faceMask & Side.north) != 0) {
-            final float northColor = colorMatrix[(skyColor >> 8) & 0xFF];
-            createBlockFace(x, y, z, NORTH_FACE_OFFSETS, north, northColor, northColor, northColor, northColor);
-        }
-        if((faceMask & Side.south) != 0) {
-            final float southColor = colorMatrix[(skyColor >> 12) & 0xFF];
-            createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, south, southColor, southColor, southColor, southColor);
-        }
-        if((faceMask & Side.top) != 0) {
-            final float topColor = colorMatrix[(skyColor >> 16) & 0xFF];
-            createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, topColor, topColor, topColor, topColor);
-        }
-        if((faceMask & Side.bottom) != 0) {
-            final float bottomColor = colorMatrix[(skyColor >> 20) & 0xFF];
-            createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, bottomColor, bottomColor, bottomColor, bottomColor);
-        }
-    }
-
-    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
-    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture east, float eastColor, BlockFaceTexture west, float westColor, BlockFaceTexture north, float northColor, BlockFaceTexture south, float southColor, BlockFaceTexture top, float topColor, BlockFaceTexture bottom, float bottomColor) {
-        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, east, eastColor, eastColor, eastColor, eastColor);
-        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, west, westColor, westColor, westColor, westColor);
-        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, north, northColor, northColor, northColor, northColor);
-        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, south, southColor, southColor, southColor, southColor);
-        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, topColor, topColor, topColor, topColor);
-        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, bottomColor, bottomColor, bottomColor, bottomColor);
-    }
-
-    /** Draw a single face of a block. Most blocks should use one of createBlock() methods.
-     * Must be called between begin() and end().
-     * @param x (+ y,z) world coordinates of the block
-     * @param faceOffsets offsets of the face vertices to the block origin (see {@link #TOP_FACE_OFFSETS} etc.)
-     * @param texture to be drawn on the face */
-    public void createBlockFace (int x, int y, int z, float[] faceOffsets, BlockFaceTexture texture, float color1, float color2, float color3, float color4){
-        if(opaqueFaces + transparentFaces + 1 > maxMeshFaces){
-            resizeMesh(opaqueFaces + transparentFaces + 1);
-        }
-
-        //Vertices
-        final float[] v = vertices;
-        int vertexOffset;
-        if(drawingTransparent){
-            vertexOffset = v.length - (facesToVertices(transparentFaces + 1) * vertexSize);
-            transparentFaces++;
-            batchedTransparent++;
-            x -= tBaseX;
-            y -= tBaseY;
-            z -= tBaseZ;
-        } else {
-            vertexOffset = facesToVertices(opaqueFaces) * vertexSize;
-            opaqueFaces++;
-        }
-
-        //Fill vertices
-        int faceOffset = 0;
-        v[vertexOffset++] = x + faceOffsets[faceOffset++];
-        v[vertexOffset++] = y + faceOffsets[faceOffset++];
-        v[vertexOffset++] = z + faceOffsets[faceOffset++];
-        v[vertexOffset++] = texture.u2;
-        v[vertexOffset++] = texture.v2;
-        v[vertexOffset++] = color1;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++];
-        v[vertexOffset++] = y + faceOffsets[faceOffset++];
-        v[vertexOffset++] = z + faceOffsets[faceOffset++];
-        v[vertexOffset++] = texture.u2;
-        v[vertexOffset++] = texture.v;
-        v[vertexOffset++] = color2;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++];
-        v[vertexOffset++] = y + faceOffsets[faceOffset++];
-        v[vertexOffset++] = z + faceOffsets[faceOffset++];
-        v[vertexOffset++] = texture.u;
-        v[vertexOffset++] = texture.v;
-        v[vertexOffset++] = color3;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++];
-        v[vertexOffset++] = y + faceOffsets[faceOffset++];
-        v[vertexOffset++] = z + faceOffsets[faceOffset];
-        v[vertexOffset++] = texture.u;
-        v[vertexOffset++] = texture.v2;
-        v[vertexOffset] = color4;
-    }
-
-    /** Draw a single face of a block. Advanced parameters.
-     * Must be called between begin() and end().
-     * @param x (+ y,z) world coordinates of the block
-     * @param faceOffsets offsets of the face vertices to the block origin (see {@link #TOP_FACE_OFFSETS} etc.)
-     * @param texture to be drawn on the face
-     * @param sclX (+ sclY, sclZ) scale of the face offsets */
-    public void createBlockFace (float x, float y, float z, float[] faceOffsets, BlockFaceTexture texture,
-                                 float sclX, float sclY, float sclZ, float color1, float color2, float color3, float color4){
-        if(opaqueFaces + transparentFaces + 1 > maxMeshFaces){
-            resizeMesh(opaqueFaces + transparentFaces + 1);
-        }
-
-        //Vertices
-        final float[] v = vertices;
-        int vertexOffset;
-        if(drawingTransparent){
-            vertexOffset = v.length - (facesToVertices(transparentFaces + 1) * vertexSize);
-            transparentFaces++;
-            batchedTransparent++;
-            x -= tBaseX;
-            y -= tBaseY;
-            z -= tBaseZ;
-        } else {
-            vertexOffset = facesToVertices(opaqueFaces) * vertexSize;
-            opaqueFaces++;
-        }
-
-        //Fill vertices
-        int faceOffset = 0;
-        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
-        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
-        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
-        v[vertexOffset++] = texture.u2;
-        v[vertexOffset++] = texture.v2;
-        v[vertexOffset++] = color1;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
-        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
-        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
-        v[vertexOffset++] = texture.u2;
-        v[vertexOffset++] = texture.v;
-        v[vertexOffset++] = color2;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
-        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
-        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
-        v[vertexOffset++] = texture.u;
-        v[vertexOffset++] = texture.v;
-        v[vertexOffset++] = color3;
-
-        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
-        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
-        v[vertexOffset++] = z + faceOffsets[faceOffset] * sclZ;
-        v[vertexOffset++] = texture.u;
-        v[vertexOffset++] = texture.v2;
-        v[vertexOffset] = color4;
-    }
-
-    /** Update the mesh and end the edit block. */
-    public void end(){
-        final int opaqueVerticesSize = facesToVertices(opaqueFaces) * vertexSize;
-        final int transparentVerticesSize = facesToVertices(transparentFaces) * vertexSize;
+        final float[] vertices = builder.getVertices();
+        final int opaqueVerticesSize = facesToVertices(opaqueFaces) * VERTEX_SIZE;
+        final int transparentVerticesSize = facesToVertices(transparentFaces) * VERTEX_SIZE;
 
         // Assign vertices
         // This has to be done manually, because it is quite advanced usage
@@ -353,42 +89,20 @@ public class RectangleMeshBatch implements RenderableProvider {
             vertexBuf.position(opaqueVerticesSize);
             BufferUtils.copy(vertices, vertices.length - transparentVerticesSize, vertexBuf, transparentVerticesSize);
         }
-    }
 
-    /** Enlarge the buffer in power of two sizes until this value (in faces) */
-    private static final int POT_STEPS_THRESHOLD = 1024;
-    /** When POT_STEPS_THRESHOLD is reached, enlarge the mesh in steps this big. */
-    private static final int POST_POT_SIZE_STEPS = 512;
-
-    private void resizeMesh(int totalFacesRequired){
-        int newMaxMeshFaces = maxMeshFaces;
-        while(newMaxMeshFaces < totalFacesRequired && newMaxMeshFaces < POT_STEPS_THRESHOLD){
-            newMaxMeshFaces = newMaxMeshFaces << 1;
-        }
-        while(newMaxMeshFaces < totalFacesRequired){
-            newMaxMeshFaces += POST_POT_SIZE_STEPS;
+        // Remember transparent batches
+        final int transparentBatches = builder.getTransparentBatches();
+        final int positionsSize = transparentBatches * TRANSPARENT_MESH_POS_STRIDE;
+        if(positionsSize != 0){
+            if(transparentMeshPositions == null || transparentMeshPositions.length < positionsSize){
+                transparentMeshPositions = new float[MathUtils.nextPowerOfTwo(positionsSize)];
+            }
+            System.arraycopy(builder.getTransparentMeshPositions(), 0, transparentMeshPositions, 0, positionsSize);
         }
 
-        //System.out.println("Resizing mesh from "+maxMeshFaces+" to "+newMaxMeshFaces);
-
-        final int maxIndices = facesToIndices(newMaxMeshFaces);
-        final Mesh newMesh = new Mesh(isStatic, facesToVertices(newMaxMeshFaces), maxIndices, attributes);
-        final float[] newVertices = new float[facesToVertices(newMaxMeshFaces) * vertexSize];
-        newMesh.setIndices(getIndices(maxIndices), 0, maxIndices);
-
-        //Copy existing data
-        final int opaqueVerticesSize = facesToVertices(opaqueFaces) * vertexSize;
-        final int transparentVerticesSize = facesToVertices(transparentFaces) * vertexSize;
-
-        final float[] oldVertices = this.vertices;
-        System.arraycopy(oldVertices, 0, newVertices, 0, opaqueVerticesSize);
-        System.arraycopy(oldVertices, oldVertices.length - transparentVerticesSize, newVertices, newVertices.length - transparentVerticesSize, transparentVerticesSize);
-
-        //Dispose old and replace with new data
-        this.mesh.dispose();
-        this.mesh = newMesh;
-        this.vertices = newVertices;
-        this.maxMeshFaces = newMaxMeshFaces;
+        this.opaqueFaces = opaqueFaces;
+        this.transparentFaces = transparentFaces;
+        this.transparentBatches = transparentBatches;
     }
 
     @Override
@@ -438,48 +152,6 @@ public class RectangleMeshBatch implements RenderableProvider {
         mesh.dispose();
     }
 
-    public static final float[] EAST_FACE_OFFSETS = {
-            1, 1, 0,
-            1, 1, 1,
-            1, 0, 1,
-            1, 0, 0
-    };
-
-    public static final float[] WEST_FACE_OFFSETS = {
-            0, 0, 0,
-            0, 0, 1,
-            0, 1, 1,
-            0, 1, 0
-    };
-
-    public static final float[] NORTH_FACE_OFFSETS = {
-            0, 1, 0,
-            0, 1, 1,
-            1, 1, 1,
-            1, 1, 0
-    };
-
-    public static final float[] SOUTH_FACE_OFFSETS = {
-            1, 0, 0,
-            1, 0, 1,
-            0, 0, 1,
-            0, 0, 0,
-    };
-
-    public static final float[] TOP_FACE_OFFSETS = {
-            0, 0, 1,
-            1, 0, 1,
-            1, 1, 1,
-            0, 1, 1
-    };
-
-    public static final float[] BOTTOM_FACE_OFFSETS = {
-            0, 1, 0,
-            1, 1, 0,
-            1, 0, 0,
-            0, 0, 0
-    };
-
     private static short[] indicesCache;
     /** Since all indices are the same, we generate them once and then serve cached version.
      * Cached version may be larger than what is requested, so be prepared to handle that. */
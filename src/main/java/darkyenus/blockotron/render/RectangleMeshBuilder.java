@@ -0,0 +1,424 @@
+package darkyenus.blockotron.render;
+
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.math.MathUtils;
+import darkyenus.blockotron.world.Side;
+
+/**
+ * Builds vertices of a mesh out of textured rectangles.
+ *
+ * Provides a begin() - add - end() style API for simple building of shapes out of rectangles.
+ * Does not touch OpenGL, so it can be used on any thread, but each instance only by one thread at a time.
+ * Built vertices are drawn by uploading them to {@link RectangleMeshBatch#upload(RectangleMeshBuilder)}.
+ */
+public class RectangleMeshBuilder {
+
+    /** Alias of the vertex attribute holding u, v, width and height of the texture region of the face.
+     * Texture coordinates then only say how many times is the region repeated, see {@link BlockShader}. */
+    public final static String REGION_ATTRIBUTE = "a_region";
+
+    final static VertexAttributes attributes = new VertexAttributes(
+            VertexAttribute.Position(),//3
+            VertexAttribute.TexCoords(0),//2
+            VertexAttribute.ColorPacked(),//1
+            new VertexAttribute(VertexAttributes.Usage.Generic, 4, REGION_ATTRIBUTE)//4
+    );
+    /** Amount of floats per vertex */
+    public final static int VERTEX_SIZE = 10;
+    public final static float white = Color.WHITE.toFloatBits();
+
+    /** Opaque and transparent vertices. Opaque are filled from 0, transparent from the end, but not in reverse. */
+    private float[] vertices;
+    /** LXYZLXYZ... encoded positions and length of transparent vertices.
+     * L = meshPart.size
+     * X,Y,Z = worldTransform */
+    private float[] transparentMeshPositions;
+    static final int TRANSPARENT_MESH_POS_STRIDE = 4;
+    /** Max amount of rectangular faces that can fit into the vertices, opaque or transparent */
+    private int maxFaces;
+    /** Current amount of rectangular faces in the vertices. */
+    private int opaqueFaces = 0, transparentFaces = 0, transparentBatches = 0;
+
+    private int tBaseX, tBaseY, tBaseZ;
+    private int batchedTransparent;
+    private boolean drawingTransparent;
+
+    /** @param initialMaxFaces amount of faces for which there is space initially, more is allocated when needed */
+    public RectangleMeshBuilder(int initialMaxFaces) {
+        //Enlarge to the next power of two for efficiency (kept as is if already POT)
+        maxFaces = MathUtils.nextPowerOfTwo(initialMaxFaces);
+        vertices = new float[facesToVertices(maxFaces) * VERTEX_SIZE];
+    }
+
+    /** Return the amount of vertices that corresponds to given amount of rectangular faces. */
+    static int facesToVertices(int faces){
+        return faces * 4;
+    }
+
+    /** Return the amount of indices that corresponds to given amount of rectangular faces. */
+    static int facesToIndices(int faces){
+        return faces * 6;
+    }
+
+    /** Clear everything built and begin to add new shapes. */
+    public void begin(){
+        opaqueFaces = 0;
+        transparentFaces = 0;
+        transparentBatches = 0;
+    }
+
+    /** Faces drawn between begin/endTransparent will be ordered as if they were on these coordinates. */
+    public void beginTransparent(int baseX, int baseY, int baseZ) {
+        assert !drawingTransparent;
+        tBaseX = baseX;
+        tBaseY = baseY;
+        tBaseZ = baseZ;
+        batchedTransparent = 0;
+        drawingTransparent = true;
+    }
+
+    /** Allows to draw opaque blocks inside begin/endTransparent.
+     * Must be matched with resumeTransparent, before endTransparent! */
+    public void pauseTransparent(){
+        assert drawingTransparent;
+        drawingTransparent = false;
+    }
+
+    /** @see #pauseTransparent() */
+    public void resumeTransparent(){
+        assert !drawingTransparent;
+        drawingTransparent = true;
+    }
+
+    public void endTransparent() {
+        assert drawingTransparent;
+        drawingTransparent = false;
+        if(batchedTransparent > 0){
+            int off = transparentBatches * TRANSPARENT_MESH_POS_STRIDE;
+            final int additionalLength = TRANSPARENT_MESH_POS_STRIDE;
+
+            final float[] tMePos;
+
+            //Resize transparentMeshPositions if needed
+            if(transparentMeshPositions == null){
+                assert off == 0;
+                tMePos = transparentMeshPositions = new float[MathUtils.nextPowerOfTwo(additionalLength)];
+            } else if (transparentMeshPositions.length < off + additionalLength){
+                final float[] newTransparentMeshPositions = new float[MathUtils.nextPowerOfTwo(off + additionalLength)];
+                System.arraycopy(transparentMeshPositions, 0, newTransparentMeshPositions, 0, off);
+                tMePos = transparentMeshPositions = newTransparentMeshPositions;
+            } else {
+                tMePos = transparentMeshPositions;
+            }
+
+            tMePos[off++] = facesToIndices(batchedTransparent);
+            tMePos[off++] = tBaseX;
+            tMePos[off++] = tBaseY;
+            tMePos[off] = tBaseZ;
+
+            batchedTransparent = 0;
+            transparentBatches++;
+        }
+    }
+
+    /** Draw a block at given world coordinates.
+     * Must be called after begin().
+     * @param faceMask occlusion mask, only faces which are not occluded will be drawn
+     *                 (see {@link darkyenus.blockotron.world.Chunk#getOcclusionMask(int, int, int)})
+     * @param texture of all faces */
+    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture texture) {
+        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, texture, white, white, white, white);
+        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, texture, white, white, white, white);
+        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, texture, white, white, white, white);
+        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, texture, white, white, white, white);
+        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, texture, white, white, white, white);
+        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, texture, white, white, white, white);
+    }
+
+    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
+    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture top, BlockFaceTexture sides, BlockFaceTexture bottom) {
+        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, sides, white, white, white, white);
+        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, sides, white, white, white, white);
+        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, sides, white, white, white, white);
+        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, sides, white, white, white, white);
+        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, white, white, white, white);
+        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, white, white, white, white);
+    }
+
+    private static final float[] colorMatrix = new float[16*16];
+    static {
+        final float[] colors = colorMatrix;
+        final Color NO_SKY = new Color(0f, 0f, 0.3f, 1f);
+        final Color ALL_SKY = Color.WHITE;
+        final Color TMP = new Color();
+
+        for (int sky = 0; sky < 16; sky++) {
+            for (int block = 0; block < 16; block++) {
+                TMP.set(NO_SKY).lerp(ALL_SKY, sky / 15f);
+                colors[sky | (block << 4)] = TMP.toFloatBits();
+            }
+        }
+    }
+
+    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
+    public void createBlock (int x, int y, int z, byte faceMask, int skyColor, int blockColor, BlockFaceTexture east, BlockFaceTexture west, BlockFaceTexture north, BlockFaceTexture south, BlockFaceTexture top, BlockFaceTexture bottom) {
+        if((faceMask & Side.east) != 0) {
+            final float eastColor = colorMatrix[skyColor & 0xFF];
+            createBlockFace(x, y, z, EAST_FACE_OFFSETS, east, eastColor, eastColor, eastColor, eastColor);
+        }
+        if((faceMask & Side.west) != 0) {
+            final float westColor = colorMatrix[(skyColor >> 4) & 0xFF];
+            createBlockFace(x, y, z, WEST_FACE_OFFSETS, west, westColor, westColor, westColor, westColor);
+        }
+        if((faceMask & Side.north) != 0) {
+            final float northColor = colorMatrix[(skyColor >> 8) & 0xFF];
+            createBlockFace(x, y, z, NORTH_FACE_OFFSETS, north, northColor, northColor, northColor, northColor);
+        }
+        if((faceMask & Side.south) != 0) {
+            final float southColor = colorMatrix[(skyColor >> 12) & 0xFF];
+            createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, south, southColor, southColor, southColor, southColor);
+        }
+        if((faceMask & Side.top) != 0) {
+            final float topColor = colorMatrix[(skyColor >> 16) & 0xFF];
+            createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, topColor, topColor, topColor, topColor);
+        }
+        if((faceMask & Side.bottom) != 0) {
+            final float bottomColor = colorMatrix[(skyColor >> 20) & 0xFF];
+            createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, bottomColor, bottomColor, bottomColor, bottomColor);
+        }
+    }
+
+    /** @see #createBlock(int, int, int, byte, BlockFaceTexture) */
+    public void createBlock (int x, int y, int z, byte faceMask, BlockFaceTexture east, float eastColor, BlockFaceTexture west, float westColor, BlockFaceTexture north, float northColor, BlockFaceTexture south, float southColor, BlockFaceTexture top, float topColor, BlockFaceTexture bottom, float bottomColor) {
+        if((faceMask & Side.east) != 0) createBlockFace(x, y, z, EAST_FACE_OFFSETS, east, eastColor, eastColor, eastColor, eastColor);
+        if((faceMask & Side.west) != 0) createBlockFace(x, y, z, WEST_FACE_OFFSETS, west, westColor, westColor, westColor, westColor);
+        if((faceMask & Side.north) != 0) createBlockFace(x, y, z, NORTH_FACE_OFFSETS, north, northColor, northColor, northColor, northColor);
+        if((faceMask & Side.south) != 0) createBlockFace(x, y, z, SOUTH_FACE_OFFSETS, south, southColor, southColor, southColor, southColor);
+        if((faceMask & Side.top) != 0) createBlockFace(x, y, z, TOP_FACE_OFFSETS, top, topColor, topColor, topColor, topColor);
+        if((faceMask & Side.bottom) != 0) createBlockFace(x, y, z, BOTTOM_FACE_OFFSETS, bottom, bottomColor, bottomColor, bottomColor, bottomColor);
+    }
+
+    /** Convert light value, as returned by {@link darkyenus.blockotron.world.Chunk#getLight(int, int, int)}, to packed color. */
+    public static float lightColor(byte light) {
+        return colorMatrix[light & 0xFF];
+    }
+
+    /** Draw a single face of a block. Most blocks should use one of createBlock() methods.
+     * Must be called after begin().
+     * @param x (+ y,z) world coordinates of the block
+     * @param faceOffsets offsets of the face vertices to the block origin (see {@link #TOP_FACE_OFFSETS} etc.)
+     * @param texture to be drawn on the face */
+    public void createBlockFace (int x, int y, int z, float[] faceOffsets, BlockFaceTexture texture, float color1, float color2, float color3, float color4){
+        putFace(x, y, z, faceOffsets, 1f, 1f, 1f, texture, 1f, 1f, color1, color2, color3, color4);
+    }
+
+    /** Draw a single face of a block. Advanced parameters.
+     * Must be called after begin().
+     * @param x (+ y,z) world coordinates of the block
+     * @param faceOffsets offsets of the face vertices to the block origin (see {@link #TOP_FACE_OFFSETS} etc.)
+     * @param texture to be drawn on the face
+     * @param sclX (+ sclY, sclZ) scale of the face offsets */
+    public void createBlockFace (float x, float y, float z, float[] faceOffsets, BlockFaceTexture texture,
+                                 float sclX, float sclY, float sclZ, float color1, float color2, float color3, float color4){
+        putFace(x, y, z, faceOffsets, sclX, sclY, sclZ, texture, 1f, 1f, color1, color2, color3, color4);
+    }
+
+    /** Draw a rectangle made of coplanar faces of whole blocks, with the texture repeated on each of the faces.
+     * Looks the same as drawing each of the faces through {@link #createBlockFace(int, int, int, float[], BlockFaceTexture, float, float, float, float)},
+     * but takes only one face worth of vertices.
+     * Must be called after begin().
+     * @param x (+ y,z) world coordinates of the block with lowest coordinates covered by the rectangle
+     * @param faceOffsets offsets of the face vertices to the block origin (see {@link #TOP_FACE_OFFSETS} etc.)
+     * @param sizeX (+ sizeY, sizeZ) size of the rectangle in blocks, 1 in the dimension perpendicular to the face */
+    public void createMergedFace (int x, int y, int z, float[] faceOffsets, BlockFaceTexture texture,
+                                  int sizeX, int sizeY, int sizeZ, float color){
+        // Texture U changes between second and third vertex, V between first and second
+        final float repeatU = faceAxis(faceOffsets, 3, 6, sizeX, sizeY, sizeZ);
+        final float repeatV = faceAxis(faceOffsets, 0, 3, sizeX, sizeY, sizeZ);
+        putFace(x, y, z, faceOffsets, sizeX, sizeY, sizeZ, texture, repeatU, repeatV, color, color, color, color);
+    }
+
+    /** @return size of the dimension in which face vertices at given offsets differ */
+    private static int faceAxis(float[] faceOffsets, int from, int to, int sizeX, int sizeY, int sizeZ) {
+        if (faceOffsets[from] != faceOffsets[to]) return sizeX;
+        if (faceOffsets[from + 1] != faceOffsets[to + 1]) return sizeY;
+        return sizeZ;
+    }
+
+    private void putFace (float x, float y, float z, float[] faceOffsets, float sclX, float sclY, float sclZ, BlockFaceTexture texture,
+                          float repeatU, float repeatV, float color1, float color2, float color3, float color4){
+        if(opaqueFaces + transparentFaces + 1 > maxFaces){
+            resize(opaqueFaces + transparentFaces + 1);
+        }
+
+        //Vertices
+        final float[] v = vertices;
+        int vertexOffset;
+        if(drawingTransparent){
+            vertexOffset = v.length - (facesToVertices(transparentFaces + 1) * VERTEX_SIZE);
+            transparentFaces++;
+            batchedTransparent++;
+            x -= tBaseX;
+            y -= tBaseY;
+            z -= tBaseZ;
+        } else {
+            vertexOffset = facesToVertices(opaqueFaces) * VERTEX_SIZE;
+            opaqueFaces++;
+        }
+
+        final float regionU = texture.u;
+        final float regionV = texture.v;
+        final float regionWidth = texture.u2 - texture.u;
+        final float regionHeight = texture.v2 - texture.v;
+
+        //Fill vertices
+        int faceOffset = 0;
+        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
+        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
+        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
+        v[vertexOffset++] = repeatU;
+        v[vertexOffset++] = repeatV;
+        v[vertexOffset++] = color1;
+        v[vertexOffset++] = regionU;
+        v[vertexOffset++] = regionV;
+        v[vertexOffset++] = regionWidth;
+        v[vertexOffset++] = regionHeight;
+
+        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
+        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
+        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
+        v[vertexOffset++] = repeatU;
+        v[vertexOffset++] = 0f;
+        v[vertexOffset++] = color2;
+        v[vertexOffset++] = regionU;
+        v[vertexOffset++] = regionV;
+        v[vertexOffset++] = regionWidth;
+        v[vertexOffset++] = regionHeight;
+
+        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
+        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
+        v[vertexOffset++] = z + faceOffsets[faceOffset++] * sclZ;
+        v[vertexOffset++] = 0f;
+        v[vertexOffset++] = 0f;
+        v[vertexOffset++] = color3;
+        v[vertexOffset++] = regionU;
+        v[vertexOffset++] = regionV;
+        v[vertexOffset++] = regionWidth;
+        v[vertexOffset++] = regionHeight;
+
+        v[vertexOffset++] = x + faceOffsets[faceOffset++] * sclX;
+        v[vertexOffset++] = y + faceOffsets[faceOffset++] * sclY;
+        v[vertexOffset++] = z + faceOffsets[faceOffset] * sclZ;
+        v[vertexOffset++] = 0f;
+        v[vertexOffset++] = repeatV;
+        v[vertexOffset++] = color4;
+        v[vertexOffset++] = regionU;
+        v[vertexOffset++] = regionV;
+        v[vertexOffset++] = regionWidth;
+        v[vertexOffset] = regionHeight;
+    }
+
+    /** @return amount of opaque faces built since {@link #begin()} */
+    public int getOpaqueFaces() {
+        return opaqueFaces;
+    }
+
+    /** @return amount of transparent faces built since {@link #begin()} */
+    public int getTransparentFaces() {
+        return transparentFaces;
+    }
+
+    /** @return amount of transparent batches ended since {@link #begin()} */
+    int getTransparentBatches() {
+        return transparentBatches;
+    }
+
+    /** Vertices of opaque faces, {@link #VERTEX_SIZE} floats each, start at the beginning of the array.
+     * Vertices of transparent faces end at the end of the array.
+     * Vertex attributes are position, texture repeat, packed color and texture region, see {@link #REGION_ATTRIBUTE}.
+     * @return array holding the vertices, only valid until more faces are added */
+    public float[] getVertices() {
+        return vertices;
+    }
+
+    /** @see #transparentMeshPositions */
+    float[] getTransparentMeshPositions() {
+        return transparentMeshPositions;
+    }
+
+    /** Enlarge the buffer in power of two sizes until this value (in faces) */
+    private static final int POT_STEPS_THRESHOLD = 1024;
+    /** When POT_STEPS_THRESHOLD is reached, enlarge the buffer in steps this big. */
+    private static final int POST_POT_SIZE_STEPS = 512;
+
+    /** @return max amount of faces, not less than totalFacesRequired, to which should the buffers grow */
+    static int grownMaxFaces(int maxFaces, int totalFacesRequired) {
+        while(maxFaces < totalFacesRequired && maxFaces < POT_STEPS_THRESHOLD){
+            maxFaces = maxFaces << 1;
+        }
+        while(maxFaces < totalFacesRequired){
+            maxFaces += POST_POT_SIZE_STEPS;
+        }
+        return maxFaces;
+    }
+
+    private void resize(int totalFacesRequired){
+        final int newMaxFaces = grownMaxFaces(maxFaces, totalFacesRequired);
+        final float[] newVertices = new float[facesToVertices(newMaxFaces) * VERTEX_SIZE];
+
+        //Copy existing data
+        final int opaqueVerticesSize = facesToVertices(opaqueFaces) * VERTEX_SIZE;
+        final int transparentVerticesSize = facesToVertices(transparentFaces) * VERTEX_SIZE;
+
+        final float[] oldVertices = this.vertices;
+        System.arraycopy(oldVertices, 0, newVertices, 0, opaqueVerticesSize);
+        System.arraycopy(oldVertices, oldVertices.length - transparentVerticesSize, newVertices, newVertices.length - transparentVerticesSize, transparentVerticesSize);
+
+        this.vertices = newVertices;
+        this.maxFaces = newMaxFaces;
+    }
+
+    public static final float[] EAST_FACE_OFFSETS = {
+            1, 1, 0,
+            1, 1, 1,
+            1, 0, 1,
+            1, 0, 0
+    };
+
+    public static final float[] WEST_FACE_OFFSETS = {
+            0, 0, 0,
+            0, 0, 1,
+            0, 1, 1,
+            0, 1, 0
+    };
+
+    public static final float[] NORTH_FACE_OFFSETS = {
+            0, 1, 0,
+            0, 1, 1,
+            1, 1, 1,
+            1, 1, 0
+    };
+
+    public static final float[] SOUTH_FACE_OFFSETS = {
+            1, 0, 0,
+            1, 0, 1,
+            0, 0, 1,
+            0, 0, 0,
+    };
+
+    public static final float[] TOP_FACE_OFFSETS = {
+            0, 0, 1,
+            1, 0, 1,
+            1, 1, 1,
+            0, 1, 1
+    };
+
+    public static final float[] BOTTOM_FACE_OFFSETS = {
+            0, 1, 0,
+            1, 1, 0,
+            1, 0, 0,
+            0, 0, 0
+    };
+}
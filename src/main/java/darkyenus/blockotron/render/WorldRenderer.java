@@ -7,6 +7,7 @@ import com.badlogic.gdx.graphics.g3d.Environment;
 import com.badlogic.gdx.graphics.g3d.ModelBatch;
 import com.badlogic.gdx.graphics.g3d.Renderable;
 import com.badlogic.gdx.graphics.g3d.RenderableProvider;
+import com.badlogic.gdx.graphics.g3d.Shader;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
 import com.badlogic.gdx.graphics.g3d.shaders.DefaultShader;
@@ -21,7 +22,9 @@ import com.badlogic.gdx.utils.Pool;
 import com.badlogic.gdx.utils.viewport.ExtendViewport;
 import com.badlogic.gdx.utils.viewport.Viewport;
 import darkyenus.blockotron.world.*;
-import darkyenus.blockotron.world.blocks.Air;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static darkyenus.blockotron.world.Dimensions.*;
 
@@ -30,6 +33,8 @@ import static darkyenus.blockotron.world.Dimensions.*;
  */
 public class WorldRenderer implements WorldObserver, RenderableProvider {
 
+    private static final String LOG = "WorldRenderer";
+
     public int debug_chunksConsidered, debug_chunksRendered;
 
     public final PerspectiveCamera camera = new PerspectiveCamera();{
@@ -48,7 +53,15 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
         config.numDirectionalLights = 2;
         config.numPointLights = 0;
         config.numSpotLights = 0;
-        final DefaultShaderProvider defaultShaderProvider = new DefaultShaderProvider(config);
+        final DefaultShaderProvider defaultShaderProvider = new DefaultShaderProvider(config) {
+            @Override
+            protected Shader createShader(Renderable renderable) {
+                if (BlockShader.isBlockRenderable(renderable)) {
+                    return new BlockShader(renderable, config);
+                }
+                return super.createShader(renderable);
+            }
+        };
         modelBatch = new ModelBatch(defaultShaderProvider, new BiasedRenderableSorter());
     }
 
@@ -96,6 +109,20 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
         makeBlockDirty(chunk, inChunkX, inChunkY, inChunkZ);
     }
 
+    @Override
+    public void blocksChanged(Chunk chunk) {
+        makeChunkDirty(chunk.x, chunk.y, chunk.z);
+        for (Side side : Side.values()) {
+            makeChunkDirty(chunk.x + side.offX, chunk.y + side.offY, chunk.z + side.offZ);
+        }
+    }
+
+    @Override
+    public void lightChanged(Chunk chunk) {
+        // Faces of neighbor chunks are lit by the light of this chunk
+        blocksChanged(chunk);
+    }
+
     @Override
     public void blockOcclusionChanged(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ, byte from, byte to) {
         makeBlockDirty(chunk, inChunkX, inChunkY, inChunkZ);
@@ -137,6 +164,7 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
         int cameraChunkZ = MathUtils.round(camera.position.z / CHUNK_SIZE);
         int viewDistanceChunks = MathUtils.ceilPositive(camera.far / CHUNK_SIZE);
         final Frustum frustum = camera.frustum;
+        freeAbandonedMeshTasks();
 
         int total = 0, passed = 0;
 
@@ -162,14 +190,18 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
     }
 
     /** Takes care of building chunk block meshes.
+     * Meshes are built by {@link MeshTask}s off the main thread, from a snapshot of the chunk,
+     * the old mesh is drawn until the new one is uploaded.
      * POOLED! */
-    private static class ChunkRenderable implements RenderableProvider {
+    private final class ChunkRenderable implements RenderableProvider {
 
         private Chunk chunk;
         private final BoundingBox boundingBox = new BoundingBox();
         private final RectangleMeshBatch blockBatch;
 
         private boolean dirty = true;
+        /** Task building the mesh of this chunk, null if none */
+        private MeshTask meshTask;
 
         private ChunkRenderable() {
             blockBatch = new RectangleMeshBatch(true, BlockFaces.opaqueMaterial, BlockFaces.transparentMaterial, 1 << 10);
@@ -181,6 +213,7 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
             boundingBox.max.set(boundingBox.min).add(CHUNK_SIZE, CHUNK_SIZE, CHUNK_SIZE);
 
             blockBatch.setWorldTranslation(chunk.x << CHUNK_SIZE_SHIFT, chunk.y << CHUNK_SIZE_SHIFT, chunk.z << CHUNK_SIZE_SHIFT);
+            blockBatch.upload(EMPTY_MESH);
             this.dirty = true;
             return this;
         }
@@ -188,67 +221,82 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
         @Override
         public void getRenderables(Array<Renderable> renderables, Pool<Renderable> pool) {
             final RectangleMeshBatch blockBatch = this.blockBatch;
-            if(dirty){
-                this.dirty = false;
+            final MeshTask meshTask = this.meshTask;
+            if (meshTask != null && meshTask.isDone()) {
+                this.meshTask = null;
+                if (meshTask.isCompletedAbnormally()) {
+                    // Keep the old mesh, chunk will be rebuilt when it changes again
+                    Gdx.app.error(LOG, "Failed to build mesh of "+chunk, meshTask.getException());
+                } else {
+                    blockBatch.upload(meshTask.builder);
+                }
+                freeMeshTask(meshTask);
+            }
 
-                blockBatch.begin();
-                final Chunk chunk = this.chunk;
-                if(!chunk.isEmpty()){
-                    final World world = chunk.world;
-                    final int worldX = chunk.x << CHUNK_SIZE_SHIFT;
-                    final int worldY = chunk.y << CHUNK_SIZE_SHIFT;
-                    final int worldZ = chunk.z << CHUNK_SIZE_SHIFT;
-
-                    blockBatch.beginTransparent(0, 0, 0);
-                    blockBatch.pauseTransparent();
-
-                    final Block[] blocks = chunk.blocks;
-                    final byte[] occlusion = chunk.occlusion;
-
-                    for (int i = 0; i < blocks.length; i++) {
-                        final Block block = blocks[i];
-                        if (block != Air.AIR) {
-                            final int cX = i & 0xF;
-                            final int cY = (i >> 4) & 0xF;
-                            final int cZ = (i >> 8) & 0xF;
-
-                            final byte eastLight = chunk.getLight(cX+1, cY, cZ);
-                            final byte westLight = chunk.getLight(cX-1, cY, cZ);
-                            final byte northLight = chunk.getLight(cX, cY+1, cZ);
-                            final byte southLight = chunk.getLight(cX, cY-1, cZ);
-                            final byte topLight = chunk.getLight(cX, cY, cZ+1);
-                            final byte bottomLight = chunk.getLight(cX, cY, cZ-1);
-                            final byte selfLight = chunk.getLight(cX, cY, cZ);
-
-                            final int skyLight = (eastLight & 0xF) | ((westLight & 0xF) << 4)
-                                    | ((northLight & 0xF) << 8) | ((southLight & 0xF) << 12)
-                                    | ((topLight & 0xF) << 16) | ((bottomLight & 0xF) << 20)
-                                    | ((selfLight & 0xF) << 24);
-                            final int blockLight = ((eastLight & 0xF0) >> 4) | ((westLight & 0xF0))
-                                    | ((northLight & 0xF0) << 4) | ((southLight & 0xF0) << 8)
-                                    | ((topLight & 0xF0) << 12) | ((bottomLight & 0xF0) << 16)
-                                    | ((selfLight & 0xF0) << 20);
-
-                            if(block.isTransparent()) {
-                                blockBatch.resumeTransparent();
-                                block.render(world, worldX + cX, worldY + cY, worldZ + cZ, cX, cY, cZ, occlusion[i], skyLight, blockLight, blockBatch);
-                                blockBatch.pauseTransparent();
-                            } else {
-                                block.render(world, worldX + cX, worldY + cY, worldZ + cZ, cX, cY, cZ, occlusion[i], skyLight, blockLight, blockBatch);
-                            }
-                        }
-                    }
+            if(dirty && this.meshTask == null && pendingMeshTasks < MAX_PENDING_MESH_TASKS){
+                this.dirty = false;
 
-                    blockBatch.resumeTransparent();
-                    blockBatch.endTransparent();
-                }
-                blockBatch.end();
+                final MeshTask task = meshTaskPool.obtain();
+                task.snapshot.set(chunk);
+                pendingMeshTasks++;
+                meshingPool.execute(task);
+                this.meshTask = task;
             }
 
             blockBatch.getRenderables(renderables, pool);
         }
     }
 
+    /** Builds a mesh of a {@link ChunkSnapshot}.
+     * POOLED! */
+    private static final class MeshTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final ChunkSnapshot snapshot = new ChunkSnapshot();
+        final RectangleMeshBuilder builder = new RectangleMeshBuilder(1 << 10);
+        private final ChunkMesher mesher = new ChunkMesher();
+
+        @Override
+        protected void compute() {
+            mesher.build(snapshot, builder);
+        }
+    }
+
+    /** Mesh with no faces */
+    private static final RectangleMeshBuilder EMPTY_MESH = new RectangleMeshBuilder(1);
+
+    /** At most this many {@link MeshTask}s are running at once, others wait for the next frames.
+     * Each task holds several hundred kilobytes of buffers. */
+    private static final int MAX_PENDING_MESH_TASKS = ForkJoinPool.getCommonPoolParallelism() * 2;
+    private final ForkJoinPool meshingPool = ForkJoinPool.commonPool();
+    private int pendingMeshTasks = 0;
+    /** Tasks of chunks which were unloaded while their mesh was being built, freed when done */
+    private final Array<MeshTask> abandonedMeshTasks = new Array<>(false, 16, MeshTask.class);
+
+    private final Pool<MeshTask> meshTaskPool = new Pool<MeshTask>(MAX_PENDING_MESH_TASKS, MAX_PENDING_MESH_TASKS) {
+        @Override
+        protected MeshTask newObject() {
+            return new MeshTask();
+        }
+    };
+
+    private void freeMeshTask(MeshTask task) {
+        task.reinitialize();
+        pendingMeshTasks--;
+        meshTaskPool.free(task);
+    }
+
+    private void freeAbandonedMeshTasks() {
+        final Array<MeshTask> abandoned = this.abandonedMeshTasks;
+        for (int i = abandoned.size - 1; i >= 0; i--) {
+            final MeshTask task = abandoned.items[i];
+            if (task.isDone()) {
+                abandoned.removeIndex(i);
+                freeMeshTask(task);
+            }
+        }
+    }
+
     private final Pool<ChunkRenderable> chunkRenderablePool = new Pool<ChunkRenderable>() {
         @Override
         protected ChunkRenderable newObject() {
@@ -258,6 +306,10 @@ public class WorldRenderer implements WorldObserver, RenderableProvider {
         @Override
         protected void reset(ChunkRenderable object) {
             object.chunk = null;//Prevent leak
+            if (object.meshTask != null) {
+                abandonedMeshTasks.add(object.meshTask);
+                object.meshTask = null;
+            }
         }
     };
 }
@@ -0,0 +1,217 @@
+package darkyenus.blockotron.utils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Map of long keys to int values, without boxing and without allocation, except when growing.
+ *
+ * Uses open addressing with linear probing. Removal shifts following entries back, so there are no tombstones
+ * and the map does not degrade with many puts and removes, which is its intended use: counters of chunk columns.
+ */
+public final class LongIntMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private int[] values;
+    /** Slots whose key is 0 are empty, entry with key 0 is stored separately */
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    private int size;
+    private int mask;
+    private int shift;
+    private int threshold;
+
+    private Keys keysIterator;
+
+    public LongIntMap() {
+        this(64);
+    }
+
+    public LongIntMap(int initialCapacity) {
+        final int capacity = Math.max(16, Integer.highestOneBit(Math.max((int) (initialCapacity / LOAD_FACTOR), 1) - 1) << 1);
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        shift = Long.numberOfLeadingZeros(capacity - 1);
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift) & mask;
+    }
+
+    /** @return amount of entries */
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) return hasZeroKey;
+        final long[] keys = this.keys;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) return true;
+            if (k == 0) return false;
+        }
+    }
+
+    /** @return value of the key or defaultValue if there is no such key */
+    public int get(long key, int defaultValue) {
+        if (key == 0) return hasZeroKey ? zeroValue : defaultValue;
+        final long[] keys = this.keys;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) return values[i];
+            if (k == 0) return defaultValue;
+        }
+    }
+
+    public void put(long key, int value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+        final long[] keys = this.keys;
+        int i = slot(key);
+        for (; ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == 0) break;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > threshold) {
+            resize(keys.length << 1);
+        }
+    }
+
+    /** Add amount to the value of the key, missing keys have value 0.
+     * Entry is removed when its value becomes 0.
+     * @return the new value */
+    public int add(long key, int amount) {
+        final int value = get(key, 0) + amount;
+        if (value == 0) {
+            remove(key, 0);
+        } else {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /** @return value of the removed key or defaultValue if there was no such key */
+    public int remove(long key, int defaultValue) {
+        if (key == 0) {
+            if (!hasZeroKey) return defaultValue;
+            hasZeroKey = false;
+            size--;
+            return zeroValue;
+        }
+        final long[] keys = this.keys;
+        final int[] values = this.values;
+        final int mask = this.mask;
+        int i = slot(key);
+        for (; ; i = (i + 1) & mask) {
+            final long k = keys[i];
+            if (k == key) break;
+            if (k == 0) return defaultValue;
+        }
+        final int oldValue = values[i];
+
+        // Shift back following entries, which would not be found through the emptied slot otherwise
+        int empty = i;
+        for (i = (i + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            final int home = slot(keys[i]);
+            if (((i - home) & mask) >= ((i - empty) & mask)) {
+                keys[empty] = keys[i];
+                values[empty] = values[i];
+                empty = i;
+            }
+        }
+        keys[empty] = 0;
+        size--;
+        return oldValue;
+    }
+
+    public void clear() {
+        if (size == 0) return;
+        Arrays.fill(keys, 0L);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        final long[] oldKeys = this.keys;
+        final int[] oldValues = this.values;
+        allocate(capacity);
+        final long[] keys = this.keys;
+        final int[] values = this.values;
+        for (int j = 0; j < oldKeys.length; j++) {
+            final long key = oldKeys[j];
+            if (key == 0) continue;
+            int i = slot(key);
+            while (keys[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = oldValues[j];
+        }
+    }
+
+    /** Returns the same iterator each time. Map must not be modified while iterating. */
+    public Keys keys() {
+        Keys keys = this.keysIterator;
+        if (keys == null) {
+            this.keysIterator = keys = new Keys();
+        }
+        keys.reset();
+        return keys;
+    }
+
+    /** Iterator over keys of the map. */
+    public final class Keys {
+        public boolean hasNext;
+        private boolean zeroPending;
+        private int nextIndex;
+
+        void reset() {
+            zeroPending = hasZeroKey;
+            nextIndex = -1;
+            findNext();
+        }
+
+        private void findNext() {
+            final long[] keys = LongIntMap.this.keys;
+            nextIndex++;
+            while (nextIndex < keys.length && keys[nextIndex] == 0) {
+                nextIndex++;
+            }
+            hasNext = zeroPending || nextIndex < keys.length;
+        }
+
+        public long next() {
+            if (!hasNext) throw new NoSuchElementException();
+            if (zeroPending) {
+                zeroPending = false;
+                hasNext = nextIndex < keys.length;
+                return 0;
+            }
+            final long key = keys[nextIndex];
+            findNext();
+            return key;
+        }
+    }
+}
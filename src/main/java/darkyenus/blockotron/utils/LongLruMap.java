@@ -0,0 +1,143 @@
+package darkyenus.blockotron.utils;
+
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.Pool;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Map of long keys to values, which remembers the order in which entries were used
+ * and the estimated size of each entry, in bytes, so that the least recently used entries
+ * can be evicted once the total size exceeds some budget.
+ *
+ * All operations are O(1). Entries are kept in a hash index and in a doubly linked list, from the least recently used.
+ * Values may be null, when only the keys matter.
+ */
+public final class LongLruMap<V> {
+
+    private final LongMap<Entry<V>> index = new LongMap<>();
+    /** Least recently used entry, first in the list */
+    private Entry<V> oldest;
+    /** Most recently used entry, last in the list */
+    private Entry<V> newest;
+    private long totalBytes;
+
+    private final Pool<Entry<V>> entryPool = new Pool<Entry<V>>() {
+        @Override
+        protected Entry<V> newObject() {
+            return new Entry<>();
+        }
+    };
+
+    /** @return amount of entries */
+    public int size() {
+        return index.size;
+    }
+
+    /** @return sum of sizes of all entries */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    public boolean containsKey(long key) {
+        return index.containsKey(key);
+    }
+
+    /** Put the entry in as the most recently used one, replacing the entry with the same key, if any. */
+    public void put(long key, V value, int bytes) {
+        Entry<V> entry = index.get(key);
+        if (entry == null) {
+            entry = entryPool.obtain();
+            entry.key = key;
+            index.put(key, entry);
+        } else {
+            unlink(entry);
+            totalBytes -= entry.bytes;
+        }
+        entry.value = value;
+        entry.bytes = bytes;
+        totalBytes += bytes;
+        linkNewest(entry);
+    }
+
+    /** @return value of the key, or null if not present. Does not change the order. */
+    public V get(long key) {
+        final Entry<V> entry = index.get(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /** Mark the entry as the most recently used one.
+     * @return false if there is no such entry */
+    public boolean touch(long key) {
+        final Entry<V> entry = index.get(key);
+        if (entry == null) return false;
+        unlink(entry);
+        linkNewest(entry);
+        return true;
+    }
+
+    /** Change the size of the entry by given amount, if present. */
+    public void addBytes(long key, int bytes) {
+        final Entry<V> entry = index.get(key);
+        if (entry == null) return;
+        entry.bytes += bytes;
+        totalBytes += bytes;
+    }
+
+    /** @return true if the entry was present and was removed */
+    public boolean remove(long key) {
+        final Entry<V> entry = index.remove(key);
+        if (entry == null) return false;
+        unlink(entry);
+        totalBytes -= entry.bytes;
+        entryPool.free(entry);
+        return true;
+    }
+
+    /** @return key of the least recently used entry
+     * @throws NoSuchElementException if empty */
+    public long oldestKey() {
+        final Entry<V> oldest = this.oldest;
+        if (oldest == null) throw new NoSuchElementException();
+        return oldest.key;
+    }
+
+    public void clear() {
+        for (Entry<V> entry = oldest; entry != null; ) {
+            final Entry<V> next = entry.next;
+            entryPool.free(entry);
+            entry = next;
+        }
+        oldest = newest = null;
+        index.clear();
+        totalBytes = 0;
+    }
+
+    private void unlink(Entry<V> entry) {
+        if (entry.previous == null) oldest = entry.next;
+        else entry.previous.next = entry.next;
+        if (entry.next == null) newest = entry.previous;
+        else entry.next.previous = entry.previous;
+        entry.previous = entry.next = null;
+    }
+
+    private void linkNewest(Entry<V> entry) {
+        entry.previous = newest;
+        if (newest == null) oldest = entry;
+        else newest.next = entry;
+        newest = entry;
+    }
+
+    private static final class Entry<V> implements Pool.Poolable {
+        long key;
+        V value;
+        int bytes;
+        Entry<V> previous, next;
+
+        @Override
+        public void reset() {
+            value = null;
+            previous = next = null;
+        }
+    }
+}
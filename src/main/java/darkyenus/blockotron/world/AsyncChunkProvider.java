@@ -0,0 +1,24 @@
+package darkyenus.blockotron.world;
+
+/**
+ * {@link ChunkProvider} which can prepare chunks in the background.
+ *
+ * Chunks are first requested through {@link #requestColumn(int, int)}, which never blocks.
+ * Once {@link #isChunkReady(int, int, int)} returns true, {@link #borrowChunk(int, int, int)} will return
+ * the chunk without blocking. Borrowing chunk which is not ready is still possible, but blocks until it is prepared.
+ */
+public interface AsyncChunkProvider extends ChunkProvider {
+
+    /** Start preparing the chunk column at given chunk-coordinates in background, if not already prepared or being prepared.
+     * Never blocks. */
+    void requestColumn(int x, int y);
+
+    /** @return true if the chunk at given chunk-coordinates is prepared and {@link #borrowChunk(int, int, int)}
+     * would not block */
+    boolean isChunkReady(int x, int y, int z);
+
+    /** Hint that the column at given chunk-coordinates, which was requested through {@link #requestColumn(int, int)},
+     * but none of its chunks were borrowed, will probably not be needed after all.
+     * Provider may discard it, if it is not requested or borrowed again first. Never blocks. */
+    void cancelColumn(int x, int y);
+}
@@ -1,7 +1,7 @@
 
 package darkyenus.blockotron.world;
 
-import darkyenus.blockotron.render.RectangleMeshBatch;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
 import darkyenus.blockotron.utils.BoundingBox;
 
 /**
@@ -31,6 +31,9 @@ public abstract class Block {
 	 * @see #OCCLUDING */
 	public final byte flags;
 
+	/** Level of block light emitted by this block, 0 (does not emit) to 15 (brightest). */
+	public final byte lightEmission;
+
 	/** Non-null collision bounding block of this block. */
 	public final BoundingBox hitBox;
 
@@ -38,14 +41,22 @@ public abstract class Block {
 	int registryID = -1;
 
 	protected Block (String id, int flags) {
-		this.id = id;
-		this.flags = (byte)flags;
-		this.hitBox = BoundingBox.UNIT_BOUNDING_BOX;
+		this(id, flags, 0, BoundingBox.UNIT_BOUNDING_BOX);
 	}
 
 	protected Block (String id, int flags, BoundingBox hitBox) {
+		this(id, flags, 0, hitBox);
+	}
+
+	protected Block (String id, int flags, int lightEmission) {
+		this(id, flags, lightEmission, BoundingBox.UNIT_BOUNDING_BOX);
+	}
+
+	protected Block (String id, int flags, int lightEmission, BoundingBox hitBox) {
+		if (lightEmission < 0 || lightEmission > 15) throw new IllegalArgumentException("Light emission must be 0 to 15, got " + lightEmission);
 		this.id = id;
 		this.flags = (byte)flags;
+		this.lightEmission = (byte)lightEmission;
 		this.hitBox = hitBox;
 	}
 
@@ -74,6 +85,11 @@ public abstract class Block {
         return (flags & HAS_ENTITY) != 0;
     }
 
+	/** @see #lightEmission */
+	public final boolean isLightEmitter () {
+		return lightEmission != 0;
+	}
+
 	/** ID of block in Registry, -1 if not registered */
 	public final int getRegistryID(){
 		return registryID;
@@ -85,15 +101,16 @@ public abstract class Block {
     protected void initializeEntity(World world, int entity){}
 
 	/** Draw the block in the world.
-	 * @param world in which the blocks is being rendered
+	 * Called when building chunk meshes, which happens off the main thread, so the world must not be accessed.
+	 * @param chunk snapshot of the chunk of the block, which can be read to draw the block according to its surroundings
 	 * @param x (y, z) of the block in the world
 	 * @param drawX (drawY, drawZ) to pass to the batch
 	 * @param occlusion mask of the block. Can be passed directly to the batch. See {@link Chunk#getOcclusionMask(int, int, int)}
 	 * @param skyLight light levels from the sky, packed in groups of 4 bits, from lsb in Side order, + 4 bits of self color
 	 * @param blockLight light levels from blocks (see skyLight)
 	 * @param batch to be used for drawing    */
-	public abstract void render(World world, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion,
-								int skyLight, int blockLight, RectangleMeshBatch batch);
+	public abstract void render(ChunkSnapshot chunk, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion,
+								int skyLight, int blockLight, RectangleMeshBuilder batch);
 
 	public void randomTick(World world, int worldX, int worldY, int worldZ){}
 
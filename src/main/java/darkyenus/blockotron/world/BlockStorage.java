@@ -0,0 +1,336 @@
+package darkyenus.blockotron.world;
+
+import com.badlogic.gdx.math.MathUtils;
+import darkyenus.blockotron.world.blocks.Air;
+
+import java.util.Arrays;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Compact storage of blocks of a single {@link Chunk}.
+ *
+ * Blocks are not stored directly, but as bit-packed indices into a small local palette of distinct blocks.
+ * Most chunks contain only a handful of block types, so each block takes only few bits instead of a full reference.
+ * When a block type which is not yet in the palette is stored, palette grows and, if needed, the indices are widened.
+ *
+ * Indexing is the same as of {@link Dimensions#inChunkKey(int, int, int)}.
+ */
+public final class BlockStorage {
+
+    /** Amount of blocks stored */
+    public static final int SIZE = CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE;
+
+    /** Distinct blocks of this storage. Entries after paletteSize are null. */
+    private Block[] palette;
+    private int paletteSize;
+
+    /** Bits per entry, always a power of two, so that entries never cross long boundaries. 0 if paletteSize is 1. */
+    private int bitsPerEntry;
+    /** Mask of single entry, (1 << bitsPerEntry) - 1 */
+    private long entryMask;
+    /** Packed palette indices. Null if bitsPerEntry is 0, because then all blocks are palette[0]. */
+    private long[] data;
+
+    /** Create new storage, filled with {@link Air#AIR}. */
+    public BlockStorage() {
+        palette = new Block[4];
+        palette[0] = Air.AIR;
+        paletteSize = 1;
+        bitsPerEntry = 0;
+        entryMask = 0;
+        data = null;
+    }
+
+    /** @return block at given inChunkKey */
+    public Block get(int key) {
+        if (bitsPerEntry == 0) return palette[0];
+        return palette[paletteIndex(key)];
+    }
+
+    /** @return index into the palette of block at given inChunkKey
+     * @see #paletteEntry(int) */
+    public int paletteIndex(int key) {
+        final int bitsPerEntry = this.bitsPerEntry;
+        if (bitsPerEntry == 0) return 0;
+        final int bitIndex = key * bitsPerEntry;
+        return (int) ((data[bitIndex >>> 6] >>> (bitIndex & 63)) & entryMask);
+    }
+
+    /** Set the block at given inChunkKey.
+     * @return block which was previously there */
+    public Block set(int key, Block block) {
+        final int newIndex = paletteIndexOf(block);
+        final int bitsPerEntry = this.bitsPerEntry;
+        if (bitsPerEntry == 0) {
+            // Palette just grew from single entry, or it is the same block
+            if (newIndex == 0) return palette[0];
+            widen();
+            return set(key, block);
+        }
+
+        final int bitIndex = key * bitsPerEntry;
+        final int longIndex = bitIndex >>> 6;
+        final int shift = bitIndex & 63;
+        final long word = data[longIndex];
+        final int oldIndex = (int) ((word >>> shift) & entryMask);
+        if (oldIndex != newIndex) {
+            data[longIndex] = (word & ~(entryMask << shift)) | ((long) newIndex << shift);
+        }
+        return palette[oldIndex];
+    }
+
+    /** Return index of given block in the palette, adding it if not present.
+     * May widen the storage. */
+    private int paletteIndexOf(Block block) {
+        final Block[] palette = this.palette;
+        final int paletteSize = this.paletteSize;
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i] == block) return i;
+        }
+
+        // Not found, add
+        if (paletteSize == palette.length) {
+            final Block[] newPalette = new Block[paletteSize << 1];
+            System.arraycopy(palette, 0, newPalette, 0, paletteSize);
+            this.palette = newPalette;
+        }
+        this.palette[paletteSize] = block;
+        this.paletteSize = paletteSize + 1;
+
+        if (paletteSize + 1 > (1 << bitsPerEntry) && bitsPerEntry != 0) {
+            widen();
+        }
+        return paletteSize;
+    }
+
+    /** Double the bits per entry (or make it 1 if 0) and repack the data accordingly. */
+    private void widen() {
+        final int oldBits = this.bitsPerEntry;
+        final int newBits = oldBits == 0 ? 1 : oldBits << 1;
+        final long newMask = (1L << newBits) - 1;
+        final long[] newData = StoragePool.obtainLongs(newBits);
+
+        if (oldBits != 0) {
+            final long[] oldData = this.data;
+            final long oldMask = this.entryMask;
+            for (int key = 0; key < SIZE; key++) {
+                final int oldBitIndex = key * oldBits;
+                final long index = (oldData[oldBitIndex >>> 6] >>> (oldBitIndex & 63)) & oldMask;
+                if (index != 0) {
+                    final int newBitIndex = key * newBits;
+                    newData[newBitIndex >>> 6] |= index << (newBitIndex & 63);
+                }
+            }
+            StoragePool.freeLongs(oldData);
+        }
+        // else: all entries are 0, which is what the new array contains
+
+        this.bitsPerEntry = newBits;
+        this.entryMask = newMask;
+        this.data = newData;
+    }
+
+    /** Discard the content and prepare the storage for bulk loading through {@link #fill(int, int, int)}.
+     * All blocks will be set to the first palette entry.
+     * @param palette distinct blocks of the new palette, first paletteSize entries are copied */
+    public void reset(Block[] palette, int paletteSize) {
+        if (paletteSize <= 0) throw new IllegalArgumentException("Palette must not be empty");
+        Block[] ownPalette = this.palette;
+        if (ownPalette.length < paletteSize) {
+            ownPalette = this.palette = new Block[MathUtils.nextPowerOfTwo(paletteSize)];
+        } else {
+            Arrays.fill(ownPalette, paletteSize, ownPalette.length, null);
+        }
+        System.arraycopy(palette, 0, ownPalette, 0, paletteSize);
+        this.paletteSize = paletteSize;
+
+        final int bitsPerEntry = bitsPerEntry(paletteSize);
+        if (data != null) {
+            StoragePool.freeLongs(data);
+        }
+        this.bitsPerEntry = bitsPerEntry;
+        this.entryMask = (1L << bitsPerEntry) - 1;
+        this.data = bitsPerEntry == 0 ? null : StoragePool.obtainLongs(bitsPerEntry);
+    }
+
+    /** @return smallest valid bits per entry, which can index palette of given size */
+    private static int bitsPerEntry(int paletteSize) {
+        if (paletteSize <= 1) return 0;
+        int bitsPerEntry = 1;
+        while ((1 << bitsPerEntry) < paletteSize) {
+            bitsPerEntry <<= 1;
+        }
+        return bitsPerEntry;
+    }
+
+    /** Remove palette entries of blocks which are no longer present and narrow the indices accordingly.
+     * If only a single block remains, storage becomes uniform.
+     * Palette only grows while blocks are set, so this is worth doing once the content settles, for example after generating. */
+    void compact() {
+        final int oldBits = this.bitsPerEntry;
+        if (oldBits == 0) return;
+        final int paletteSize = this.paletteSize;
+        final Block[] palette = this.palette;
+
+        // Mark used entries with 1, then map them to their new index
+        final int[] remap = new int[paletteSize];
+        for (int key = 0; key < SIZE; key++) {
+            remap[paletteIndex(key)] = 1;
+        }
+        int usedPaletteSize = 0;
+        for (int i = 0; i < paletteSize; i++) {
+            if (remap[i] != 0) usedPaletteSize++;
+        }
+        if (usedPaletteSize == paletteSize) return;
+
+        int newIndex = 0;
+        for (int i = 0; i < paletteSize; i++) {
+            if (remap[i] != 0) {
+                palette[newIndex] = palette[i];
+                remap[i] = newIndex++;
+            }
+        }
+        Arrays.fill(palette, usedPaletteSize, paletteSize, null);
+        this.paletteSize = usedPaletteSize;
+
+        final long[] oldData = this.data;
+        final long oldMask = this.entryMask;
+        final int newBits = bitsPerEntry(usedPaletteSize);
+        long[] newData = null;
+        if (newBits != 0) {
+            newData = StoragePool.obtainLongs(newBits);
+            for (int key = 0; key < SIZE; key++) {
+                final int oldBitIndex = key * oldBits;
+                final long index = remap[(int) ((oldData[oldBitIndex >>> 6] >>> (oldBitIndex & 63)) & oldMask)];
+                if (index != 0) {
+                    final int newBitIndex = key * newBits;
+                    newData[newBitIndex >>> 6] |= index << (newBitIndex & 63);
+                }
+            }
+        }
+        StoragePool.freeLongs(oldData);
+
+        this.bitsPerEntry = newBits;
+        this.entryMask = (1L << newBits) - 1;
+        this.data = newData;
+    }
+
+    /** Discard the content and fill the storage with {@link Air#AIR}, returning its array to the pool. */
+    public void clear() {
+        if (data != null) {
+            StoragePool.freeLongs(data);
+            data = null;
+        }
+        Arrays.fill(palette, 1, paletteSize, null);
+        palette[0] = Air.AIR;
+        paletteSize = 1;
+        bitsPerEntry = 0;
+        entryMask = 0;
+    }
+
+    /** Set blocks from fromKey (inclusive) to toKey (exclusive) to the block at given palette index.
+     * Whole longs are written at once, which makes this much faster than {@link #set(int, Block)} for long runs. */
+    public void fill(int fromKey, int toKey, int paletteIndex) {
+        if (paletteIndex < 0 || paletteIndex >= paletteSize) throw new IllegalArgumentException("Invalid palette index " + paletteIndex);
+        final int bitsPerEntry = this.bitsPerEntry;
+        if (bitsPerEntry == 0) return;
+
+        final long[] data = this.data;
+        final long value = paletteIndex;
+        final int entriesPerLong = 64 / bitsPerEntry;
+        int key = fromKey;
+        // Head, until the key is aligned to the long boundary
+        while (key < toKey && (key & (entriesPerLong - 1)) != 0) {
+            setPaletteIndex(key++, value);
+        }
+        // Body, whole longs
+        if (key + entriesPerLong <= toKey) {
+            long pattern = 0;
+            for (int i = 0; i < 64; i += bitsPerEntry) {
+                pattern |= value << i;
+            }
+            do {
+                data[(key * bitsPerEntry) >>> 6] = pattern;
+                key += entriesPerLong;
+            } while (key + entriesPerLong <= toKey);
+        }
+        // Tail
+        while (key < toKey) {
+            setPaletteIndex(key++, value);
+        }
+    }
+
+    private void setPaletteIndex(int key, long paletteIndex) {
+        final int bitIndex = key * bitsPerEntry;
+        final int longIndex = bitIndex >>> 6;
+        final int shift = bitIndex & 63;
+        data[longIndex] = (data[longIndex] & ~(entryMask << shift)) | (paletteIndex << shift);
+    }
+
+    /** @return amount of distinct blocks in palette. Some of them may not be present in the storage anymore. */
+    public int paletteSize() {
+        return paletteSize;
+    }
+
+    /** @return block at given palette index */
+    public Block paletteEntry(int paletteIndex) {
+        return palette[paletteIndex];
+    }
+
+    /** For each block of the row of {@link Dimensions#CHUNK_SIZE} blocks along X, which starts at given key,
+     * set bit (x + shift) of the element of the array at the palette index of the block.
+     * Same as doing that through {@link #paletteIndex(int)}, but decodes whole words at once.
+     * @param rowKey in chunk key of the first block of the row, x = 0 */
+    void addRowBitsByPaletteIndex(int rowKey, int[] bitsByPaletteIndex, int shift) {
+        final int bitsPerEntry = this.bitsPerEntry;
+        if (bitsPerEntry == 0) {
+            bitsByPaletteIndex[0] |= ((1 << CHUNK_SIZE) - 1) << shift;
+            return;
+        }
+
+        final long[] data = this.data;
+        final long entryMask = this.entryMask;
+        final int bitIndex = rowKey * bitsPerEntry;
+        if (bitsPerEntry == 1) {
+            // Bits of the row are directly the bits of the palette entry 1
+            final int ones = (int) (data[bitIndex >>> 6] >>> (bitIndex & 63)) & ((1 << CHUNK_SIZE) - 1);
+            bitsByPaletteIndex[0] |= (~ones & ((1 << CHUNK_SIZE) - 1)) << shift;
+            bitsByPaletteIndex[1] |= ones << shift;
+            return;
+        }
+        // Entries never cross long boundaries and rows start at multiples of CHUNK_SIZE,
+        // so a row is either within a single long or spans several whole longs
+        int longIndex = bitIndex >>> 6;
+        long word = data[longIndex] >>> (bitIndex & 63);
+        int remainingInWord = Math.min(CHUNK_SIZE, (64 - (bitIndex & 63)) / bitsPerEntry);
+        for (int x = 0; x < CHUNK_SIZE; x++) {
+            if (remainingInWord == 0) {
+                word = data[++longIndex];
+                remainingInWord = 64 / bitsPerEntry;
+            }
+            bitsByPaletteIndex[(int) (word & entryMask)] |= 1 << (x + shift);
+            word >>>= bitsPerEntry;
+            remainingInWord--;
+        }
+    }
+
+    /** @return palette index of given block or -1 if it is not in the palette */
+    public int findPaletteIndex(Block block) {
+        final Block[] palette = this.palette;
+        for (int i = 0; i < paletteSize; i++) {
+            if (palette[i] == block) return i;
+        }
+        return -1;
+    }
+
+    /** @return true if all blocks in this storage are guaranteed to be the same */
+    public boolean isUniform() {
+        return bitsPerEntry == 0;
+    }
+
+    /** @return approximate amount of bytes used by this storage */
+    public int estimateMemoryBytes() {
+        return 32 + palette.length * 4 + (data == null ? 0 : 16 + data.length * 8);
+    }
+}
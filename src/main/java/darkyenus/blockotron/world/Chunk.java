@@ -1,13 +1,13 @@
 package darkyenus.blockotron.world;
 
 import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.Bits;
 import com.badlogic.gdx.utils.IntArray;
 import com.badlogic.gdx.utils.IntIntMap;
 import com.github.antag99.retinazer.Engine;
 import darkyenus.blockotron.world.blocks.Air;
 import darkyenus.blockotron.world.components.BlockPosition;
 
-import java.util.Arrays;
 import java.util.Random;
 
 import static darkyenus.blockotron.world.Dimensions.*;
@@ -25,21 +25,47 @@ public final class Chunk {
     /** Position of this chunk in the {@link #world}.
      * Chunk coordinates, multiply by {@link Dimensions#CHUNK_SIZE} to get the world coordinates of this chunk's origin. */
     public final int x, y, z;
+    /** Heightmap of the column this chunk is part of, shared by all chunks in the column */
+    public final Heightmap heightmap;
 
-    /** Blocks of this chunk in 1D array for performance. X changes fastest, then Y then Z. Does not contain any nulls.
+    /** Blocks of this chunk in palette-compressed storage. X changes fastest, then Y then Z. Does not contain any nulls.
      * <br/>WARNING: DIRECT USE EXPERT ONLY, DO NOT MODIFY
      * @see Dimensions#inChunkKey(int, int, int) */
-    public final Block[] blocks = new Block[CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE];
+    public final BlockStorage blocks = new BlockStorage();
+    /** Shared, all zero, array which serves as {@link #occlusion} of chunks,
+     * which did not yet need their own. Never write into it. */
+    static final byte[] UNIFORM_ZERO = new byte[BlockStorage.SIZE];
+
     /** Indexing identical to of {@link #blocks}.
      * For each block, contains which Sides are visible.
      * Byte holds flags from {@link Side}
+     * Copy-on-write, may be shared with other chunks until first non-zero occlusion is written.
      * <br/>WARNING: DIRECT USE EXPERT ONLY, DO NOT MODIFY */
-    public final byte[] occlusion = new byte[blocks.length];
-    /** Indexing identical to of {@link #blocks}.
-     * For each block, contains its light levels, packed: first (msb) 4 bits for block light, last (lsb) 4 bits for sky light. */
-    final byte[] light = new byte[blocks.length];
-    /** True if the light[] contains valid values, false if not yet computed */
+    public byte[] occlusion = UNIFORM_ZERO;
+    /** Sky light level of each block, indexing identical to of {@link #blocks}. Maintained by {@link LightUpdater}. */
+    final NibbleStorage skyLight = new NibbleStorage(0);
+    /** Block light level of each block, like {@link #skyLight}. */
+    final NibbleStorage blockLight = new NibbleStorage(0);
+    /** True if the light storages contain valid values, false if not yet computed */
     private boolean lightSettled = false;
+    /** True if any block was changed after populating ended */
+    private boolean modified = false;
+
+    /** Loaded face-neighbor chunks, indexed by {@link Side#ordinal()}.
+     * Maintained by {@link World} while this chunk is loaded, all null otherwise. */
+    private final Chunk[] neighbors = new Chunk[6];
+
+    /** In-chunk keys of blocks changed in the current edit transaction, null when there are none
+     * @see World#beginEdit() */
+    private Bits editedBlocks = null;
+    /** Sides of this chunk, on which a block was changed in the current edit transaction (Side flags) */
+    private byte editedSides = 0;
+
+    /** In-chunk keys of blocks around which the light must be updated, allocated on first use and then reused
+     * @see World#updateLight() */
+    private Bits lightDirtyBlocks = null;
+    /** True if some bits of lightDirtyBlocks are set and this chunk is registered in the world */
+    private boolean lightDirty = false;
 
     /** IDs of entities with {@link darkyenus.blockotron.world.components.Position} on this chunk */
     private final IntArray entities = new IntArray(false, 64);
@@ -65,12 +91,13 @@ public final class Chunk {
     /** Amount of blocks in this chunk that are not air. */
     private int nonAirBlockCount = 0;
 
-    public Chunk(World world, int x, int y, int z) {
+    public Chunk(World world, int x, int y, int z, Heightmap heightmap) {
         this.world = world;
         this.x = x;
         this.y = y;
         this.z = z;
-        Arrays.fill(blocks, Air.AIR);
+        this.heightmap = heightmap;
+        heightmap.addChunk(this);
     }
 
 	/** End populating this chunk and prepare it for its lifecycle.
@@ -80,20 +107,19 @@ public final class Chunk {
 		if (status != STATUS_POPULATING) throw new AssertionError("Chunk must be populating, is " + status);
 		status = STATUS_INACTIVE;
 
-        final Block[] blocks = this.blocks;
+        final BlockStorage blocks = this.blocks;
+        // Generated storages keep blocks which were overwritten, for example air of chunks full of dirt
+        blocks.compact();
 
         int nonAirBlockCount = 0;
-        for (int key = 0; key < blocks.length; key++) {
-            Block block = blocks[key];
-			if (block != Air.AIR) {
+        final int airIndex = blocks.findPaletteIndex(Air.AIR);
+        for (int key = 0; key < BlockStorage.SIZE; key++) {
+			if (blocks.paletteIndex(key) != airIndex) {
 				nonAirBlockCount++;
-				final int x = inChunkKeyToX(key);
-				final int y = inChunkKeyToY(key);
-				final int z = inChunkKeyToZ(key);
-				updateLocalOcclusion(x, y, z);
 			}
 		}
 		this.nonAirBlockCount = nonAirBlockCount;
+		OcclusionUpdater.updateChunk(this);
 		this.entityStorage = storage;
 	}
 
@@ -106,9 +132,9 @@ public final class Chunk {
 		// Deserialize or create entities
 		if (entityStorage == null) {
 			// Block entities never created
-            final Block[] blocks = this.blocks;
-			for (int key = 0; key < blocks.length; key++) {
-				Block block = blocks[key];
+            final BlockStorage blocks = this.blocks;
+			for (int key = 0; key < BlockStorage.SIZE; key++) {
+				Block block = blocks.get(key);
 				if (block.hasEntity()) {
 					final int x = inChunkKeyToX(key);
 					final int y = inChunkKeyToY(key);
@@ -153,21 +179,71 @@ public final class Chunk {
     /** Get block inside this chunk, using in-chunk coordinates.
      * Never returns null, undefined behavior if invalid coordinates. */
     public Block getLocalBlock(int x, int y, int z) {
-        return blocks[inChunkKey(x, y, z)];
+        return blocks.get(inChunkKey(x, y, z));
+    }
+
+    /** Get block inside this chunk, using {@link Dimensions#inChunkKey(int, int, int)}.
+     * Never returns null, undefined behavior if invalid key. */
+    public Block getLocalBlock(int inChunkKey) {
+        return blocks.get(inChunkKey);
     }
 
     /** Like {@link #getLocalBlock(int, int, int)}, but works even if the block is not from this chunk.
      * Searches only in loaded chunks and returns Air if the block is not loaded or is invalid. */
     public Block getBlock(int x, int y, int z) {
         if((x & CHUNK_SIZE_MASK) == x && (y & CHUNK_SIZE_MASK) == y && (z & CHUNK_SIZE_MASK) == z){
-            return blocks[inChunkKey(x, y, z)];
+            return blocks.get(inChunkKey(x, y, z));
         } else {
-            final int xOff = x >> CHUNK_SIZE_SHIFT;
-            final int yOff = y >> CHUNK_SIZE_SHIFT;
-            final int zOff = z >> CHUNK_SIZE_SHIFT;
-            final Chunk loadedChunk = world.getLoadedChunk(this.x + xOff, this.y + yOff, this.z + zOff);
+            final Chunk loadedChunk = getRelativeChunk(x >> CHUNK_SIZE_SHIFT, y >> CHUNK_SIZE_SHIFT, z >> CHUNK_SIZE_SHIFT);
             if(loadedChunk == null) return Air.AIR;
-            else return loadedChunk.blocks[inChunkKey(x, y, z)];
+            else return loadedChunk.blocks.get(inChunkKey(x, y, z));
+        }
+    }
+
+    /** @return loaded chunk at given offset (in chunks) from this one or null if not loaded.
+     * Face-neighbors of loaded chunk are resolved through the links, without world lookup. */
+    Chunk getRelativeChunk(int xOff, int yOff, int zOff) {
+        if (status == STATUS_ACTIVE) {
+            if (yOff == 0 && zOff == 0) {
+                if (xOff == 1) return neighbors[Side.EAST.ordinal()];
+                if (xOff == -1) return neighbors[Side.WEST.ordinal()];
+            } else if (xOff == 0 && zOff == 0) {
+                if (yOff == 1) return neighbors[Side.NORTH.ordinal()];
+                if (yOff == -1) return neighbors[Side.SOUTH.ordinal()];
+            } else if (xOff == 0 && yOff == 0) {
+                if (zOff == 1) return neighbors[Side.TOP.ordinal()];
+                if (zOff == -1) return neighbors[Side.BOTTOM.ordinal()];
+            }
+        }
+        return world.getLoadedChunk(this.x + xOff, this.y + yOff, this.z + zOff);
+    }
+
+    /** @return loaded neighbor chunk on given side or null if not loaded (or if this chunk is not loaded) */
+    public Chunk getNeighbor(Side side) {
+        return neighbors[side.ordinal()];
+    }
+
+    /** Link loaded neighbors with this chunk, which has just been loaded. */
+    void linkNeighbors() {
+        final Chunk[] neighbors = this.neighbors;
+        for (Side side : Side.values()) {
+            final Chunk neighbor = world.getLoadedChunk(x + side.offX, y + side.offY, z + side.offZ);
+            neighbors[side.ordinal()] = neighbor;
+            if (neighbor != null) {
+                neighbor.neighbors[side.opposite().ordinal()] = this;
+            }
+        }
+    }
+
+    /** Unlink this chunk, which is being unloaded, from its neighbors. */
+    void unlinkNeighbors() {
+        final Chunk[] neighbors = this.neighbors;
+        for (Side side : Side.values()) {
+            final Chunk neighbor = neighbors[side.ordinal()];
+            if (neighbor != null) {
+                neighbor.neighbors[side.opposite().ordinal()] = null;
+                neighbors[side.ordinal()] = null;
+            }
         }
     }
 
@@ -211,13 +287,13 @@ public final class Chunk {
          */
 
 
-        final Block[] blocks = this.blocks;
         final int coord = inChunkKey(x, y, z);
-        final Block old = blocks[coord];
+        final Block old = blocks.set(coord, block);
         if (old == block) return;
-		blocks[coord] = block;
+        heightmap.blockChanged(x, y, (this.z << CHUNK_SIZE_SHIFT) + z, block);
 
         if(status == STATUS_POPULATING) return;
+        modified = true;
 
 		// Remove old block entity
 		final Engine entityEngine = world.entityEngine();
@@ -244,6 +320,22 @@ public final class Chunk {
             nonAirBlockCount--;
         }
 
+        if(world.isEditing()){
+            // Side effects are resolved on commit
+            if(editedBlocks == null) {
+                editedBlocks = new Bits(BlockStorage.SIZE);
+                world.chunkEdited(this);
+            }
+            editedBlocks.set(coord);
+            if(x == 0) editedSides |= Side.west;
+            else if(x == CHUNK_SIZE - 1) editedSides |= Side.east;
+            if(y == 0) editedSides |= Side.south;
+            else if(y == CHUNK_SIZE - 1) editedSides |= Side.north;
+            if(z == 0) editedSides |= Side.bottom;
+            else if(z == CHUNK_SIZE - 1) editedSides |= Side.top;
+            return;
+        }
+
         //Update own occlusion mask
         updateLocalOcclusion(x,y,z);
 
@@ -255,9 +347,9 @@ public final class Chunk {
         updateOcclusion(x, y, z-1);
         updateOcclusion(x, y, z+1);
 
-        // Update light
+        // Update light, later
         if(lightSettled){
-            LightUpdater.updateChunk(this, x, y, z);
+            markLightDirty().set(coord);
         }
 
         for (WorldObserver observer : world.observers()) {
@@ -265,15 +357,66 @@ public final class Chunk {
         }
     }
 
+    /** Resolve side effects of blocks changed in the edit transaction: occlusion, light and observers. */
+    void commitEdit() {
+        final Bits editedBlocks = this.editedBlocks;
+        if(editedBlocks == null) return;
+        this.editedBlocks = null;
+        final byte editedSides = this.editedSides;
+        this.editedSides = 0;
+
+        OcclusionUpdater.updateChunk(this);
+        for (Side side : Side.values()) {
+            if ((editedSides & side.flag) != 0) {
+                final Chunk neighbor = neighbors[side.ordinal()];
+                if (neighbor != null) {
+                    OcclusionUpdater.updateChunk(neighbor);
+                }
+            }
+        }
+
+        if(lightSettled){
+            markLightDirty().or(editedBlocks);
+        }
+
+        for (WorldObserver observer : world.observers()) {
+            observer.blocksChanged(this);
+        }
+    }
+
+    /** Register this chunk for the light update at the end of world update.
+     * @return bits of dirty blocks, to which the blocks should be added */
+    private Bits markLightDirty() {
+        Bits lightDirtyBlocks = this.lightDirtyBlocks;
+        if (lightDirtyBlocks == null) {
+            this.lightDirtyBlocks = lightDirtyBlocks = new Bits(BlockStorage.SIZE);
+        }
+        if (!lightDirty) {
+            lightDirty = true;
+            world.chunkLightDirty(this);
+        }
+        return lightDirtyBlocks;
+    }
+
+    /** @return in-chunk keys of blocks around which the light must be updated, null if none */
+    Bits lightDirtyBlocks() {
+        return lightDirty ? lightDirtyBlocks : null;
+    }
+
+    /** Forget blocks around which the light had to be updated, after the update or when unloading. */
+    void clearLightDirty() {
+        if (lightDirty) {
+            lightDirty = false;
+            lightDirtyBlocks.clear();
+        }
+    }
+
     /** Update occlusion at given in-chunk coordinates. Coordinates may be out of this chunk. */
     private void updateOcclusion(int x, int y, int z){
         if((x & CHUNK_SIZE_MASK) == x && (y & CHUNK_SIZE_MASK) == y && (z & CHUNK_SIZE_MASK) == z){
             updateLocalOcclusion(x, y, z);
         } else {
-            final int xOff = x >> CHUNK_SIZE_SHIFT;
-            final int yOff = y >> CHUNK_SIZE_SHIFT;
-            final int zOff = z >> CHUNK_SIZE_SHIFT;
-            final Chunk loadedChunk = world.getLoadedChunk(this.x + xOff, this.y + yOff, this.z + zOff);
+            final Chunk loadedChunk = getRelativeChunk(x >> CHUNK_SIZE_SHIFT, y >> CHUNK_SIZE_SHIFT, z >> CHUNK_SIZE_SHIFT);
             if(loadedChunk == null) return;
             loadedChunk.updateLocalOcclusion(x & CHUNK_SIZE_MASK, y & CHUNK_SIZE_MASK, z & CHUNK_SIZE_MASK);
         }
@@ -284,7 +427,7 @@ public final class Chunk {
     private void updateLocalOcclusion(int x, int y, int z){
         final int coord = inChunkKey(x, y, z);
         final byte oldOcclusion = occlusion[coord];
-        final Block myself = blocks[coord];
+        final Block myself = blocks.get(coord);
         byte newOcclusion = 0;
         if(isFaceVisible(myself, x-1, y, z)){
             newOcclusion |= Side.west;
@@ -305,7 +448,7 @@ public final class Chunk {
             newOcclusion |= Side.top;
         }
         if(newOcclusion != oldOcclusion){
-            this.occlusion[coord] = newOcclusion;
+            writableOcclusion()[coord] = newOcclusion;
             if(status == STATUS_ACTIVE){
                 for (WorldObserver observer : world.observers()) {
                     observer.blockOcclusionChanged(this, x, y ,z, oldOcclusion, newOcclusion);
@@ -314,6 +457,24 @@ public final class Chunk {
         }
     }
 
+    /** @return occlusion array which is not shared with any other chunk and can be written into */
+    byte[] writableOcclusion() {
+        byte[] occlusion = this.occlusion;
+        if (occlusion == UNIFORM_ZERO) {
+            this.occlusion = occlusion = StoragePool.obtainOcclusion();
+        }
+        return occlusion;
+    }
+
+    /** Reset occlusion of all blocks to zero */
+    void clearOcclusion() {
+        final byte[] occlusion = this.occlusion;
+        if (occlusion != UNIFORM_ZERO) {
+            this.occlusion = UNIFORM_ZERO;
+            StoragePool.freeOcclusion(occlusion);
+        }
+    }
+
     /** Determine if my face is visible to the neighbor at given coordinates.
      * Rules have to consider transparency and kind of block when transparent:
      * Me -> Neighbor = Side visibility
@@ -340,44 +501,69 @@ public final class Chunk {
 
     /** Call the iterator with each non-air block in the chunk, in order from in-chunk 0,0,0 up. */
     public void forEachNonAirBlock(BlockIterator iterator) {
-        final Block[] blocks = this.blocks;
+        final BlockStorage blocks = this.blocks;
         final byte[] occlusion = this.occlusion;
 
         int nonAirRemaining = nonAirBlockCount;
-        for (int i = 0; i < blocks.length && nonAirRemaining > 0; i++) {
-            final Block block = blocks[i];
-            if (block != Air.AIR) {
+        if (nonAirRemaining == 0) return;
+        if (blocks.isUniform()) {
+            // Whole chunk is the same non-air block
+            final Block block = blocks.paletteEntry(0);
+            for (int i = 0; i < BlockStorage.SIZE; i++) {
                 iterator.block(i & 0xF, (i >> 4) & 0xF, (i >> 8) & 0xFF, occlusion[i], block);
+            }
+            return;
+        }
+
+        // Comparing palette indices is cheaper than resolving each block
+        final int airIndex = blocks.findPaletteIndex(Air.AIR);
+        for (int i = 0; i < BlockStorage.SIZE && nonAirRemaining > 0; i++) {
+            final int paletteIndex = blocks.paletteIndex(i);
+            if (paletteIndex != airIndex) {
+                iterator.block(i & 0xF, (i >> 4) & 0xF, (i >> 8) & 0xFF, occlusion[i], blocks.paletteEntry(paletteIndex));
                 nonAirRemaining--;
             }
         }
     }
 
+    /** @return light levels of given block, packed: first (msb) 4 bits for block light, last (lsb) 4 bits for sky light.
+     * Coordinates may be out of this chunk, -1 if such chunk is not loaded. Computes the light first, if needed. */
     public byte getLight(int inChunkX, int inChunkY, int inChunkZ){
         if((inChunkX & CHUNK_SIZE_MASK) == inChunkX && (inChunkY & CHUNK_SIZE_MASK) == inChunkY && (inChunkZ & CHUNK_SIZE_MASK) == inChunkZ){
-            return getLight()[inChunkKey(inChunkX, inChunkY, inChunkZ)];
+            return getLocalLight(inChunkKey(inChunkX, inChunkY, inChunkZ));
         } else {
-            final int xOff = inChunkX >> CHUNK_SIZE_SHIFT;
-            final int yOff = inChunkY >> CHUNK_SIZE_SHIFT;
-            final int zOff = inChunkZ >> CHUNK_SIZE_SHIFT;
-            final Chunk loadedChunk = world.getLoadedChunk(this.x + xOff, this.y + yOff, this.z + zOff);
+            final Chunk loadedChunk = getRelativeChunk(inChunkX >> CHUNK_SIZE_SHIFT, inChunkY >> CHUNK_SIZE_SHIFT, inChunkZ >> CHUNK_SIZE_SHIFT);
             if(loadedChunk == null) return -1;
-            else return loadedChunk.getLight()[inChunkKey(inChunkX, inChunkY, inChunkZ)];
+            else return loadedChunk.getLocalLight(inChunkKey(inChunkX, inChunkY, inChunkZ));
         }
     }
 
-    public byte[] getLight() {
-        final byte[] light = this.light;
-        if (lightSettled || status == STATUS_POPULATING) {
-            return light;
-        } else {
-            //Update light
-            lightSettled = true;
+    /** Like {@link #getLight(int, int, int)}, but only for blocks of this chunk. */
+    public byte getLocalLight(int inChunkKey) {
+        settleLight();
+        return (byte) ((blockLight.get(inChunkKey) << 4) | skyLight.get(inChunkKey));
+    }
+
+    /** Compute the light of this chunk, if not yet computed. */
+    public void settleLight() {
+        if (markLightSettled()) {
             LightUpdater.updateChunk(this);
-            return light;
         }
     }
 
+    /** Mark the light of this chunk as settled, if it can be. Caller is then responsible for computing the light.
+     * @return true if the light was not settled before and the chunk is not populating */
+    boolean markLightSettled() {
+        if (lightSettled || status == STATUS_POPULATING) return false;
+        lightSettled = true;
+        return true;
+    }
+
+    /** @return true if the light of this chunk has been computed and is kept up to date */
+    boolean isLightSettled() {
+        return lightSettled;
+    }
+
     /** Register entity with this chunk */
     public void addEntity(int entity){
         entities.add(entity);
@@ -412,6 +598,32 @@ public final class Chunk {
         return entityStorage;
     }
 
+    /** Return arrays backing the storages of this chunk to the {@link StoragePool}, when the chunk is discarded for good.
+     * Chunk is left empty, full of air and without any light. It must not be loaded into a world afterwards. */
+    public void recycle() {
+        if (status == STATUS_ACTIVE) throw new IllegalStateException("Active chunk can't be recycled");
+        blocks.clear();
+        skyLight.fill(0, NibbleStorage.SIZE, 0);
+        blockLight.fill(0, NibbleStorage.SIZE, 0);
+        clearOcclusion();
+        nonAirBlockCount = 0;
+    }
+
+    /** @return approximate amount of bytes used by this chunk and its storages, not counting its entities */
+    public int estimateMemoryBytes() {
+        int bytes = 160 + blocks.estimateMemoryBytes() + skyLight.estimateMemoryBytes() + blockLight.estimateMemoryBytes();
+        if (occlusion != UNIFORM_ZERO) {
+            bytes += 16 + occlusion.length;
+        }
+        bytes += 16 + entities.items.length * 4;
+        return bytes;
+    }
+
+    /** @return true if any block was changed after the chunk ended populating */
+    public boolean isModified() {
+        return modified;
+    }
+
     public boolean isEmpty() {
         return status != STATUS_POPULATING && nonAirBlockCount == 0;
     }
@@ -435,7 +647,7 @@ public final class Chunk {
             final int x = random.nextInt(CHUNK_SIZE);
             final int y = random.nextInt(CHUNK_SIZE);
             final int z = random.nextInt(CHUNK_SIZE);
-            blocks[inChunkKey(x,y,z)].randomTick(world, offX + x, offY + y, offZ + z);
+            blocks.get(inChunkKey(x,y,z)).randomTick(world, offX + x, offY + y, offZ + z);
         }
     }
 
@@ -0,0 +1,96 @@
+package darkyenus.blockotron.world;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Copy of blocks, occlusion and light of a {@link Chunk} and light of blocks around it,
+ * which stays the same when the chunk changes.
+ *
+ * Taken on the main thread through {@link #set(Chunk)}, then can be read from any thread,
+ * for example to build the mesh of the chunk without blocking the main thread. Can be reused for other chunks.
+ */
+public final class ChunkSnapshot {
+
+    /** Size of the copied light in each dimension, the chunk and one block on each side */
+    private static final int LIGHT_SIZE = CHUNK_SIZE + 2;
+
+    /** Position of the chunk, in chunk coordinates. Do not modify. */
+    public int x, y, z;
+    private boolean empty = true;
+
+    private final Block[] blocks = new Block[BlockStorage.SIZE];
+    private final byte[] occlusion = new byte[BlockStorage.SIZE];
+    /** Light of blocks of the chunk and of blocks which share a face with it. X changes fastest, then Y then Z. */
+    private final byte[] light = new byte[LIGHT_SIZE * LIGHT_SIZE * LIGHT_SIZE];
+
+    /** Copy the current state of the chunk, computing its light if not yet computed. */
+    public void set(Chunk chunk) {
+        this.x = chunk.x;
+        this.y = chunk.y;
+        this.z = chunk.z;
+        empty = chunk.isEmpty();
+        if (empty) return;
+
+        final BlockStorage chunkBlocks = chunk.blocks;
+        final Block[] blocks = this.blocks;
+        for (int key = 0; key < BlockStorage.SIZE; key++) {
+            blocks[key] = chunkBlocks.get(key);
+        }
+        System.arraycopy(chunk.occlusion, 0, occlusion, 0, BlockStorage.SIZE);
+
+        final byte[] light = this.light;
+        for (int key = 0; key < BlockStorage.SIZE; key++) {
+            light[lightIndex(inChunkKeyToX(key), inChunkKeyToY(key), inChunkKeyToZ(key))] = chunk.getLocalLight(key);
+        }
+
+        // Layers of face-neighbor chunks touching this one
+        for (Side side : Side.values()) {
+            final Chunk neighbor = chunk.getRelativeChunk(side.offX, side.offY, side.offZ);
+            for (int a = 0; a < CHUNK_SIZE; a++) {
+                for (int b = 0; b < CHUNK_SIZE; b++) {
+                    final int lX, lY, lZ;
+                    if (side.offX != 0) {
+                        lX = side.offX > 0 ? CHUNK_SIZE : -1;
+                        lY = a;
+                        lZ = b;
+                    } else if (side.offY != 0) {
+                        lX = a;
+                        lY = side.offY > 0 ? CHUNK_SIZE : -1;
+                        lZ = b;
+                    } else {
+                        lX = a;
+                        lY = b;
+                        lZ = side.offZ > 0 ? CHUNK_SIZE : -1;
+                    }
+                    light[lightIndex(lX, lY, lZ)] = neighbor == null ? -1 : neighbor.getLocalLight(inChunkKey(lX, lY, lZ));
+                }
+            }
+        }
+    }
+
+    /** @see Chunk#isEmpty() */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /** @return block at given in-chunk key, never null */
+    public Block getLocalBlock(int inChunkKey) {
+        return blocks[inChunkKey];
+    }
+
+    /** @return occlusion mask of the block at given in-chunk key
+     * @see Chunk#occlusion */
+    public byte getOcclusion(int inChunkKey) {
+        return occlusion[inChunkKey];
+    }
+
+    /** Like {@link Chunk#getLight(int, int, int)}, but only for blocks of the chunk and blocks which share a face with it.
+     * Coordinates are therefore from -1 to {@link Dimensions#CHUNK_SIZE} and at most one of them may be out of the chunk. */
+    public byte getLight(int inChunkX, int inChunkY, int inChunkZ) {
+        return light[lightIndex(inChunkX, inChunkY, inChunkZ)];
+    }
+
+    private static int lightIndex(int inChunkX, int inChunkY, int inChunkZ) {
+        return ((inChunkZ + 1) * LIGHT_SIZE + (inChunkY + 1)) * LIGHT_SIZE + (inChunkX + 1);
+    }
+}
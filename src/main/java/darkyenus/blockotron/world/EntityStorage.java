@@ -28,12 +28,17 @@ public final class EntityStorage implements Pool.Poolable {
         }
     };
 
+    /** Thread safe, storages are also obtained by chunk generator thread. */
     public static EntityStorage obtain(){
-        return ENTITY_STORAGE_POOL.obtain();
+        synchronized (ENTITY_STORAGE_POOL) {
+            return ENTITY_STORAGE_POOL.obtain();
+        }
     }
 
     public static void free(EntityStorage entityStorage){
-        ENTITY_STORAGE_POOL.free(entityStorage);
+        synchronized (ENTITY_STORAGE_POOL) {
+            ENTITY_STORAGE_POOL.free(entityStorage);
+        }
     }
 
     private final ResizableOutput storedEntities = new ResizableOutput(1 << 10);
@@ -128,6 +133,11 @@ public final class EntityStorage implements Pool.Poolable {
         storedEntities.clear();
     }
 
+    /** @return true if no entities are stored */
+    public boolean isEmpty() {
+        return storedEntities.position() == 0;
+    }
+
     public static void saveAndFreeStorage(EntityStorage storage, Output out){
         if(storage == null) {
             out.writeInt(-1);
@@ -0,0 +1,94 @@
+package darkyenus.blockotron.world;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import darkyenus.blockotron.world.blocks.Air;
+
+import java.util.Arrays;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Height of the highest non-air block for each x, y position of a chunk column.
+ * Shared by all chunks of the column and kept up to date by {@link Chunk#setLocalBlock(int, int, int, Block)}.
+ * Z coordinates in this class are in-column, that is, from 0 to CHUNK_LAYERS * CHUNK_SIZE (excl).
+ */
+public final class Heightmap {
+
+    /** Z of the top non-air block, -1 if there is none. Indexed by inChunkY * CHUNK_SIZE + inChunkX. */
+    private final short[] heights = new short[CHUNK_SIZE * CHUNK_SIZE];
+    /** Chunks of the column, by their Z, null if the chunk does not exist (= is all air) */
+    private final Chunk[] chunks = new Chunk[CHUNK_LAYERS];
+
+    public Heightmap() {
+        Arrays.fill(heights, (short) -1);
+    }
+
+    private static int index(int inChunkX, int inChunkY) {
+        return (inChunkY << CHUNK_SIZE_SHIFT) | inChunkX;
+    }
+
+    /** @return Z coordinate of first block that is not air when going from top on given coordinates.
+     * -1 if all blocks in that column are air. */
+    public int getTopNonAirBlockZ(int inChunkX, int inChunkY) {
+        return heights[index(inChunkX, inChunkY)];
+    }
+
+    /** Called by the chunk when it is created. */
+    void addChunk(Chunk chunk) {
+        if (chunk.z >= 0 && chunk.z < CHUNK_LAYERS) {
+            chunks[chunk.z] = chunk;
+        }
+    }
+
+    /** Called by the chunk of this column when a block changes. */
+    void blockChanged(int inChunkX, int inChunkY, int inColumnZ, Block to) {
+        final int index = index(inChunkX, inChunkY);
+        final int height = heights[index];
+        if (to != Air.AIR) {
+            if (inColumnZ > height) {
+                heights[index] = (short) inColumnZ;
+            }
+        } else if (inColumnZ == height) {
+            heights[index] = (short) findTopNonAirBlockZ(inChunkX, inChunkY, inColumnZ - 1);
+        }
+    }
+
+    /** Scan the column downwards for the first non-air block. */
+    private int findTopNonAirBlockZ(int inChunkX, int inChunkY, int fromColumnZ) {
+        for (int chunkZ = fromColumnZ >> CHUNK_SIZE_SHIFT; chunkZ >= 0; chunkZ--) {
+            final Chunk chunk = chunks[chunkZ];
+            if (chunk == null) continue;
+            final BlockStorage blocks = chunk.blocks;
+            if (blocks.isUniform() && blocks.paletteEntry(0) == Air.AIR) continue;
+
+            final int topInChunkZ = chunkZ == fromColumnZ >> CHUNK_SIZE_SHIFT ? fromColumnZ & CHUNK_SIZE_MASK : CHUNK_SIZE - 1;
+            for (int inChunkZ = topInChunkZ; inChunkZ >= 0; inChunkZ--) {
+                if (blocks.get(inChunkKey(inChunkX, inChunkY, inChunkZ)) != Air.AIR) {
+                    return (chunkZ << CHUNK_SIZE_SHIFT) + inChunkZ;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Recompute whole heightmap from the blocks of the chunks, when they were changed without notifying it. */
+    public void recompute() {
+        for (int y = 0; y < CHUNK_SIZE; y++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                heights[index(x, y)] = (short) findTopNonAirBlockZ(x, y, (CHUNK_LAYERS << CHUNK_SIZE_SHIFT) - 1);
+            }
+        }
+    }
+
+    public void save(Output output) {
+        output.writeShorts(heights);
+    }
+
+    public void load(Input input) {
+        final short[] heights = this.heights;
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = input.readShort();
+        }
+    }
+}
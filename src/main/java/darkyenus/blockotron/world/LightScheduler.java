@@ -0,0 +1,138 @@
+package darkyenus.blockotron.world;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.Pool;
+
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Settles light of many chunks at once, in parallel.
+ *
+ * Light update of a chunk may read and write chunks, which are at most one chunk away horizontally,
+ * but any amount of chunks above or below it, because sky light does not diminish when going down.
+ * Chunks are therefore grouped by their column and columns are split into nine classes by (x mod 3, y mod 3).
+ * Neighborhoods of columns of the same class never overlap, so all columns of one class are lit in parallel,
+ * one class after another. Chunks of each column are lit from top to bottom, which is the cheapest order.
+ *
+ * Results are the same as if the chunks were lit one by one through {@link Chunk#settleLight()}.
+ */
+public final class LightScheduler {
+
+    private final ForkJoinPool pool;
+
+    /** Tasks of each class */
+    private final Array<Array<ColumnTask>> classes = new Array<>(true, 9);
+    /** Task of each column, by column key */
+    private final LongMap<ColumnTask> columns = new LongMap<>();
+
+    private final Array<Chunk> changedChunks = new Array<>(false, 64, Chunk.class);
+
+    private final Pool<ColumnTask> columnTaskPool = new Pool<ColumnTask>() {
+        @Override
+        protected ColumnTask newObject() {
+            return new ColumnTask();
+        }
+    };
+
+    public LightScheduler(ForkJoinPool pool) {
+        this.pool = pool;
+        for (int i = 0; i < 9; i++) {
+            classes.add(new Array<>(false, 16, ColumnTask.class));
+        }
+    }
+
+    /** Settle light of given loaded chunks (those which are already settled are skipped) and notify observers
+     * of their world about chunks whose light has changed as a side effect.
+     * Blocks until done. World must not be modified until then. */
+    public void settle(World world, Array<Chunk> chunks) {
+        if (chunks.size == 0) return;
+
+        for (Chunk chunk : chunks) {
+            final long key = Dimensions.chunkKey(chunk.x, chunk.y, 0);
+            ColumnTask task = columns.get(key);
+            if (task == null) {
+                task = columnTaskPool.obtain();
+                columns.put(key, task);
+                classes.get(Math.floorMod(chunk.x, 3) * 3 + Math.floorMod(chunk.y, 3)).add(task);
+            }
+            task.chunks.add(chunk);
+        }
+
+        for (Array<ColumnTask> tasks : classes) {
+            if (tasks.size == 0) continue;
+            if (tasks.size == 1) {
+                tasks.items[0].compute();
+            } else {
+                pool.invoke(new ClassTask(tasks));
+            }
+        }
+
+        for (Array<ColumnTask> tasks : classes) {
+            for (ColumnTask task : tasks) {
+                final Array<Chunk> taskChanged = task.changedChunks;
+                for (int i = 0; i < taskChanged.size; i++) {
+                    final Chunk chunk = taskChanged.items[i];
+                    if (!changedChunks.contains(chunk, true)) {
+                        changedChunks.add(chunk);
+                    }
+                }
+                task.chunks.clear();
+                task.changedChunks.clear();
+                task.reinitialize();
+                columnTaskPool.free(task);
+            }
+            tasks.clear();
+        }
+        columns.clear();
+
+        final Array<Chunk> changedChunks = this.changedChunks;
+        for (WorldObserver observer : world.observers()) {
+            for (int i = 0; i < changedChunks.size; i++) {
+                observer.lightChanged(changedChunks.items[i]);
+            }
+        }
+        changedChunks.clear();
+    }
+
+    private static final Comparator<Chunk> TOP_TO_BOTTOM = (a, b) -> b.z - a.z;
+
+    /** Lights chunks of a single column */
+    private static final class ColumnTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Array<Chunk> chunks = new Array<>(false, Dimensions.CHUNK_LAYERS, Chunk.class);
+        final Array<Chunk> changedChunks = new Array<>(false, 16, Chunk.class);
+
+        @Override
+        protected void compute() {
+            chunks.sort(TOP_TO_BOTTOM);
+            LightUpdater.settleChunks(chunks, changedChunks);
+        }
+    }
+
+    /** Lights all columns of a class in parallel */
+    private static final class ClassTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Array<ColumnTask> tasks;
+
+        ClassTask(Array<ColumnTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            final ColumnTask[] items = tasks.items;
+            for (int i = 1; i < tasks.size; i++) {
+                items[i].fork();
+            }
+            items[0].compute();
+            for (int i = 1; i < tasks.size; i++) {
+                items[i].join();
+            }
+        }
+    }
+}
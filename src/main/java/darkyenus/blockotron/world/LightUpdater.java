@@ -1,184 +1,589 @@
 package darkyenus.blockotron.world;
 
-import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Bits;
+import com.badlogic.gdx.utils.LongArray;
 import com.badlogic.gdx.utils.Pool;
-import darkyenus.blockotron.world.blocks.Air;
 
 import static darkyenus.blockotron.world.Dimensions.*;
 
 /**
+ * Incremental light engine.
  *
+ * Works in two breadth-first phases. Removal phase darkens cells which were lit by a light that is no longer there
+ * and collects cells which are lit from elsewhere. Propagation phase then spreads light from these cells and
+ * from new light sources. Only cells whose light actually changes are visited and the light freely crosses chunk
+ * borders, so no whole chunk has to be recomputed after a change.
+ *
+ * Sky light and block light are updated separately, by the same phases, each in its own {@link NibbleStorage}.
+ * Sky light decreases by one with each step, except when going down, where it stays the same.
+ * Chunks without loaded and settled chunk above them are considered to be under open sky.
+ * Block light starts at {@link Block#lightEmission} of emitting blocks and decreases by one with each step,
+ * so it never reaches further than the emission level of its brightest emitter.
+ *
+ * Only loaded chunks with settled light take part, other chunks are not read nor written.
  */
 final class LightUpdater {
-    private static final int CHUNK_COUNT = 3*3*3;
-    private static final int BLOCK_COUNT = 3*CHUNK_SIZE;
 
-    private final Chunk[] chunks = new Chunk[CHUNK_COUNT];
-    private final byte[][] lights = new byte[CHUNK_COUNT][];
-    private final IntArray updateStack = new IntArray(false, 512);
-    private boolean updateChunkBelow = false;
+    private static final int MAX_LIGHT = 15;
+
+    /** Queues of packed positions and light values, see {@link #pack(int, int, int, int)} */
+    private final LongArray removalQueue = new LongArray(true, 1024);
+    private final LongArray propagationQueue = new LongArray(true, 1024);
+
+    /** Chunks whose light has changed during this update */
+    private final Array<Chunk> changedChunks = new Array<>(false, 16, Chunk.class);
+    /** Chunk whose light is being settled, it is not reported as changed */
+    private Chunk settlingChunk;
 
-    private static final int MASK = 0b11_1111;
-    private static final int SHIFT = 6;
+    private World world;
+    /** Last chunk returned by {@link #chunkAt(int, int, int)}, most lookups hit the same chunk */
+    private Chunk cachedChunk;
 
-    private static final int CENTER = 13;
-    private static final int X = 1;
-    private static final int Y = 3;
-    private static final int Z = 9;
+    /** For each column of settling chunk, lowest in-chunk Z to which the sky light falls straight down,
+     * {@link Dimensions#CHUNK_SIZE} if none. Indexed by inChunkY * CHUNK_SIZE + inChunkX. */
+    private final int[] skyBottom = new int[CHUNK_SIZE * CHUNK_SIZE];
+
+    /** Light being updated, true = sky light, false = block light */
+    private boolean sky;
 
     private LightUpdater() {
     }
 
+    /** Compute the light of chunk, whose light has just been settled. */
     public static void updateChunk(Chunk chunk){
-        final LightUpdater updater = LIGHT_UPDATER_POOL.obtain();
-        updater.update(chunk);
-        LIGHT_UPDATER_POOL.free(updater);
+        final LightUpdater updater = obtain();
+        updater.settle(chunk);
+        updater.end(null);
+        free(updater);
     }
 
-    public static void updateChunk(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ){
-        final LightUpdater updater = LIGHT_UPDATER_POOL.obtain();
-        updater.update(chunk, inChunkX, inChunkY, inChunkZ);
-        LIGHT_UPDATER_POOL.free(updater);
+    /** Settle and compute the light of all given chunks, which are not yet settled, in given order.
+     * Observers are not notified, chunks whose light has changed (other than the settled ones) are added to changedChunks.
+     * Can be called from any thread, as long as no other thread accesses the chunks within one chunk from given chunks
+     * and the chunks directly above or below them, and the world does not load or unload any chunks in the meantime.
+     * @see LightScheduler */
+    static void settleChunks(Array<Chunk> chunks, Array<Chunk> changedChunks) {
+        final LightUpdater updater = obtain();
+        for (Chunk chunk : chunks) {
+            if (chunk.markLightSettled()) {
+                updater.settle(chunk);
+                updater.end(changedChunks);
+            }
+        }
+        free(updater);
     }
 
-    /** Entry point, updates the whole chunk */
-    private void update(Chunk chunk){
-        setup(chunk);
-        for (int x = CHUNK_SIZE; x < CHUNK_SIZE + CHUNK_SIZE; x++) {
-            for (int y = CHUNK_SIZE; y < CHUNK_SIZE + CHUNK_SIZE; y++) {
-                queue(x, y, CHUNK_SIZE + CHUNK_SIZE - 1);
+    /** Update light around changed blocks of all given chunks at once, see {@link Chunk#lightDirtyBlocks()}. */
+    static void updateChunks(Array<Chunk> chunks) {
+        if (chunks.size == 0) return;
+        final LightUpdater updater = obtain();
+        updater.begin(chunks.first());
+
+        updater.channel(true);
+        for (Chunk chunk : chunks) {
+            final Bits inChunkKeys = chunk.lightDirtyBlocks();
+            if (inChunkKeys == null) continue;
+            for (int key = inChunkKeys.nextSetBit(0); key != -1; key = inChunkKeys.nextSetBit(key + 1)) {
+                updater.queueChangedSkyBlock(chunk, inChunkKeyToX(key), inChunkKeyToY(key), inChunkKeyToZ(key));
             }
         }
-        process();
+        updater.process();
+
+        updater.channel(false);
+        for (Chunk chunk : chunks) {
+            final Bits inChunkKeys = chunk.lightDirtyBlocks();
+            if (inChunkKeys == null) continue;
+            for (int key = inChunkKeys.nextSetBit(0); key != -1; key = inChunkKeys.nextSetBit(key + 1)) {
+                updater.queueChangedEmitterBlock(chunk, inChunkKeyToX(key), inChunkKeyToY(key), inChunkKeyToZ(key));
+            }
+        }
+        updater.process();
+
+        updater.end(null);
+        free(updater);
     }
 
-    private void update(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ){
-        setup(chunk);
-        queue(CHUNK_SIZE + inChunkX, CHUNK_SIZE + inChunkY, CHUNK_SIZE + inChunkZ);
-        process();
+    /** Pack world coordinates and light value into a queue entry.
+     * Bits: XXXX (26 bits) YYYY (26 bits) ZZZZ (8 bits) VVVV (4 bits) */
+    private static long pack(int x, int y, int z, int value) {
+        return ((long) (x & 0x3FF_FFFF) << 38) | ((long) (y & 0x3FF_FFFF) << 12) | ((z & 0xFF) << 4) | (value & 0xF);
     }
 
-    private void queue(int x, int y, int z){
-        if(x < 0 || x >= BLOCK_COUNT || y < 0 || y >= BLOCK_COUNT || z >= BLOCK_COUNT) return;
-        if(z < 0){
-            updateChunkBelow = true;
-            return;
+    private static int unpackX(long entry) {
+        return (int) (entry >> 38);
+    }
+
+    private static int unpackY(long entry) {
+        return (int) ((entry << 26) >> 38);
+    }
+
+    private static int unpackZ(long entry) {
+        return (int) (entry >>> 4) & 0xFF;
+    }
+
+    private static int unpackValue(long entry) {
+        return (int) entry & 0xF;
+    }
+
+    private void begin(Chunk chunk) {
+        world = chunk.world;
+        cachedChunk = chunk;
+        settlingChunk = null;
+        removalQueue.clear();
+        propagationQueue.clear();
+        changedChunks.clear();
+    }
+
+    private void channel(boolean sky) {
+        this.sky = sky;
+    }
+
+    /** @return loaded chunk with settled light which contains given world coordinates, or null */
+    private Chunk chunkAt(int x, int y, int z) {
+        if (z < 0 || z >= CHUNK_LAYERS * CHUNK_SIZE) return null;
+        final int chunkX = x >> CHUNK_SIZE_SHIFT;
+        final int chunkY = y >> CHUNK_SIZE_SHIFT;
+        final int chunkZ = z >> CHUNK_SIZE_SHIFT;
+        final Chunk cached = this.cachedChunk;
+        if (cached != null && cached.x == chunkX && cached.y == chunkY && cached.z == chunkZ) {
+            return cached;
         }
-        updateStack.add(((x & MASK) << (SHIFT + SHIFT)) | ((y & MASK) << (SHIFT)) | (z & MASK));
+        final Chunk chunk = world.getLoadedChunk(chunkX, chunkY, chunkZ);
+        if (chunk == null || !chunk.isLightSettled()) return null;
+        this.cachedChunk = chunk;
+        return chunk;
     }
 
-    private void setup(Chunk center) {
-        updateChunkBelow = false;
-        updateStack.clear();
-        for (int xO = -1; xO <= 1; xO++) {
-            for (int yO = -1; yO <= 1; yO++) {
-                for (int zO = -1; zO <= 1; zO++) {
-                    final Chunk loadedChunk = center.world.getLoadedChunk(center.x + xO, center.y + yO, center.z + zO);
-                    final int key = CENTER + xO * X + yO * Y + zO * Z;
-                    chunks[key] = loadedChunk;
-                    lights[key] = loadedChunk == null ? null : loadedChunk.getLight();
-                }
-            }
+    /** @return light storage of the current channel */
+    private NibbleStorage storage(Chunk chunk) {
+        return sky ? chunk.skyLight : chunk.blockLight;
+    }
+
+    /** @return light of the current channel */
+    private int light(Chunk chunk, int x, int y, int z) {
+        return storage(chunk).get(inChunkKey(x, y, z));
+    }
+
+    /** Set light of the current channel */
+    private void setLight(Chunk chunk, int x, int y, int z, int value) {
+        storage(chunk).set(inChunkKey(x, y, z), value);
+        if (chunk != settlingChunk && !changedChunks.contains(chunk, true)) {
+            changedChunks.add(chunk);
         }
     }
 
-    private int chunkKey(int x, int y, int z){
-        return CENTER + ((x-CHUNK_SIZE) >> CHUNK_SIZE_SHIFT) * X
-                + ((y-CHUNK_SIZE) >> CHUNK_SIZE_SHIFT) * Y
-                + ((z-CHUNK_SIZE) >> CHUNK_SIZE_SHIFT) * Z;
+    private static Block block(Chunk chunk, int x, int y, int z) {
+        return chunk.blocks.get(inChunkKey(x, y, z));
     }
 
-    private byte lightValue(int x, int y, int z, byte def){
-        final int chunkKey = chunkKey(x, y, z);
-        if(chunkKey < 0 || chunkKey >= CHUNK_COUNT) return def;
+    /** @return true if there is no chunk with settled light above given chunk, so its top is lit by the sky */
+    private static boolean isUnderOpenSky(Chunk chunk) {
+        if (chunk.z + 1 >= CHUNK_LAYERS) return true;
+        final Chunk above = chunk.world.getLoadedChunk(chunk.x, chunk.y, chunk.z + 1);
+        return above == null || !above.isLightSettled();
+    }
 
-        final byte[] light = lights[chunkKey];
-        if(light == null) return def;
-        else return light[inChunkKey(x, y, z)];
+    /** @return true if the cell is in the top layer of a chunk under open sky, so it is always fully lit when transparent */
+    private static boolean isSkySource(Chunk chunk, int z) {
+        return (z & CHUNK_SIZE_MASK) == CHUNK_SIZE - 1 && isUnderOpenSky(chunk);
     }
 
-    private Block block(int x, int y, int z){
-        final int chunkKey = chunkKey(x, y, z);
-        if(chunkKey < 0 || chunkKey >= CHUNK_COUNT) return Air.AIR;
+    /** @return light which the cell has on its own, without any light from the neighbors, in current channel */
+    private int sourceLight(Chunk chunk, int x, int y, int z) {
+        if (sky) {
+            return isSkySource(chunk, z) && block(chunk, x, y, z).isTransparent() ? MAX_LIGHT : 0;
+        } else {
+            return block(chunk, x, y, z).lightEmission;
+        }
+    }
 
-        final Chunk chunk = chunks[chunkKey];
-        if(chunk == null) return Air.AIR;
-        else return chunk.blocks[inChunkKey(x, y, z)];
+    /** Queue the cell to spread its light, if it has any. */
+    private void queuePropagation(int x, int y, int z) {
+        final Chunk chunk = chunkAt(x, y, z);
+        if (chunk == null) return;
+        final int light = light(chunk, x, y, z);
+        if (light != 0) {
+            propagationQueue.add(pack(x, y, z, light));
+        }
     }
 
-    private byte skyLightValue(int x, int y, int z){
-        return (byte) (lightValue(x, y, z, (byte)-1) & 0b1111);
+    /** Queue the neighbors of the cell to spread their light, possibly into the cell. */
+    private void queueNeighborPropagation(int x, int y, int z) {
+        queuePropagation(x + 1, y, z);
+        queuePropagation(x - 1, y, z);
+        queuePropagation(x, y + 1, z);
+        queuePropagation(x, y - 1, z);
+        queuePropagation(x, y, z + 1);
+        queuePropagation(x, y, z - 1);
     }
 
-    private void setLightValue(int x, int y, int z, byte lightValue){
-        final int chunkKey = chunkKey(x, y, z);
-        if(chunkKey < 0 || chunkKey >= CHUNK_COUNT) return;
+    /** Queue the sky light changes caused by the change of block at given in-chunk coordinates. */
+    private void queueChangedSkyBlock(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ) {
+        final int x = (chunk.x << CHUNK_SIZE_SHIFT) + inChunkX;
+        final int y = (chunk.y << CHUNK_SIZE_SHIFT) + inChunkY;
+        final int z = (chunk.z << CHUNK_SIZE_SHIFT) + inChunkZ;
+        final int light = light(chunk, x, y, z);
 
-        final byte[] light = lights[chunkKey];
-        if(light == null) return;
-        final int key = inChunkKey(x, y, z);
-        final byte old = light[key];
-        if(old != lightValue){
-            light[key] = lightValue;
-            queue(x+1, y, z);
-            queue(x-1, y, z);
-            queue(x, y+1, z);
-            queue(x, y-1, z);
-            queue(x, y, z+1);
-            queue(x, y, z-1);
+        if (!block(chunk, x, y, z).isTransparent()) {
+            if (light != 0) {
+                setLight(chunk, x, y, z, 0);
+                removalQueue.add(pack(x, y, z, light));
+            }
+        } else {
+            if (light != MAX_LIGHT && isSkySource(chunk, z)) {
+                setLight(chunk, x, y, z, MAX_LIGHT);
+                propagationQueue.add(pack(x, y, z, MAX_LIGHT));
+            }
+            queueNeighborPropagation(x, y, z);
         }
     }
 
-    private int max(int b1, int b2, int b3, int b4, int b5, int b6){
-        if(b1 >= b2 && b1 >= b3 && b1 >= b4 && b1 >= b5 && b1 >= b6){
-            return b1;
+    /** Queue the block light changes caused by the change of block at given in-chunk coordinates. */
+    private void queueChangedEmitterBlock(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ) {
+        final int x = (chunk.x << CHUNK_SIZE_SHIFT) + inChunkX;
+        final int y = (chunk.y << CHUNK_SIZE_SHIFT) + inChunkY;
+        final int z = (chunk.z << CHUNK_SIZE_SHIFT) + inChunkZ;
+        final Block block = block(chunk, x, y, z);
+        final int light = light(chunk, x, y, z);
+        final int emission = block.lightEmission;
+
+        if (light != 0 && (light > emission || !block.isTransparent()) && !isLitByNeighbors(x, y, z, light, block)) {
+            // Light of the cell came from a removed emitter or can no longer pass through
+            setLight(chunk, x, y, z, 0);
+            removalQueue.add(pack(x, y, z, light));
+            if (emission != 0) {
+                setLight(chunk, x, y, z, emission);
+                propagationQueue.add(pack(x, y, z, emission));
+            }
+        } else {
+            if (emission > light) {
+                setLight(chunk, x, y, z, emission);
+                propagationQueue.add(pack(x, y, z, emission));
+            }
+            if (block.isTransparent()) {
+                queueNeighborPropagation(x, y, z);
+            }
         }
-        if(b2 >= b3 && b2 >= b4 && b2 >= b5 && b2 >= b6){
-            return b2;
+    }
+
+    /** @return true if the transparent block could have its block light from its neighbors */
+    private boolean isLitByNeighbors(int x, int y, int z, int light, Block block) {
+        if (!block.isTransparent()) return false;
+        final int neighborLight = light + 1;
+        return lightAtLeast(x + 1, y, z, neighborLight)
+                || lightAtLeast(x - 1, y, z, neighborLight)
+                || lightAtLeast(x, y + 1, z, neighborLight)
+                || lightAtLeast(x, y - 1, z, neighborLight)
+                || lightAtLeast(x, y, z + 1, neighborLight)
+                || lightAtLeast(x, y, z - 1, neighborLight);
+    }
+
+    private boolean lightAtLeast(int x, int y, int z, int light) {
+        final Chunk chunk = chunkAt(x, y, z);
+        return chunk != null && light(chunk, x, y, z) >= light;
+    }
+
+    /** Compute sky light of the chunk, whose light has just been settled, and update sky light of its neighborhood. */
+    private void settleSky(Chunk chunk) {
+        channel(true);
+
+        final int baseX = chunk.x << CHUNK_SIZE_SHIFT;
+        final int baseY = chunk.y << CHUNK_SIZE_SHIFT;
+        final int baseZ = chunk.z << CHUNK_SIZE_SHIFT;
+        final int topZ = baseZ + CHUNK_SIZE - 1;
+
+        // Light from above
+        final boolean openSky = isUnderOpenSky(chunk);
+        fillSkyColumns(chunk, openSky);
+        if (!openSky) {
+            for (int y = baseY; y < baseY + CHUNK_SIZE; y++) {
+                for (int x = baseX; x < baseX + CHUNK_SIZE; x++) {
+                    if (skyBottom[((y - baseY) << CHUNK_SIZE_SHIFT) | (x - baseX)] == CHUNK_SIZE) {
+                        queuePropagation(x, y, topZ + 1);
+                    }
+                }
+            }
         }
-        if(b3 >= b4 && b3 >= b5 && b3 >= b6){
-            return b3;
+
+        queueBorderPropagation(chunk, false);
+        propagate();
+
+        // Top of the chunk below was lit by the open sky, which is now covered by this chunk
+        final int belowZ = baseZ - 1;
+        final Chunk below = chunkAt(baseX, baseY, belowZ);
+        if (below != null) {
+            for (int y = baseY; y < baseY + CHUNK_SIZE; y++) {
+                for (int x = baseX; x < baseX + CHUNK_SIZE; x++) {
+                    if (light(below, x, y, belowZ) == MAX_LIGHT && light(chunk, x, y, baseZ) != MAX_LIGHT) {
+                        setLight(below, x, y, belowZ, 0);
+                        removalQueue.add(pack(x, y, belowZ, MAX_LIGHT));
+                    }
+                }
+            }
         }
-        if(b4 >= b5 && b4 >= b6){
-            return b4;
+        process();
+    }
+
+    /** Light the cells of settling chunk, which have full sky light straight above them, without going through the queue.
+     * Such cells of each column are all cells from the top down to the first opaque block. Cells above the top non-air
+     * block of the column (according to the heightmap) are known to be air and are not even checked.
+     * Only those cells which may light other cells than the one below them are then queued for propagation.
+     * Results are saved in {@link #skyBottom}. */
+    private void fillSkyColumns(Chunk chunk, boolean openSky) {
+        final int baseX = chunk.x << CHUNK_SIZE_SHIFT;
+        final int baseY = chunk.y << CHUNK_SIZE_SHIFT;
+        final int baseZ = chunk.z << CHUNK_SIZE_SHIFT;
+        final BlockStorage blocks = chunk.blocks;
+        final Heightmap heightmap = chunk.heightmap;
+        final Chunk above = openSky ? null : chunkAt(baseX, baseY, baseZ + CHUNK_SIZE);
+        final int[] skyBottom = this.skyBottom;
+
+        int fullLayersFrom = 0;
+        for (int y = 0; y < CHUNK_SIZE; y++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                int bottom = CHUNK_SIZE;
+                if (above == null || light(above, x, y, 0) == MAX_LIGHT) {
+                    final int topNonAir = heightmap.getTopNonAirBlockZ(x, y) - baseZ;
+                    if (topNonAir < CHUNK_SIZE - 1) {
+                        bottom = Math.max(topNonAir + 1, 0);
+                    }
+                    while (bottom > 0 && blocks.get(inChunkKey(x, y, bottom - 1)).isTransparent()) {
+                        bottom--;
+                    }
+                }
+                skyBottom[(y << CHUNK_SIZE_SHIFT) | x] = bottom;
+                fullLayersFrom = Math.max(fullLayersFrom, bottom);
+            }
         }
-        if(b5 >= b6){
-            return b5;
+
+        // Fully lit chunk stays uniform, without allocating its storage
+        final NibbleStorage light = chunk.skyLight;
+        if (fullLayersFrom < CHUNK_SIZE) {
+            light.fill(inChunkKey(0, 0, fullLayersFrom), NibbleStorage.SIZE, MAX_LIGHT);
+        }
+        for (int y = 0; y < CHUNK_SIZE; y++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                for (int z = skyBottom[(y << CHUNK_SIZE_SHIFT) | x]; z < fullLayersFrom; z++) {
+                    light.set(inChunkKey(x, y, z), MAX_LIGHT);
+                }
+            }
+        }
+
+        // Queue the sides of sky columns, which face darker cells
+        final int outsideEast = chunkAt(baseX + CHUNK_SIZE, baseY, baseZ) == null ? 0 : CHUNK_SIZE;
+        final int outsideWest = chunkAt(baseX - 1, baseY, baseZ) == null ? 0 : CHUNK_SIZE;
+        final int outsideNorth = chunkAt(baseX, baseY + CHUNK_SIZE, baseZ) == null ? 0 : CHUNK_SIZE;
+        final int outsideSouth = chunkAt(baseX, baseY - 1, baseZ) == null ? 0 : CHUNK_SIZE;
+        final boolean lightBelow = chunkAt(baseX, baseY, baseZ - 1) != null;
+        for (int y = 0; y < CHUNK_SIZE; y++) {
+            for (int x = 0; x < CHUNK_SIZE; x++) {
+                final int bottom = skyBottom[(y << CHUNK_SIZE_SHIFT) | x];
+                if (bottom == CHUNK_SIZE) continue;
+                final int east = x == CHUNK_SIZE - 1 ? outsideEast : skyBottom[(y << CHUNK_SIZE_SHIFT) | (x + 1)];
+                final int west = x == 0 ? outsideWest : skyBottom[(y << CHUNK_SIZE_SHIFT) | (x - 1)];
+                final int north = y == CHUNK_SIZE - 1 ? outsideNorth : skyBottom[((y + 1) << CHUNK_SIZE_SHIFT) | x];
+                final int south = y == 0 ? outsideSouth : skyBottom[((y - 1) << CHUNK_SIZE_SHIFT) | x];
+                final int queueTo = Math.max(Math.max(east, west), Math.max(north, south));
+
+                int z = bottom;
+                if (z == 0 && lightBelow && queueTo == 0) {
+                    propagationQueue.add(pack(baseX + x, baseY + y, baseZ, MAX_LIGHT));
+                }
+                for (; z < queueTo; z++) {
+                    propagationQueue.add(pack(baseX + x, baseY + y, baseZ + z, MAX_LIGHT));
+                }
+            }
         }
-        return b6;
     }
 
-    private void process(){
-        final IntArray updateStack = this.updateStack;
-        while(updateStack.size != 0){
-            final int key = updateStack.pop();
-            final int x = (key >> SHIFT + SHIFT) & MASK;
-            final int y = (key >> SHIFT) & MASK;
-            final int z = key & MASK;
+    /** Compute block light of the chunk, whose light has just been settled, and update block light of its neighborhood. */
+    private void settleBlock(Chunk chunk) {
+        channel(false);
 
-            final Block block = block(x, y, z);
-            if(block.isTransparent()){
-                final int sky = max(
-                        skyLightValue(x + 1, y, z) - 1,
-                        skyLightValue(x - 1, y, z) - 1,
-                        skyLightValue(x, y + 1, z) - 1,
-                        skyLightValue(x, y - 1, z) - 1,
-                        skyLightValue(x, y, z - 1) - 1,
-                        skyLightValue(x, y, z + 1));
-                setLightValue(x, y, z, (byte)sky);
-            } else {
-                setLightValue(x, y, z, (byte)0);
+        final BlockStorage blocks = chunk.blocks;
+        boolean hasEmitters = false;
+        for (int i = 0; i < blocks.paletteSize(); i++) {
+            if (blocks.paletteEntry(i).isLightEmitter()) {
+                hasEmitters = true;
+                break;
+            }
+        }
+        if (hasEmitters) {
+            final int baseX = chunk.x << CHUNK_SIZE_SHIFT;
+            final int baseY = chunk.y << CHUNK_SIZE_SHIFT;
+            final int baseZ = chunk.z << CHUNK_SIZE_SHIFT;
+            for (int key = 0; key < BlockStorage.SIZE; key++) {
+                final int emission = blocks.get(key).lightEmission;
+                if (emission != 0) {
+                    final int x = baseX + inChunkKeyToX(key);
+                    final int y = baseY + inChunkKeyToY(key);
+                    final int z = baseZ + inChunkKeyToZ(key);
+                    setLight(chunk, x, y, z, emission);
+                    propagationQueue.add(pack(x, y, z, emission));
+                }
             }
         }
 
-        if(updateChunkBelow){
-            final Chunk below = chunks[CENTER - Z];
-            if(below != null){
-                update(below);
+        queueBorderPropagation(chunk, true);
+        process();
+    }
+
+    /** Queue cells of settled neighbor chunks, which touch given chunk, to spread their light into it. */
+    private void queueBorderPropagation(Chunk chunk, boolean includeTop) {
+        final int baseX = chunk.x << CHUNK_SIZE_SHIFT;
+        final int baseY = chunk.y << CHUNK_SIZE_SHIFT;
+        final int baseZ = chunk.z << CHUNK_SIZE_SHIFT;
+        for (int a = 0; a < CHUNK_SIZE; a++) {
+            for (int b = 0; b < CHUNK_SIZE; b++) {
+                queuePropagation(baseX - 1, baseY + a, baseZ + b);
+                queuePropagation(baseX + CHUNK_SIZE, baseY + a, baseZ + b);
+                queuePropagation(baseX + a, baseY - 1, baseZ + b);
+                queuePropagation(baseX + a, baseY + CHUNK_SIZE, baseZ + b);
+                queuePropagation(baseX + a, baseY + b, baseZ - 1);
+                if (includeTop) {
+                    queuePropagation(baseX + a, baseY + b, baseZ + CHUNK_SIZE);
+                }
             }
         }
     }
 
+    private void process() {
+        remove();
+        propagate();
+    }
+
+    /** Removal phase. Darken cells lit by the removed light, queue cells lit from elsewhere for propagation. */
+    private void remove() {
+        final LongArray removalQueue = this.removalQueue;
+        final int downStep = sky ? 0 : 1;
+        for (int i = 0; i < removalQueue.size; i++) {
+            final long entry = removalQueue.items[i];
+            final int x = unpackX(entry);
+            final int y = unpackY(entry);
+            final int z = unpackZ(entry);
+            final int light = unpackValue(entry);
+
+            removeNeighbor(x + 1, y, z, light - 1);
+            removeNeighbor(x - 1, y, z, light - 1);
+            removeNeighbor(x, y + 1, z, light - 1);
+            removeNeighbor(x, y - 1, z, light - 1);
+            removeNeighbor(x, y, z + 1, light - 1);
+            removeNeighbor(x, y, z - 1, light - downStep);
+        }
+        removalQueue.clear();
+    }
+
+    /** @param removedLight light which the neighbor could have got from the removed cell */
+    private void removeNeighbor(int x, int y, int z, int removedLight) {
+        final Chunk chunk = chunkAt(x, y, z);
+        if (chunk == null) return;
+        final int light = light(chunk, x, y, z);
+        if (light == 0) return;
+
+        if (light <= removedLight) {
+            final int sourceLight = sourceLight(chunk, x, y, z);
+            if (sourceLight < light) {
+                setLight(chunk, x, y, z, sourceLight);
+                removalQueue.add(pack(x, y, z, light));
+            }
+            if (sourceLight != 0) {
+                propagationQueue.add(pack(x, y, z, sourceLight));
+            }
+        } else {
+            // Lit from elsewhere, will light the darkened cells again
+            propagationQueue.add(pack(x, y, z, light));
+        }
+    }
+
+    /** Propagation phase. Spread the light from queued cells to their neighbors. */
+    private void propagate() {
+        final LongArray propagationQueue = this.propagationQueue;
+        final int downStep = sky ? 0 : 1;
+        for (int i = 0; i < propagationQueue.size; i++) {
+            final long entry = propagationQueue.items[i];
+            final int x = unpackX(entry);
+            final int y = unpackY(entry);
+            final int z = unpackZ(entry);
+            final Chunk chunk = chunkAt(x, y, z);
+            if (chunk == null) continue;
+            // Value may have changed since the cell was queued
+            final int light = light(chunk, x, y, z);
+            if (light == 0) continue;
+
+            propagateToNeighbor(x + 1, y, z, light - 1);
+            propagateToNeighbor(x - 1, y, z, light - 1);
+            propagateToNeighbor(x, y + 1, z, light - 1);
+            propagateToNeighbor(x, y - 1, z, light - 1);
+            propagateToNeighbor(x, y, z + 1, light - 1);
+            propagateToNeighbor(x, y, z - 1, light - downStep);
+        }
+        propagationQueue.clear();
+    }
+
+    private void propagateToNeighbor(int x, int y, int z, int light) {
+        if (light <= 0) return;
+        final Chunk chunk = chunkAt(x, y, z);
+        if (chunk == null) return;
+        if (light(chunk, x, y, z) >= light || !block(chunk, x, y, z).isTransparent()) return;
+        setLight(chunk, x, y, z, light);
+        propagationQueue.add(pack(x, y, z, light));
+    }
+
+    private void settle(Chunk chunk) {
+        begin(chunk);
+        settlingChunk = chunk;
+        settleSky(chunk);
+        settleBlock(chunk);
+    }
+
+    /** Compact light storages of changed chunks, notify observers about them and release references.
+     * @param changedChunksOut if not null, changed chunks are added there instead of notifying observers */
+    private void end(Array<Chunk> changedChunksOut) {
+        final Array<Chunk> changedChunks = this.changedChunks;
+        if (settlingChunk != null) {
+            settlingChunk.skyLight.compact();
+            settlingChunk.blockLight.compact();
+        }
+        for (int i = 0; i < changedChunks.size; i++) {
+            changedChunks.items[i].skyLight.compact();
+            changedChunks.items[i].blockLight.compact();
+        }
+        if (changedChunks.size != 0) {
+            if (changedChunksOut != null) {
+                for (int i = 0; i < changedChunks.size; i++) {
+                    final Chunk chunk = changedChunks.items[i];
+                    if (!changedChunksOut.contains(chunk, true)) {
+                        changedChunksOut.add(chunk);
+                    }
+                }
+            } else {
+                for (WorldObserver observer : world.observers()) {
+                    for (int i = 0; i < changedChunks.size; i++) {
+                        observer.lightChanged(changedChunks.items[i]);
+                    }
+                }
+            }
+            changedChunks.clear();
+        }
+        world = null;
+        cachedChunk = null;
+        settlingChunk = null;
+    }
+
+    /** Pool is shared by threads of {@link LightScheduler} */
+    private static LightUpdater obtain() {
+        synchronized (LIGHT_UPDATER_POOL) {
+            return LIGHT_UPDATER_POOL.obtain();
+        }
+    }
+
+    private static void free(LightUpdater updater) {
+        synchronized (LIGHT_UPDATER_POOL) {
+            LIGHT_UPDATER_POOL.free(updater);
+        }
+    }
+
     private static final Pool<LightUpdater> LIGHT_UPDATER_POOL = new Pool<LightUpdater>() {
         @Override
         protected LightUpdater newObject() {
@@ -0,0 +1,103 @@
+package darkyenus.blockotron.world;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage of 4-bit values (0 to 15) for each block of a single {@link Chunk}, used for light levels.
+ *
+ * Two values are packed in each byte, value of even key in the low nibble. While all values are the same,
+ * no array is allocated and only that value is stored. This is common, chunks in the sky are fully lit
+ * and chunks deep underground are fully dark.
+ *
+ * Indexing is the same as of {@link Dimensions#inChunkKey(int, int, int)}.
+ */
+public final class NibbleStorage {
+
+    /** Amount of values stored */
+    public static final int SIZE = BlockStorage.SIZE;
+
+    /** Packed values, null if all values are uniformValue */
+    private byte[] data;
+    private int uniformValue;
+
+    /** Create new storage, filled with given value. */
+    public NibbleStorage(int value) {
+        this.uniformValue = value;
+    }
+
+    /** @return value at given inChunkKey */
+    public int get(int key) {
+        final byte[] data = this.data;
+        if (data == null) return uniformValue;
+        return (data[key >> 1] >> ((key & 1) << 2)) & 0xF;
+    }
+
+    /** Set the value (0 to 15) at given inChunkKey. */
+    public void set(int key, int value) {
+        byte[] data = this.data;
+        if (data == null) {
+            if (value == uniformValue) return;
+            data = allocate();
+        }
+        final int index = key >> 1;
+        final int shift = (key & 1) << 2;
+        data[index] = (byte) ((data[index] & ~(0xF << shift)) | (value << shift));
+    }
+
+    /** Set all values from fromKey (inclusive) to toKey (exclusive) to given value. */
+    public void fill(int fromKey, int toKey, int value) {
+        if (fromKey == 0 && toKey == SIZE) {
+            if (data != null) {
+                StoragePool.freeNibbles(data);
+                data = null;
+            }
+            uniformValue = value;
+            return;
+        }
+        if (data == null && value == uniformValue) return;
+
+        if ((fromKey & 1) != 0 && fromKey < toKey) {
+            set(fromKey++, value);
+        }
+        if ((toKey & 1) != 0 && fromKey < toKey) {
+            set(--toKey, value);
+        }
+        if (fromKey < toKey) {
+            final byte[] data = this.data == null ? allocate() : this.data;
+            Arrays.fill(data, fromKey >> 1, toKey >> 1, (byte) (value * 0x11));
+        }
+    }
+
+    private byte[] allocate() {
+        final byte[] data = StoragePool.obtainNibbles();
+        if (uniformValue != 0) {
+            Arrays.fill(data, (byte) (uniformValue * 0x11));
+        }
+        this.data = data;
+        return data;
+    }
+
+    /** @return true if all values are the same and no array is allocated */
+    public boolean isUniform() {
+        return data == null;
+    }
+
+    /** Drop the array, if all values are the same. */
+    public void compact() {
+        final byte[] data = this.data;
+        if (data == null) return;
+        final byte first = data[0];
+        if (((first >> 4) & 0xF) != (first & 0xF)) return;
+        for (int i = 1; i < data.length; i++) {
+            if (data[i] != first) return;
+        }
+        this.uniformValue = first & 0xF;
+        this.data = null;
+        StoragePool.freeNibbles(data);
+    }
+
+    /** @return approximate amount of bytes used by this storage */
+    public int estimateMemoryBytes() {
+        return 24 + (data == null ? 0 : 16 + data.length);
+    }
+}
@@ -0,0 +1,372 @@
+package darkyenus.blockotron.world;
+
+import com.badlogic.gdx.utils.Pool;
+import darkyenus.blockotron.world.blocks.Air;
+
+import java.util.Arrays;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Computes occlusion masks of the whole chunk at once.
+ *
+ * Blocks are classified into bit planes, where each row of the chunk along the X axis is one int,
+ * padded by one block from the neighbor chunks on each side. Only the palette entries are classified,
+ * rows are decoded from the {@link BlockStorage} into bits of each entry, which are then added to planes by its class.
+ * Visibility of all faces in a row is then derived from the planes of the row and of its neighbor rows,
+ * with few shifts and ANDs, and written out eight masks at a time.
+ * Results are identical to computing Chunk.updateLocalOcclusion for each non-air block, air is left with zero mask.
+ */
+public final class OcclusionUpdater {
+    /** Rows in each dimension, including the padding rows of neighbor chunks */
+    private static final int ROWS = CHUNK_SIZE + 2;
+    private static final int ROW_COUNT = ROWS * ROWS;
+    /** Offset of the row in Y+ direction */
+    private static final int Y = 1;
+    /** Offset of the row in Z+ direction */
+    private static final int Z = ROWS;
+    /** Bits of the row which belong to this chunk */
+    private static final int INNER_BITS = ((1 << CHUNK_SIZE) - 1) << 1;
+
+    /** Positions of {@link Side} flags in the occlusion mask */
+    private static final int EAST_BIT = Integer.numberOfTrailingZeros(Side.east);
+    private static final int WEST_BIT = Integer.numberOfTrailingZeros(Side.west);
+    private static final int NORTH_BIT = Integer.numberOfTrailingZeros(Side.north);
+    private static final int SOUTH_BIT = Integer.numberOfTrailingZeros(Side.south);
+    private static final int TOP_BIT = Integer.numberOfTrailingZeros(Side.top);
+    private static final int BOTTOM_BIT = Integer.numberOfTrailingZeros(Side.bottom);
+
+    /** Blocks which are not occluding */
+    private final int[] nonOccluding = new int[ROW_COUNT];
+    /** Blocks which are occluding and transparent */
+    private final int[] transparent = new int[ROW_COUNT];
+    /** For each occluding transparent block type in palette, where that block is */
+    private int[][] sameBlock = new int[4][ROW_COUNT];
+    /** Air blocks of this chunk (without padding) */
+    private final int[] air = new int[ROW_COUNT];
+
+    /** Block types of {@link #sameBlock} planes */
+    private Block[] sameBlockTypes = new Block[4];
+    private int sameBlockCount;
+
+    /** Classes of the palette of the chunk and of the palette of the neighbor whose padding is being added */
+    private final PaletteClasses chunkClasses = new PaletteClasses();
+    private final PaletteClasses neighborClasses = new PaletteClasses();
+    /** Bits of blocks of the current row, by palette index. Kept zeroed between rows. */
+    private int[] paletteBits = new int[16];
+
+    private final Chunk[] neighbors = new Chunk[6];
+
+    private OcclusionUpdater() {
+    }
+
+    /** Compute occlusion of all blocks in given chunk. Neighbor chunks are taken from the world, if loaded. */
+    static void updateChunk(Chunk chunk) {
+        final OcclusionUpdater updater = OCCLUSION_UPDATER_POOL.obtain();
+        final Chunk[] neighbors = updater.neighbors;
+        for (Side side : Side.values()) {
+            neighbors[side.ordinal()] = chunk.getRelativeChunk(side.offX, side.offY, side.offZ);
+        }
+        updater.update(chunk, neighbors);
+        Arrays.fill(neighbors, null);
+        OCCLUSION_UPDATER_POOL.free(updater);
+    }
+
+    /** Compute occlusion of all blocks in given chunk.
+     * @param neighbors face neighbors, indexed by {@link Side#ordinal()}, null when not loaded */
+    public static void updateChunk(Chunk chunk, Chunk[] neighbors) {
+        final OcclusionUpdater updater = OCCLUSION_UPDATER_POOL.obtain();
+        updater.update(chunk, neighbors);
+        OCCLUSION_UPDATER_POOL.free(updater);
+    }
+
+    private static int row(int y, int z) {
+        return (z + 1) * Z + (y + 1) * Y;
+    }
+
+    private void update(Chunk chunk, Chunk[] neighbors) {
+        final BlockStorage blocks = chunk.blocks;
+        final int airIndex = blocks.findPaletteIndex(Air.AIR);
+        if (blocks.isUniform() && airIndex == 0) {
+            // Only air, which is never occluded
+            chunk.clearOcclusion();
+            return;
+        }
+
+        Arrays.fill(nonOccluding, 0);
+        Arrays.fill(transparent, 0);
+        Arrays.fill(air, 0);
+        sameBlockCount = 0;
+
+        // Classify palette
+        final int paletteSize = blocks.paletteSize();
+        final PaletteClasses chunkClasses = this.chunkClasses;
+        chunkClasses.ensureCapacity(paletteSize);
+        for (int i = 0; i < paletteSize; i++) {
+            chunkClasses.set(i, blocks.paletteEntry(i), true);
+        }
+        if (paletteBits.length < paletteSize) {
+            paletteBits = new int[paletteSize];
+        }
+
+        // Inner blocks, row by row. Bits of each palette entry are collected first and then added to planes by its class,
+        // so there is no branch on the kind of each block.
+        final int[] paletteBits = this.paletteBits;
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int y = 0; y < CHUNK_SIZE; y++) {
+                blocks.addRowBitsByPaletteIndex(inChunkKey(0, y, z), paletteBits, 1);
+                final int row = row(y, z);
+                if (airIndex != -1) {
+                    air[row] = paletteBits[airIndex];
+                }
+                addRow(row, chunkClasses, paletteSize);
+            }
+        }
+
+        // Padding from neighbors, unloaded neighbors are considered to be air
+        final int keyZ = inChunkKey(0, 0, 1);
+        final int keyY = inChunkKey(0, 1, 0);
+        addPaddingRows(neighbors[Side.NORTH.ordinal()], row(CHUNK_SIZE, 0), Z, inChunkKey(0, 0, 0), keyZ);
+        addPaddingRows(neighbors[Side.SOUTH.ordinal()], row(-1, 0), Z, inChunkKey(0, CHUNK_SIZE - 1, 0), keyZ);
+        addPaddingRows(neighbors[Side.TOP.ordinal()], row(0, CHUNK_SIZE), Y, inChunkKey(0, 0, 0), keyY);
+        addPaddingRows(neighbors[Side.BOTTOM.ordinal()], row(0, -1), Y, inChunkKey(0, 0, CHUNK_SIZE - 1), keyY);
+        addPaddingColumns(neighbors[Side.EAST.ordinal()], 1 << (CHUNK_SIZE + 1), 0);
+        addPaddingColumns(neighbors[Side.WEST.ordinal()], 1, CHUNK_SIZE - 1);
+
+        // Derive faces
+        final int[] nonOccluding = this.nonOccluding;
+        final int[] transparent = this.transparent;
+        byte[] occlusion = chunk.occlusion;
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int y = 0; y < CHUNK_SIZE; y++) {
+                final int row = row(y, z);
+                final int myNonOccluding = nonOccluding[row];
+                final int myTransparent = transparent[row];
+                final int myOpaque = ~(myNonOccluding | myTransparent);
+                // Faces of non-occluding blocks are always visible, air never has any
+                final int visibleToAll = myNonOccluding;
+                final int notAir = ~air[row] & INNER_BITS;
+
+                final int east = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row] >>> 1, transparent[row] >>> 1, sameBlockShifted(row, -1)));
+                final int west = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row] << 1, transparent[row] << 1, sameBlockShifted(row, 1)));
+                final int north = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row + Y], transparent[row + Y], sameBlockRow(row, row + Y)));
+                final int south = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row - Y], transparent[row - Y], sameBlockRow(row, row - Y)));
+                final int top = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row + Z], transparent[row + Z], sameBlockRow(row, row + Z)));
+                final int bottom = notAir & (visibleToAll | faceVisible(myOpaque, myTransparent,
+                        nonOccluding[row - Z], transparent[row - Z], sameBlockRow(row, row - Z)));
+
+                if ((east | west | north | south | top | bottom) == 0 && occlusion == Chunk.UNIFORM_ZERO) {
+                    continue;
+                }
+                occlusion = chunk.writableOcclusion();
+
+                // Masks of eight blocks at once, one in each byte
+                final int keyBase = inChunkKey(0, y, z);
+                for (int firstX = 0; firstX < CHUNK_SIZE; firstX += 8) {
+                    final int shift = firstX + 1;
+                    long masks = spreadToBytes(east >>> shift, EAST_BIT)
+                            | spreadToBytes(west >>> shift, WEST_BIT)
+                            | spreadToBytes(north >>> shift, NORTH_BIT)
+                            | spreadToBytes(south >>> shift, SOUTH_BIT)
+                            | spreadToBytes(top >>> shift, TOP_BIT)
+                            | spreadToBytes(bottom >>> shift, BOTTOM_BIT);
+                    for (int x = firstX; x < firstX + 8; x++) {
+                        occlusion[keyBase + x] = (byte) masks;
+                        masks >>>= 8;
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(sameBlockTypes, 0, sameBlockCount, null);
+    }
+
+    /** Add bits of {@link #paletteBits} to the planes of given row, by classes of their palette entries, and clear them. */
+    private void addRow(int row, PaletteClasses classes, int paletteSize) {
+        final int[] paletteBits = this.paletteBits;
+        for (int i = 0; i < paletteSize; i++) {
+            final int bits = paletteBits[i];
+            if (bits == 0) continue;
+            paletteBits[i] = 0;
+            nonOccluding[row] |= bits & classes.nonOccluding[i];
+            transparent[row] |= bits & classes.transparent[i];
+            final int plane = classes.sameBlock[i];
+            if (plane != -1) {
+                sameBlock[plane][row] |= bits;
+            }
+        }
+    }
+
+    /** Add padding rows along X, taken from neighbor chunk on north, south, top or bottom side.
+     * Rows are walked along the other coordinate of the side, called b.
+     * @param rowStart padding row at b = 0
+     * @param rowStep offset of the padding row of the next b
+     * @param keyStart in-chunk key of the neighbor block at x = 0 and b = 0
+     * @param keyStep offset of the in-chunk key of the next b */
+    private void addPaddingRows(Chunk neighbor, int rowStart, int rowStep, int keyStart, int keyStep) {
+        final BlockStorage blocks = neighbor == null ? null : neighbor.blocks;
+        final int paletteSize = classifyNeighbor(blocks);
+        final int[] paletteBits = this.paletteBits;
+        for (int b = 0; b < CHUNK_SIZE; b++) {
+            if (blocks == null) {
+                paletteBits[0] = INNER_BITS;
+            } else {
+                blocks.addRowBitsByPaletteIndex(keyStart + b * keyStep, paletteBits, 1);
+            }
+            addRow(rowStart + b * rowStep, neighborClasses, paletteSize);
+        }
+    }
+
+    /** Add padding column of neighbor chunk on east or west side.
+     * @param bit of the padding in each row
+     * @param neighborX in-chunk X of the neighbor blocks */
+    private void addPaddingColumns(Chunk neighbor, int bit, int neighborX) {
+        final BlockStorage blocks = neighbor == null ? null : neighbor.blocks;
+        classifyNeighbor(blocks);
+        final PaletteClasses classes = this.neighborClasses;
+        for (int z = 0; z < CHUNK_SIZE; z++) {
+            for (int y = 0; y < CHUNK_SIZE; y++) {
+                final int i = blocks == null ? 0 : blocks.paletteIndex(inChunkKey(neighborX, y, z));
+                final int row = row(y, z);
+                nonOccluding[row] |= bit & classes.nonOccluding[i];
+                transparent[row] |= bit & classes.transparent[i];
+                final int plane = classes.sameBlock[i];
+                if (plane != -1) {
+                    sameBlock[plane][row] |= bit;
+                }
+            }
+        }
+    }
+
+    /** Classify palette of the neighbor into {@link #neighborClasses}.
+     * @param blocks of the neighbor, null if not loaded, then it is classified as a palette of only air
+     * @return size of the palette */
+    private int classifyNeighbor(BlockStorage blocks) {
+        final PaletteClasses classes = this.neighborClasses;
+        if (blocks == null) {
+            classes.set(0, Air.AIR, false);
+            return 1;
+        }
+        final int paletteSize = blocks.paletteSize();
+        classes.ensureCapacity(paletteSize);
+        if (paletteBits.length < paletteSize) {
+            paletteBits = new int[paletteSize];
+        }
+        for (int i = 0; i < paletteSize; i++) {
+            classes.set(i, blocks.paletteEntry(i), false);
+        }
+        return paletteSize;
+    }
+
+    /** @return long whose byte i has given bit set if bit i of the lowest eight bits is set, zero elsewhere */
+    private static long spreadToBytes(int bits, int bit) {
+        // Each byte of the copies keeps only its own bit, which is then moved to the top of the byte if set
+        final long selected = ((bits & 0xFF) * 0x0101010101010101L) & 0x8040201008040201L;
+        return ((selected + 0x7F7F7F7F7F7F7F7FL) & 0x8080808080808080L) >>> (7 - bit);
+    }
+
+    /** Bitwise form of Chunk.isFaceVisible, without the case of non-occluding "me".
+     * @param sameBlock bits where the neighbor is the same transparent block */
+    private static int faceVisible(int myOpaque, int myTransparent, int neighborNonOccluding, int neighborTransparent, int sameBlock) {
+        return neighborNonOccluding
+                | (myOpaque & neighborTransparent)
+                | (myTransparent & neighborTransparent & ~sameBlock);
+    }
+
+    /** @return bits where the block is the same transparent block as its neighbor in the same row.
+     * @param shift to apply to the row to align the neighbor, -1 for X+ neighbor, 1 for X- neighbor */
+    private int sameBlockShifted(int row, int shift) {
+        final int[][] sameBlock = this.sameBlock;
+        int result = 0;
+        for (int i = 0; i < sameBlockCount; i++) {
+            final int plane = sameBlock[i][row];
+            result |= plane & (shift < 0 ? plane >>> 1 : plane << 1);
+        }
+        return result;
+    }
+
+    /** @return bits where the block is the same transparent block as its neighbor in the neighbor row */
+    private int sameBlockRow(int row, int neighborRow) {
+        final int[][] sameBlock = this.sameBlock;
+        int result = 0;
+        for (int i = 0; i < sameBlockCount; i++) {
+            final int[] plane = sameBlock[i];
+            result |= plane[row] & plane[neighborRow];
+        }
+        return result;
+    }
+
+    /** @return index of the {@link #sameBlock} plane of given block type, or -1 if it has none */
+    private int findSameBlockType(Block block) {
+        final Block[] sameBlockTypes = this.sameBlockTypes;
+        for (int i = 0; i < sameBlockCount; i++) {
+            if (sameBlockTypes[i] == block) return i;
+        }
+        return -1;
+    }
+
+    /** Add new {@link #sameBlock} plane for given block type.
+     * @return index of the plane */
+    private int addSameBlockType(Block block) {
+        final int index = sameBlockCount++;
+        if (index == sameBlockTypes.length) {
+            sameBlockTypes = Arrays.copyOf(sameBlockTypes, index << 1);
+            final int[][] newSameBlock = Arrays.copyOf(sameBlock, index << 1);
+            for (int i = index; i < newSameBlock.length; i++) {
+                newSameBlock[i] = new int[ROW_COUNT];
+            }
+            sameBlock = newSameBlock;
+        }
+        sameBlockTypes[index] = block;
+        Arrays.fill(sameBlock[index], 0);
+        return index;
+    }
+
+    /** Classes of blocks of some palette, as masks, by palette index */
+    private final class PaletteClasses {
+        /** -1 where the block is not occluding, 0 elsewhere */
+        int[] nonOccluding = new int[16];
+        /** -1 where the block is occluding and transparent, 0 elsewhere */
+        int[] transparent = new int[16];
+        /** Index of the {@link #sameBlock} plane of the block, or -1 */
+        int[] sameBlock = new int[16];
+
+        void ensureCapacity(int paletteSize) {
+            if (nonOccluding.length < paletteSize) {
+                nonOccluding = new int[paletteSize];
+                transparent = new int[paletteSize];
+                sameBlock = new int[paletteSize];
+            }
+        }
+
+        /** @param addSameBlockType true to add a new {@link #sameBlock} plane for occluding transparent block,
+         *                          false to use only existing plane
+         *                          (other transparent blocks are never the same as any block of this chunk) */
+        void set(int paletteIndex, Block block, boolean addSameBlockType) {
+            final boolean isNonOccluding = !block.isOccluding();
+            final boolean isTransparent = !isNonOccluding && block.isTransparent();
+            nonOccluding[paletteIndex] = isNonOccluding ? -1 : 0;
+            transparent[paletteIndex] = isTransparent ? -1 : 0;
+            if (!isTransparent || block == Air.AIR) {
+                // Air has no faces, so it does not matter whether its neighbor is air as well
+                sameBlock[paletteIndex] = -1;
+            } else if (addSameBlockType) {
+                sameBlock[paletteIndex] = addSameBlockType(block);
+            } else {
+                sameBlock[paletteIndex] = findSameBlockType(block);
+            }
+        }
+    }
+
+    private static final Pool<OcclusionUpdater> OCCLUSION_UPDATER_POOL = new Pool<OcclusionUpdater>() {
+        @Override
+        protected OcclusionUpdater newObject() {
+            return new OcclusionUpdater();
+        }
+    };
+}
@@ -29,6 +29,14 @@ public enum Side {
         vector = new Vector3(offX, offY, offZ);
     }
 
+    /** @return side facing the opposite direction */
+    public Side opposite() {
+        // Opposite sides are declared in pairs
+        return VALUES[ordinal() ^ 1];
+    }
+
+    private static final Side[] VALUES = values();
+
     /** Return direction of normalized vector or null if invalid. */
     public static Side matchDirection(Vector3 of) {
         float max = Float.NEGATIVE_INFINITY;
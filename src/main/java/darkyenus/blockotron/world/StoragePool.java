@@ -0,0 +1,107 @@
+package darkyenus.blockotron.world;
+
+import java.util.Arrays;
+
+/**
+ * Bounded pools of arrays backing {@link BlockStorage}, {@link NibbleStorage} and occlusion of {@link Chunk}s.
+ *
+ * Chunks are loaded and unloaded all the time when moving through the world, each with several kilobytes of arrays.
+ * Arrays of discarded chunks are kept here and handed to new chunks, instead of becoming garbage.
+ * Each size class keeps at most {@link #CLASS_BUDGET_BYTES} of arrays, the rest is left to the garbage collector.
+ *
+ * Obtained arrays are always zeroed. Thread safe, chunks are created on the generator thread and discarded on the main thread.
+ */
+final class StoragePool {
+
+    /** Maximum amount of bytes kept in each size class */
+    private static final int CLASS_BUDGET_BYTES = 2 << 20;
+
+    /** Long arrays of {@link BlockStorage}, by log2 of bits per entry (1 to 32 bits) */
+    private static final ArrayClass[] LONGS = new ArrayClass[6];
+    /** Byte arrays of {@link NibbleStorage} */
+    private static final ArrayClass NIBBLES = new ArrayClass(NibbleStorage.SIZE / 2);
+    /** Byte arrays of {@link Chunk#occlusion} */
+    private static final ArrayClass OCCLUSION = new ArrayClass(BlockStorage.SIZE);
+
+    static {
+        for (int i = 0; i < LONGS.length; i++) {
+            LONGS[i] = new ArrayClass((BlockStorage.SIZE << i) * 8 / 64);
+        }
+    }
+
+    private StoragePool() {
+    }
+
+    /** @return zeroed array for {@link BlockStorage} with given bits per entry */
+    static long[] obtainLongs(int bitsPerEntry) {
+        final long[] array = (long[]) LONGS[Integer.numberOfTrailingZeros(bitsPerEntry)].poll();
+        return array != null ? array : new long[(BlockStorage.SIZE * bitsPerEntry) >>> 6];
+    }
+
+    static void freeLongs(long[] array) {
+        final ArrayClass arrayClass = LONGS[Integer.numberOfTrailingZeros((array.length << 6) / BlockStorage.SIZE)];
+        if (arrayClass.isFull()) return;
+        Arrays.fill(array, 0L);
+        arrayClass.add(array);
+    }
+
+    /** @return zeroed array for {@link NibbleStorage} */
+    static byte[] obtainNibbles() {
+        return obtainBytes(NIBBLES);
+    }
+
+    static void freeNibbles(byte[] array) {
+        freeBytes(NIBBLES, array);
+    }
+
+    /** @return zeroed array for {@link Chunk#occlusion} */
+    static byte[] obtainOcclusion() {
+        return obtainBytes(OCCLUSION);
+    }
+
+    static void freeOcclusion(byte[] array) {
+        freeBytes(OCCLUSION, array);
+    }
+
+    private static byte[] obtainBytes(ArrayClass arrayClass) {
+        final byte[] array = (byte[]) arrayClass.poll();
+        return array != null ? array : new byte[arrayClass.arrayBytes];
+    }
+
+    private static void freeBytes(ArrayClass arrayClass, byte[] array) {
+        if (arrayClass.isFull()) return;
+        Arrays.fill(array, (byte) 0);
+        arrayClass.add(array);
+    }
+
+    /** Arrays of a single size */
+    private static final class ArrayClass {
+        /** Size of each array, in bytes */
+        final int arrayBytes;
+        private final Object[] arrays;
+        private int size;
+
+        ArrayClass(int arrayBytes) {
+            this.arrayBytes = arrayBytes;
+            this.arrays = new Object[Math.max(CLASS_BUDGET_BYTES / arrayBytes, 1)];
+        }
+
+        /** @return some kept array, or null if none */
+        synchronized Object poll() {
+            if (size == 0) return null;
+            final Object array = arrays[--size];
+            arrays[size] = null;
+            return array;
+        }
+
+        synchronized boolean isFull() {
+            return size == arrays.length;
+        }
+
+        synchronized void add(Object array) {
+            if (size != arrays.length) {
+                arrays[size++] = array;
+            }
+        }
+    }
+}
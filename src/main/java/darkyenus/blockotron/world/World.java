@@ -7,6 +7,7 @@ import com.esotericsoftware.kryo.Kryo;
 import com.github.antag99.retinazer.*;
 import darkyenus.blockotron.utils.BoundingBox;
 import darkyenus.blockotron.utils.EntityListenerAdapter;
+import darkyenus.blockotron.utils.LongIntMap;
 import darkyenus.blockotron.utils.RayCast;
 import darkyenus.blockotron.utils.SelectionWireResolver;
 import darkyenus.blockotron.world.blocks.Air;
@@ -16,6 +17,8 @@ import darkyenus.blockotron.world.systems.ChunkLoadingSystem;
 import darkyenus.blockotron.world.systems.PlayerSystem;
 import org.objenesis.instantiator.ObjectInstantiator;
 
+import java.util.concurrent.ForkJoinPool;
+
 import static darkyenus.blockotron.world.Dimensions.*;
 
 /**
@@ -26,8 +29,28 @@ public final class World {
 
     private final LongMap<Chunk> chunks = new LongMap<>();
     private final ChunkProvider chunkProvider;
+    /** Column keys of columns with requested chunks, which are not yet loaded, in order of the first request.
+     * May contain columns which no longer have any pending chunks, those are dropped in {@link #loadPendingChunks()}.
+     * Used only when chunkProvider is {@link AsyncChunkProvider}. */
+    private final LongArray pendingColumns = new LongArray(true, 64);
+    /** For each column in {@link #pendingColumns}, bit mask of its requested layers which are not yet loaded
+     * (bit z for layer z), together with {@link #PENDING_COLUMN_QUEUED}. */
+    private final LongIntMap pendingLayers = new LongIntMap(64);
+    /** Flag in {@link #pendingLayers}, which keeps the entry present while the column is in {@link #pendingColumns} */
+    private static final int PENDING_COLUMN_QUEUED = 1 << 31;
     private final Array<WorldObserver> observers = new Array<>(false, 8, WorldObserver.class);
 
+    /** Depth of nested edit transactions, 0 = not editing */
+    private int editDepth = 0;
+    /** Chunks with uncommitted edits of the current edit transaction */
+    private final Array<Chunk> editedChunks = new Array<>(false, 16, Chunk.class);
+
+    /** Chunks with changed blocks, whose light will be updated at the end of the update */
+    private final Array<Chunk> lightDirtyChunks = new Array<>(false, 16, Chunk.class);
+    /** Chunks loaded since the last update, whose light will be settled at its end */
+    private final Array<Chunk> unlitChunks = new Array<>(false, 64, Chunk.class);
+    private final LightScheduler lightScheduler = new LightScheduler(ForkJoinPool.commonPool());
+
     private final Engine entityEngine;
     private final Kryo kryo;
 
@@ -42,6 +65,11 @@ public final class World {
      * time and systems can't catch up, for example while debugging. */
     private static final float MAX_UPDATE_DELTA = 1f/5f;
 
+    /** At most this many pending chunks will be loaded in single update. */
+    private static final int MAX_PENDING_CHUNK_LOADS_PER_UPDATE = 64;
+    /** Loading of pending chunks will stop after this many nanoseconds in a single update. */
+    private static final long PENDING_CHUNK_LOAD_BUDGET_NS = 4_000_000L;
+
     public World (ChunkProvider chunkProvider, EngineConfig engineConfig) {
         this.chunkProvider = chunkProvider;
         engineConfig.addWireResolver(new SelectionWireResolver(this));// Auto wire World instances
@@ -129,7 +157,9 @@ public final class World {
         if(existing == null) {
             final Chunk newChunk = chunkProvider.borrowChunk(chunkX, chunkY, chunkZ);
             chunks.put(key, newChunk);
+            newChunk.linkNeighbors();
             newChunk.makeActive();
+            unlitChunks.add(newChunk);
             for (WorldObserver observer : observers()) {
                 observer.chunkLoaded(newChunk);
             }
@@ -139,14 +169,122 @@ public final class World {
         }
     }
 
+    /** Like {@link #loadChunk(int, int, int)}, but does not block if the chunk provider can prepare the chunk
+     * in the background. In that case, the chunk is loaded during some later {@link #update(float)}.
+     * Does nothing if the chunk is already loaded, requested or out of boundaries. */
+    public void requestChunk(int chunkX, int chunkY, int chunkZ) {
+        if(chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return;
+        final ChunkProvider chunkProvider = this.chunkProvider;
+        if (!(chunkProvider instanceof AsyncChunkProvider)) {
+            loadChunk(chunkX, chunkY, chunkZ);
+            return;
+        }
+
+        final long columnKey = Dimensions.chunkColumnKey(chunkX, chunkY);
+        final int pending = pendingLayers.get(columnKey, 0);
+        final int layer = 1 << chunkZ;
+        if ((pending & layer) != 0 || chunks.containsKey(Dimensions.chunkKey(chunkX, chunkY, chunkZ))) return;
+        if (pending == 0) {
+            pendingColumns.add(columnKey);
+        }
+        pendingLayers.put(columnKey, pending | layer | PENDING_COLUMN_QUEUED);
+        ((AsyncChunkProvider) chunkProvider).requestColumn(chunkX, chunkY);
+    }
+
+    /** Hint the chunk provider that the column at given chunk-coordinates will probably be requested soon,
+     * so that it can start preparing it in the background. Does nothing if the provider can't do that. */
+    public void prefetchColumn(int chunkX, int chunkY) {
+        if (chunkProvider instanceof AsyncChunkProvider) {
+            ((AsyncChunkProvider) chunkProvider).requestColumn(chunkX, chunkY);
+        }
+    }
+
+    /** Withdraw the hint given by {@link #prefetchColumn(int, int)}, when the column will probably not be needed.
+     * Does nothing if any chunk of the column has been requested or loaded since. */
+    public void cancelPrefetch(int chunkX, int chunkY) {
+        if (!(chunkProvider instanceof AsyncChunkProvider)) return;
+        if ((pendingLayers.get(Dimensions.chunkColumnKey(chunkX, chunkY), 0) & ~PENDING_COLUMN_QUEUED) != 0) return;
+        if (isAnyChunkOfColumnLoaded(chunkX, chunkY)) return;
+        ((AsyncChunkProvider) chunkProvider).cancelColumn(chunkX, chunkY);
+    }
+
+    private boolean isAnyChunkOfColumnLoaded(int chunkX, int chunkY) {
+        for (int z = 0; z < CHUNK_LAYERS; z++) {
+            if (chunks.containsKey(Dimensions.chunkKey(chunkX, chunkY, z))) return true;
+        }
+        return false;
+    }
+
+    /** Load pending chunks which are ready, until the budget for this update is exhausted. */
+    private void loadPendingChunks() {
+        final LongArray pendingColumns = this.pendingColumns;
+        if (pendingColumns.size == 0) return;
+        final LongIntMap pendingLayers = this.pendingLayers;
+        final AsyncChunkProvider chunkProvider = (AsyncChunkProvider) this.chunkProvider;
+
+        final long[] items = pendingColumns.items;
+        final int size = pendingColumns.size;
+        final long budgetEnd = System.nanoTime() + PENDING_CHUNK_LOAD_BUDGET_NS;
+        int loaded = 0;
+        int kept = 0;
+        int i = 0;
+        for (; i < size; i++) {
+            if (loaded >= MAX_PENDING_CHUNK_LOADS_PER_UPDATE || System.nanoTime() > budgetEnd) break;
+
+            final long columnKey = items[i];
+            final int x = chunkKeyToX(columnKey);
+            final int y = chunkKeyToY(columnKey);
+            int pending = pendingLayers.get(columnKey, 0) & ~PENDING_COLUMN_QUEUED;
+            for (int z = 0; pending != 0 && z < CHUNK_LAYERS && loaded < MAX_PENDING_CHUNK_LOADS_PER_UPDATE; z++) {
+                if ((pending & (1 << z)) == 0 || !chunkProvider.isChunkReady(x, y, z)) continue;
+                // Clear the bit first, loadChunk notifies observers which may request or unload chunks of this column
+                pending &= ~(1 << z);
+                pendingLayers.put(columnKey, pending | PENDING_COLUMN_QUEUED);
+                loadChunk(x, y, z);
+                loaded++;
+                pending = pendingLayers.get(columnKey, 0) & ~PENDING_COLUMN_QUEUED;
+            }
+
+            if (pending == 0) {
+                pendingLayers.remove(columnKey, 0);
+            } else {
+                items[kept++] = columnKey;
+            }
+        }
+        // Keep the rest in order
+        for (; i < size; i++) {
+            items[kept++] = items[i];
+        }
+        pendingColumns.size = kept;
+    }
+
     public void unloadChunk (int chunkX, int chunkY, int chunkZ) {
         if(chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return;
         final long key = Dimensions.chunkKey(chunkX, chunkY, chunkZ);
+        final long columnKey = Dimensions.chunkColumnKey(chunkX, chunkY);
+        final int pending = pendingLayers.get(columnKey, 0);
+        final int layer = 1 << chunkZ;
+        if ((pending & layer) != 0) {
+            // Entry stays until the column is dropped from pendingColumns
+            pendingLayers.put(columnKey, pending & ~layer);
+            if ((pending & ~layer & ~PENDING_COLUMN_QUEUED) == 0 && !isAnyChunkOfColumnLoaded(chunkX, chunkY)) {
+                // Nothing of the column is wanted anymore, don't leave it prepared in the provider
+                ((AsyncChunkProvider) chunkProvider).cancelColumn(chunkX, chunkY);
+            }
+        }
         final Chunk loaded = chunks.remove(key);
         if (loaded != null) {
+            unlitChunks.removeValue(loaded, true);
+            if (editedChunks.removeValue(loaded, true)) {
+                loaded.commitEdit();
+            }
+            if (lightDirtyChunks.removeValue(loaded, true)) {
+                loaded.clearLightDirty();
+            }
             for (WorldObserver observer : observers()) {
                 observer.chunkUnloaded(loaded);
             }
+            loaded.unlinkNeighbors();
             loaded.makeInactive();
             chunkProvider.returnChunk(loaded);
         }
@@ -185,6 +323,56 @@ public final class World {
         chunk.setLocalBlock(cx, cy, cz, newBlock);
     }
 
+    /** Begin edit transaction. Until matching {@link #commit()}, changing blocks only changes the blocks
+     * (and block entities), but does not recompute occlusion or light and does not notify observers.
+     * On commit, these side effects are resolved once per each changed chunk, which is much faster for large edits.
+     * Transactions may be nested, only the outermost commit resolves the changes. */
+    public void beginEdit() {
+        editDepth++;
+    }
+
+    /** End edit transaction started with {@link #beginEdit()}.
+     * When ending the outermost transaction, updates occlusion and light of changed chunks and notifies observers
+     * through {@link WorldObserver#blocksChanged(Chunk)}. */
+    public void commit() {
+        if (editDepth <= 0) throw new IllegalStateException("Not in edit transaction");
+        if (--editDepth != 0) return;
+
+        final Array<Chunk> editedChunks = this.editedChunks;
+        for (int i = 0; i < editedChunks.size; i++) {
+            editedChunks.items[i].commitEdit();
+        }
+        editedChunks.clear();
+    }
+
+    /** @return true if inside edit transaction
+     * @see #beginEdit() */
+    public boolean isEditing() {
+        return editDepth > 0;
+    }
+
+    /** Called by chunk when it is first edited in current edit transaction. */
+    void chunkEdited(Chunk chunk) {
+        editedChunks.add(chunk);
+    }
+
+    /** Called by chunk when its light first needs to be updated since the last {@link #updateLight()}. */
+    void chunkLightDirty(Chunk chunk) {
+        lightDirtyChunks.add(chunk);
+    }
+
+    /** Update light around all blocks changed since the last call, in a single pass.
+     * Called automatically at the end of {@link #update(float)}, light of changed blocks is not valid until then. */
+    public void updateLight() {
+        final Array<Chunk> lightDirtyChunks = this.lightDirtyChunks;
+        if (lightDirtyChunks.size == 0) return;
+        LightUpdater.updateChunks(lightDirtyChunks);
+        for (int i = 0; i < lightDirtyChunks.size; i++) {
+            lightDirtyChunks.items[i].clearLightDirty();
+        }
+        lightDirtyChunks.clear();
+    }
+
     /** Instance of return value of getBlockOnRay, for GC reasons. */
     private final RayCastResult getBlockOnRay_TMP = new RayCastResult();
     /** Cast a ray from given origin (world coordinated) in given direction (must be normalized)
@@ -236,6 +424,12 @@ public final class World {
         }
 
         entityEngine.update(rawDelta);
+        loadPendingChunks();
+
+        updateLight();
+        // Light new chunks in parallel, before they are first rendered
+        lightScheduler.settle(this, unlitChunks);
+        unlitChunks.clear();
     }
 
     private void tick(){
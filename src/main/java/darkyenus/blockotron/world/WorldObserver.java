@@ -14,9 +14,19 @@ public interface WorldObserver {
     /** Called when a block in chunk changes. */
     void blockChanged(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ, Block from, Block to);
 
+    /** Called once for each chunk whose blocks were changed in an edit transaction, when the transaction is committed.
+     * Individual {@link #blockChanged} and {@link #blockOcclusionChanged} are not called for such changes.
+     * Occlusion of the chunk (and of its face neighbors) is already updated, light is updated at the end of world update.
+     * @see World#beginEdit() */
+    void blocksChanged(Chunk chunk);
+
     /** Called when block's occlusion mask changes. */
     void blockOcclusionChanged(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ, byte from, byte to);
 
+    /** Called when light of already lit chunk changes as a side effect of changes in the world.
+     * Called once per update, even if multiple blocks of the chunk were affected. */
+    void lightChanged(Chunk chunk);
+
     /** Called when previously loaded chunk is unloaded from a world. */
     void chunkUnloaded(Chunk chunk);
 
@@ -36,11 +46,21 @@ public interface WorldObserver {
 
         }
 
+        @Override
+        public void blocksChanged(Chunk chunk) {
+
+        }
+
         @Override
         public void blockOcclusionChanged(Chunk chunk, int inChunkX, int inChunkY, int inChunkZ, byte from, byte to) {
 
         }
 
+        @Override
+        public void lightChanged(Chunk chunk) {
+
+        }
+
         @Override
         public void chunkUnloaded(Chunk chunk) {
 
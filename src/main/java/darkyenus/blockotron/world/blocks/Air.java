@@ -1,8 +1,8 @@
 package darkyenus.blockotron.world.blocks;
 
-import darkyenus.blockotron.render.RectangleMeshBatch;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
 import darkyenus.blockotron.world.Block;
-import darkyenus.blockotron.world.World;
+import darkyenus.blockotron.world.ChunkSnapshot;
 
 /**
  * Special block - absence of a block
@@ -16,5 +16,5 @@ public class Air extends Block {
     }
 
     @Override
-    public void render(World world, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBatch batch) {}
+    public void render(ChunkSnapshot chunk, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBuilder batch) {}
 }
@@ -3,13 +3,13 @@ package darkyenus.blockotron.world.blocks;
 
 import darkyenus.blockotron.render.BlockFaceTexture;
 import darkyenus.blockotron.render.BlockFaces;
-import darkyenus.blockotron.render.RectangleMeshBatch;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
 import darkyenus.blockotron.utils.BoundingBox;
 import darkyenus.blockotron.world.Block;
+import darkyenus.blockotron.world.ChunkSnapshot;
 import darkyenus.blockotron.world.Side;
-import darkyenus.blockotron.world.World;
 
-import static darkyenus.blockotron.render.RectangleMeshBatch.white;
+import static darkyenus.blockotron.render.RectangleMeshBuilder.white;
 
 /**
  *
@@ -27,15 +27,15 @@ public class Flowerpot extends Block {
 	private static final BlockFaceTexture BOTTOM = BlockFaces.getBlockFace("flowerpot_bottom");
 
 	@Override
-	public void render(World world, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBatch batch) {
+	public void render(ChunkSnapshot chunk, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBuilder batch) {
 		// All but bottom faces are always drawn
-		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.TOP_FACE_OFFSETS, TOP, 0.5f, 0.5f, 0.5f, white, white, white, white);
-		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.EAST_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
-		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.WEST_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
-		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.NORTH_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
-		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.SOUTH_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
+		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.TOP_FACE_OFFSETS, TOP, 0.5f, 0.5f, 0.5f, white, white, white, white);
+		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.EAST_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
+		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.WEST_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
+		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.NORTH_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
+		batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.SOUTH_FACE_OFFSETS, SIDE, 0.5f, 0.5f, 0.5f, white, white, white, white);
 		if ((occlusion & Side.bottom) != 0) {
-			batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBatch.BOTTOM_FACE_OFFSETS, BOTTOM,
+			batch.createBlockFace(drawX + 0.25f, drawY + 0.25f, drawZ, RectangleMeshBuilder.BOTTOM_FACE_OFFSETS, BOTTOM,
                     0.5f, 0.5f, 0.5f, white, white, white, white);
 		}
 	}
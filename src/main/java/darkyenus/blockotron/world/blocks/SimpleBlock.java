@@ -2,8 +2,10 @@ package darkyenus.blockotron.world.blocks;
 
 import darkyenus.blockotron.render.BlockFaceTexture;
 import darkyenus.blockotron.render.BlockFaces;
-import darkyenus.blockotron.render.RectangleMeshBatch;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
 import darkyenus.blockotron.world.Block;
+import darkyenus.blockotron.world.ChunkSnapshot;
+import darkyenus.blockotron.world.Side;
 import darkyenus.blockotron.world.World;
 
 /**
@@ -14,14 +16,28 @@ public class SimpleBlock extends Block {
     private final BlockFaceTexture top, sides, bottom;
 
     public SimpleBlock(SimpleBlockBuilder builder){
-        super(builder.id, builder.flags);
+        super(builder.id, builder.flags, builder.lightEmission);
         this.top = builder.top;
         this.sides = builder.sides;
         this.bottom = builder.bottom;
     }
 
+    /** @return texture of given face */
+    public final BlockFaceTexture getTexture(Side side) {
+        switch (side) {
+            case TOP:
+                return top;
+            case BOTTOM:
+                return bottom;
+            default:
+                return sides;
+        }
+    }
+
+    /** Full cube of faces from {@link #getTexture(Side)}.
+     * Chunk meshes draw simple blocks by merging their faces with faces of neighbors, not through this method. */
     @Override
-    public final void render(World world, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBatch batch) {
+    public final void render(ChunkSnapshot chunk, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBuilder batch) {
         batch.createBlock(drawX, drawY, drawZ, occlusion, skyLight, blockLight, sides, sides, sides, sides, top, bottom);
     }
 
@@ -41,6 +57,7 @@ public class SimpleBlock extends Block {
     public static final class SimpleBlockBuilder {
         private final String id;
         private int flags = 0;
+        private int lightEmission = 0;
         private BlockFaceTexture top, sides, bottom;
 
         public SimpleBlockBuilder(String id) {
@@ -52,6 +69,11 @@ public class SimpleBlock extends Block {
             return this;
         }
 
+        public SimpleBlockBuilder lightEmission(int lightEmission){
+            this.lightEmission = lightEmission;
+            return this;
+        }
+
         public SimpleBlockBuilder withTexture(String textureName){
             this.top = this.sides = this.bottom = BlockFaces.getBlockFace(textureName);
             return this;
@@ -2,9 +2,9 @@ package darkyenus.blockotron.world.debug;
 
 import darkyenus.blockotron.render.BlockFaceTexture;
 import darkyenus.blockotron.render.BlockFaces;
-import darkyenus.blockotron.render.RectangleMeshBatch;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
 import darkyenus.blockotron.world.Block;
-import darkyenus.blockotron.world.World;
+import darkyenus.blockotron.world.ChunkSnapshot;
 
 /**
  *
@@ -20,7 +20,7 @@ public class DebugBlock extends Block {
     }
 
     @Override
-    public void render(World world, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBatch batch) {
+    public void render(ChunkSnapshot chunk, int x, int y, int z, int drawX, int drawY, int drawZ, byte occlusion, int skyLight, int blockLight, RectangleMeshBuilder batch) {
         batch.createBlock(drawX, drawY, drawZ, (byte)~0, texture);
     }
 }
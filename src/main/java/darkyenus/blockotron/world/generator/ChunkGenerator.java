@@ -4,6 +4,7 @@ package darkyenus.blockotron.world.generator;
  * Generates basic shape of the world.
  */
 public interface ChunkGenerator {
-    /** Generate given column. MUST NOT modify blocks outside of the column. */
+    /** Generate given column. MUST NOT modify blocks outside of the column.
+     * Must be deterministic: use only {@link PersistentGeneratorChunkProvider.ChunkColumn#random()} for randomness. */
     void generateColumn(PersistentGeneratorChunkProvider.ChunkColumn column);
 }
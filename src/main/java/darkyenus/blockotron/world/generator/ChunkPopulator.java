@@ -4,6 +4,7 @@ package darkyenus.blockotron.world.generator;
  * Adds additional details to the map.
  */
 public interface ChunkPopulator {
-    /** Populate given chunk column. May modify blocks outside of the column. */
+    /** Populate given chunk column. May modify blocks outside of the column.
+     * Must be deterministic: use only {@link PersistentGeneratorChunkProvider.ChunkColumn#random()} for randomness. */
     void populateColumn(PersistentGeneratorChunkProvider.ChunkColumn column);
 }
@@ -1,6 +1,9 @@
 package darkyenus.blockotron.world.generator;
 
 import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.RandomXS128;
+import com.badlogic.gdx.utils.LongArray;
 import com.badlogic.gdx.utils.LongMap;
 import com.badlogic.gdx.utils.StreamUtils;
 import com.esotericsoftware.kryo.Kryo;
@@ -8,29 +11,99 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.github.antag99.retinazer.EntitySystem;
 import com.github.antag99.retinazer.util.Mask;
+import darkyenus.blockotron.utils.LongLruMap;
 import darkyenus.blockotron.world.*;
 import darkyenus.blockotron.world.blocks.Air;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static darkyenus.blockotron.world.Dimensions.*;
 
 /**
  * Delegates its work to {@link ChunkGenerator} and {@link ChunkPopulator}s.
  * Takes care of keeping around chunks needed for generating, populating, saving and loading.
+ *
+ * Loading, generating and populating happens on a separate generator thread.
+ * Generation is deterministic, driven by the world seed. Populators may write into neighbor columns,
+ * so when a column is generated, populators of all neighbor columns are replayed, in fixed order,
+ * with writes outside of the generated column discarded and reads served from the generated terrain only.
+ * Column is then handed over to the main thread and from then on, only main thread may access it,
+ * until it is saved and released. Columns which were not modified after generation are not saved at all,
+ * they are simply generated again when needed.
+ * Saved columns are serialized on the main thread, but written to disk on a separate saver thread.
+ * Recently saved columns are also kept in memory, deflated, so that loading them again does not have to read the disk.
  */
-public final class PersistentGeneratorChunkProvider implements ChunkProvider {
+public final class PersistentGeneratorChunkProvider implements AsyncChunkProvider {
 
     private static final String LOG = "PersistentGeneratorChunkProvider";
 
     private World world;
-    private final LongMap<ChunkColumn> chunkColumns = new LongMap<>();
     private final ChunkGenerator generator;
     private final ChunkPopulator[] populators;
     private final File worldBase;
 
+    /** Columns handed over to the main thread. Main thread only. */
+    private final LongMap<ChunkColumn> chunkColumns = new LongMap<>();
+    /** Requests for columns which were not yet taken by the main thread. Main thread only. */
+    private final LongMap<Future<?>> requestedColumns = new LongMap<>();
+    /** Requests which were cancelled before their column was prepared, by column key.
+     * Generator thread discards their columns, unless they are requested again first. Guarded by itself. */
+    private final LongMap<Future<?>> cancelledRequests = new LongMap<>();
+    /** Columns prepared by the generator thread, waiting for main thread to take them. */
+    private final ConcurrentHashMap<Long, ChunkColumn> preparedColumns = new ConcurrentHashMap<>();
+
+    /** Columns which hold only generated terrain, without population, which populators read from.
+     * Generator thread only. */
+    private final LongMap<ChunkColumn> terrainColumns = new LongMap<>();
+    /** Keys of {@link #terrainColumns}, in order of creation. Generator thread only. */
+    private final LongArray terrainColumnOrder = new LongArray();
+    /** Oldest terrain columns are discarded when there is more of them than this, after a column is prepared */
+    private static final int MAX_TERRAIN_COLUMNS = 64;
+    /** Terrain columns around the prepared column, in this radius, are generated before its population begins.
+     * Populators of its neighbors write into it and may read from one more column around their own. */
+    private static final int POPULATION_RADIUS = 2;
+    /** Random used by the generator, reseeded before it runs. Generator thread only. */
+    private final RandomXS128 terrainRandom = new RandomXS128();
+    /** Random used by populators, reseeded before each of them runs. Separate from {@link #terrainRandom},
+     * because populators reading outside of the generated terrain may cause it to be generated. Generator thread only. */
+    private final RandomXS128 populatorRandom = new RandomXS128();
+    /** Columns which are handed over and must not be touched. Generator thread only. */
+    private final LongMap<ChunkColumn> handedOverColumns = new LongMap<>();
+
+    private final ExecutorService generatorExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Chunk Generator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Writes serialized columns to disk, so that the main thread does not have to wait for it. */
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Chunk Saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /** Serialized columns, which were queued for writing by {@link #ioExecutor}, but were not yet written.
+     * Loading prefers these over the data on disk. */
+    private final ConcurrentHashMap<Long, byte[]> pendingWrites = new ConcurrentHashMap<>();
+
+    /** Deflated data of recently written columns, which are not loaded, by chunkColumnKey.
+     * Written by the saver thread, taken by the generator thread, guarded by itself. */
+    private final LongLruMap<byte[]> cachedColumns = new LongLruMap<>();
+    /** Maximum total size of {@link #cachedColumns}, in bytes */
+    private volatile long cachedColumnsBudget = 16L << 20;
+
+    /** Seed of the world, from which all generation is derived */
+    private long worldSeed;
+
     public PersistentGeneratorChunkProvider(File worldBase, ChunkGenerator generator, ChunkPopulator... populators) {
         this.worldBase = worldBase;
         this.generator = generator;
@@ -40,42 +113,204 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
     @Override
     public void initialize(World world) {
         this.world = world;
+        loadSeed();
         loadWorld();
     }
 
     @Override
     public void shutdown() {
         saveWorld();
+        generatorExecutor.shutdownNow();
+        try {
+            if (!generatorExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                Gdx.app.error(LOG, "Generator thread did not terminate");
+            }
+        } catch (InterruptedException e) {
+            Gdx.app.error(LOG, "Interrupted while waiting for generator thread", e);
+        }
+        // Flush queued writes
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+                Gdx.app.error(LOG, "Saver thread did not finish writing, "+pendingWrites.size()+" columns not saved");
+            }
+        } catch (InterruptedException e) {
+            Gdx.app.error(LOG, "Interrupted while waiting for saver thread", e);
+        }
+        closeRegionFiles();
     }
 
-    private ChunkColumn getGeneratedColumn(int x, int y) {
+    //region Generator thread
+
+    /** @return column with generated terrain only, for reading by populators */
+    private ChunkColumn getTerrainColumn(int x, int y) {
         final long key = chunkColumnKey(x, y);
-        ChunkColumn column = chunkColumns.get(key);
-        if (column != null) {
-            return column;
-        } else {
+        ChunkColumn column = terrainColumns.get(key);
+        if (column == null) {
             column = new ChunkColumn(x, y);
-            if(!loadColumn(column)){
-                generateColumn(column);
+            generateColumn(column);
+            terrainColumns.put(key, column);
+            terrainColumnOrder.add(key);
+        }
+        return column;
+    }
+
+    /** Discard oldest terrain columns over {@link #MAX_TERRAIN_COLUMNS}.
+     * Called only between preparing columns, so that no column which is being read is discarded. */
+    private void evictTerrainColumns() {
+        final LongArray order = this.terrainColumnOrder;
+        while (order.size > MAX_TERRAIN_COLUMNS) {
+            terrainColumns.remove(order.removeIndex(0)).recycle();
+        }
+    }
+
+    /** Load or generate the column and mark it as handed over. */
+    private ChunkColumn prepareColumn(int x, int y) {
+        final long key = chunkColumnKey(x, y);
+        final ChunkColumn handedOver = handedOverColumns.get(key);
+        if (handedOver != null) return handedOver;
+
+        final ChunkColumn column = new ChunkColumn(x, y);
+        if (!loadColumn(column)) {
+            generateColumn(column);
+            for (int yOff = -POPULATION_RADIUS; yOff <= POPULATION_RADIUS; yOff++) {
+                for (int xOff = -POPULATION_RADIUS; xOff <= POPULATION_RADIUS; xOff++) {
+                    getTerrainColumn(x + xOff, y + yOff);
+                }
+            }
+            // Populators of neighbors may write into this column as well
+            for (int yOff = -1; yOff <= 1; yOff++) {
+                for (int xOff = -1; xOff <= 1; xOff++) {
+                    populateColumn(getTerrainColumn(x + xOff, y + yOff), column);
+                }
+            }
+            evictTerrainColumns();
+        }
+
+        handedOverColumns.put(key, column);
+        column.ready = true;
+        return column;
+    }
+
+    /** Seed the random for given stream of given column. */
+    private void seedRandom(RandomXS128 random, int chunkX, int chunkY, int stream) {
+        random.setSeed(worldSeed
+                + chunkColumnKey(chunkX, chunkY) * 0x9E3779B97F4A7C15L
+                + stream * 0xC2B2AE3D27D4EB4FL);
+    }
+
+    private void generateColumn(ChunkColumn column) {
+        seedRandom(terrainRandom, column.chunkX, column.chunkY, 0);
+        generator.generateColumn(column);
+    }
+
+    /** Run populators of the source column, but keep only what they write into the target column. */
+    private void populateColumn(ChunkColumn source, ChunkColumn target) {
+        source.populationTarget = target;
+        try {
+            for (int i = 0; i < populators.length; i++) {
+                seedRandom(populatorRandom, source.chunkX, source.chunkY, i + 1);
+                populators[i].populateColumn(source);
             }
-            chunkColumns.put(key, column);
-            return column;
+        } finally {
+            source.populationTarget = null;
         }
     }
 
-    private ChunkColumn getPopulatedColumn(int x, int y) {
-        final ChunkColumn column = getGeneratedColumn(x, y);
-        if (!column.populated) {
-            column.populated = true;
-            populateColumn(column);
+    //endregion
+
+    @Override
+    public void requestColumn(int x, int y) {
+        final long key = chunkColumnKey(x, y);
+        if (chunkColumns.containsKey(key) || requestedColumns.containsKey(key)) return;
+        requestedColumns.put(key, submitRequest(x, y));
+    }
+
+    /** Submit request for the column, or take back its cancelled request, if it was not discarded yet. */
+    private Future<?> submitRequest(int x, int y) {
+        final long key = chunkColumnKey(x, y);
+        synchronized (cancelledRequests) {
+            final Future<?> cancelled = cancelledRequests.remove(key);
+            if (cancelled != null) return cancelled;
+        }
+        return generatorExecutor.submit(() -> {
+            try {
+                synchronized (cancelledRequests) {
+                    if (cancelledRequests.remove(key) != null) return;
+                }
+                final ChunkColumn column = prepareColumn(x, y);
+                synchronized (cancelledRequests) {
+                    if (cancelledRequests.remove(key) == null) {
+                        preparedColumns.put(key, column);
+                        return;
+                    }
+                }
+                // Cancelled while being prepared, never seen by the main thread
+                handedOverColumns.remove(key);
+                column.freeEntityStorages();
+                column.recycle();
+            } catch (Throwable e) {
+                Gdx.app.error(LOG, "Failed to prepare column " + x + " " + y, e);
+                throw e;
+            }
+        });
+    }
+
+    @Override
+    public void cancelColumn(int x, int y) {
+        final long key = chunkColumnKey(x, y);
+        final Future<?> request = requestedColumns.remove(key);
+        if (request == null) return;
+        final ChunkColumn prepared;
+        synchronized (cancelledRequests) {
+            prepared = preparedColumns.remove(key);
+            if (prepared == null && !request.isDone()) {
+                // Waiting or being prepared, generator thread will discard it
+                cancelledRequests.put(key, request);
+                return;
+            }
         }
+        if (prepared != null) {
+            // Never borrowed, so it has no changes to save
+            prepared.freeEntityStorages();
+            prepared.recycle();
+            // Generator thread may prepare it again from now on
+            generatorExecutor.execute(() -> handedOverColumns.remove(key));
+        }
+    }
+
+    @Override
+    public boolean isChunkReady(int x, int y, int z) {
+        final long key = chunkColumnKey(x, y);
+        return chunkColumns.containsKey(key) || preparedColumns.containsKey(key);
+    }
+
+    /** Return the column handed over to the main thread, requesting it and waiting for it, if necessary. */
+    private ChunkColumn getHandedOverColumn(int x, int y) {
+        final long key = chunkColumnKey(x, y);
+        ChunkColumn column = chunkColumns.get(key);
+        if (column != null) return column;
+
+        Future<?> request = requestedColumns.remove(key);
+        if (request == null) {
+            request = submitRequest(x, y);
+        }
+        column = preparedColumns.remove(key);
+        if (column == null) {
+            try {
+                request.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException("Failed to prepare column " + x + " " + y, e);
+            }
+            column = preparedColumns.remove(key);
+        }
+        chunkColumns.put(key, column);
         return column;
     }
 
     @Override
     public Chunk borrowChunk(int x, int y, int z) {
-        final ChunkColumn populatedColumn = getPopulatedColumn(x, y);
-        return populatedColumn.borrowChunk(z);
+        return getHandedOverColumn(x, y).borrowChunk(z);
     }
 
     //region Persistence
@@ -84,23 +319,139 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
         return new File(worldBase, "world.bin");
     }
 
-    private File getChunkColumnFile(ChunkColumn column){
-        //noinspection ResultOfMethodCallIgnored
-        worldBase.mkdirs();
-        return new File(worldBase, "chunk." + column.chunkX + "." + column.chunkY + ".bin");
+    /** File in which the column was saved before region files were introduced.
+     * Such files are still loaded and deleted when the column is saved into a region. */
+    private File getLegacyChunkColumnFile(int chunkX, int chunkY){
+        return new File(worldBase, "chunk." + chunkX + "." + chunkY + ".bin");
+    }
+
+    /** Open region files, by chunkColumnKey of region coordinates. Guarded by itself. */
+    private final LongMap<RegionFile> regionFiles = new LongMap<>();
+
+    /** Get (and open, if needed) region file which holds given column. */
+    private RegionFile getRegionFile(int chunkX, int chunkY) throws IOException {
+        final int regionX = chunkX >> RegionFile.REGION_SHIFT;
+        final int regionY = chunkY >> RegionFile.REGION_SHIFT;
+        final long key = chunkColumnKey(regionX, regionY);
+        synchronized (regionFiles) {
+            RegionFile region = regionFiles.get(key);
+            if (region == null) {
+                //noinspection ResultOfMethodCallIgnored
+                worldBase.mkdirs();
+                region = new RegionFile(new File(worldBase, "region." + regionX + "." + regionY + ".bin"));
+                regionFiles.put(key, region);
+            }
+            return region;
+        }
+    }
+
+    private void closeRegionFiles() {
+        synchronized (regionFiles) {
+            for (RegionFile region : regionFiles.values()) {
+                try {
+                    region.close();
+                } catch (IOException e) {
+                    Gdx.app.error(LOG, "Failed to close region file", e);
+                }
+            }
+            regionFiles.clear();
+        }
     }
 
     private final Output output_TMP = new Output(1<<10);
     private final Input input_TMP = new Input(1<<10);
+    /** Input used for loading on the generator thread */
+    private final Input generatorInput_TMP = new Input(1<<10);
+    /** Output into which the columns are serialized before writing into the region */
+    private final Output columnOutput_TMP = new Output(1<<14, -1);
+
+    /** Format of columns saved in per-column files, without header.
+     * Their first byte is a chunk mask, which is never higher than this. */
+    private static final byte COLUMN_FORMAT_LEGACY = 3;
+    /** Blocks are saved as palette and runs of palette indices */
+    private static final byte COLUMN_FORMAT_PALETTE = 4;
+    /** Like {@link #COLUMN_FORMAT_PALETTE}, followed by the heightmap */
+    private static final byte COLUMN_FORMAT_HEIGHTMAP = 6;
+    /** Set in the format when the rest is deflated, after int of uncompressed length */
+    private static final byte COLUMN_FORMAT_DEFLATED_BIT = 1;
+
+    /** Whether saved columns should be deflated */
+    private volatile boolean compressColumns = true;
+
+    /** Deflating saved columns makes them several times smaller, at a cost of some CPU time. Enabled by default.
+     * Columns are loaded correctly regardless of this setting. */
+    public void setCompressColumns(boolean compressColumns) {
+        this.compressColumns = compressColumns;
+    }
+
+    /** Set how much memory may be used to keep deflated data of recently saved columns, so that they can be loaded
+     * again without reading the disk. 16 MB by default, 0 disables the cache. */
+    public void setCachedColumnsBudget(long bytes) {
+        this.cachedColumnsBudget = bytes;
+        synchronized (cachedColumns) {
+            evictCachedColumns();
+        }
+    }
+
+    /** Remove least recently saved columns from the cache, until it fits into the budget. Caller holds the lock. */
+    private void evictCachedColumns() {
+        final LongLruMap<byte[]> cachedColumns = this.cachedColumns;
+        while (cachedColumns.size() > 0 && cachedColumns.totalBytes() > cachedColumnsBudget) {
+            cachedColumns.remove(cachedColumns.oldestKey());
+        }
+    }
+
+    /** Palette index remapping used when saving on the main thread */
+    private int[] paletteRemap_TMP = new int[16];
+    /** Palette used when loading on the generator thread */
+    private Block[] generatorPalette_TMP = new Block[16];
+
+    /** Saver thread only */
+    private final Deflater ioDeflater = new Deflater(Deflater.BEST_SPEED);
+    /** Buffer into which the serialized columns are deflated. Saver thread only. */
+    private byte[] ioDeflated_TMP = new byte[1<<12];
+    private final Inflater generatorInflater = new Inflater();
 
     private boolean loadColumn(ChunkColumn column){
-        final Input in = input_TMP;
-        final File file = getChunkColumnFile(column);
-        if(!file.canRead()) return false;
+        final Input in = generatorInput_TMP;
         try {
-            in.setInputStream(new FileInputStream(file));
+            final long key = chunkColumnKey(column.chunkX, column.chunkY);
+            byte[] data = pendingWrites.get(key);
+            if (data == null) {
+                synchronized (cachedColumns) {
+                    // Column is going to be loaded, until it is saved again, the cached data are not needed
+                    data = cachedColumns.get(key);
+                    cachedColumns.remove(key);
+                }
+            }
+            if (data == null) {
+                data = getRegionFile(column.chunkX, column.chunkY)
+                        .read(RegionFile.columnIndex(column.chunkX, column.chunkY));
+            }
+            final byte format;
+            if (data == null) {
+                final File legacyFile = getLegacyChunkColumnFile(column.chunkX, column.chunkY);
+                if(!legacyFile.canRead()) return false;
+                in.setInputStream(new FileInputStream(legacyFile));
+                format = COLUMN_FORMAT_LEGACY;
+            } else if (data.length == 0) {
+                throw new IllegalStateException("Empty column data");
+            } else if (data[0] <= COLUMN_FORMAT_LEGACY) {
+                in.setBuffer(data);
+                format = COLUMN_FORMAT_LEGACY;
+            } else {
+                format = (byte) (data[0] & ~COLUMN_FORMAT_DEFLATED_BIT);
+                if (format != COLUMN_FORMAT_PALETTE && format != COLUMN_FORMAT_HEIGHTMAP) {
+                    throw new IllegalStateException("Unknown column format " + data[0]);
+                }
+                if ((data[0] & COLUMN_FORMAT_DEFLATED_BIT) != 0) {
+                    in.setBuffer(inflate(data), 0, inflatedLength(data));
+                } else {
+                    in.setBuffer(data, 1, data.length - 1);
+                }
+            }
 
-            column.loadColumn(in);
+            column.loadColumn(in, format);
             return true;
         } catch (Exception e) {
             Gdx.app.error(LOG, "Failed to load chunk", e);
@@ -110,22 +461,167 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
         return false;
     }
 
+    /** Serialize the column and queue it for writing.
+     * @return true if the column was serialized successfully */
     private boolean saveColumn(ChunkColumn column) {
-        final Output out = output_TMP;
+        final Output out = columnOutput_TMP;
+        final byte[] data;
         try {
-            final File file = getChunkColumnFile(column);
             out.clear();
-            out.setOutputStream(new FileOutputStream(file, false));
-
+            out.writeByte(COLUMN_FORMAT_HEIGHTMAP);
             column.saveColumn(out);
+            data = out.toBytes();
+        } catch (Exception e) {
+            Gdx.app.error(LOG, "Failed to save chunk", e);
+            return false;
+        }
+
+        final int chunkX = column.chunkX;
+        final int chunkY = column.chunkY;
+        final Long key = chunkColumnKey(chunkX, chunkY);
+        pendingWrites.put(key, data);
+        ioExecutor.execute(() -> {
+            writeColumn(chunkX, chunkY, data);
+            // Newer data may have been queued in the meantime
+            pendingWrites.remove(key, data);
+        });
+        return true;
+    }
+
+    /** Write serialized column into its region. Saver thread only. */
+    private void writeColumn(int chunkX, int chunkY, byte[] data) {
+        try {
+            final RegionFile region = getRegionFile(chunkX, chunkY);
+            final int columnIndex = RegionFile.columnIndex(chunkX, chunkY);
+            final boolean cache = cachedColumnsBudget > 0;
+            if (compressColumns || cache) {
+                final int deflatedLength = deflate(data);
+                if (compressColumns) {
+                    region.write(columnIndex, ioDeflated_TMP, deflatedLength);
+                } else {
+                    region.write(columnIndex, data, data.length);
+                }
+                if (cache) {
+                    final byte[] deflated = Arrays.copyOf(ioDeflated_TMP, deflatedLength);
+                    synchronized (cachedColumns) {
+                        cachedColumns.put(chunkColumnKey(chunkX, chunkY), deflated, deflated.length + 16);
+                        evictCachedColumns();
+                    }
+                }
+            } else {
+                region.write(columnIndex, data, data.length);
+            }
+
+            final File legacyFile = getLegacyChunkColumnFile(chunkX, chunkY);
+            if (legacyFile.exists() && !legacyFile.delete()) {
+                Gdx.app.error(LOG, "Failed to delete migrated chunk file " + legacyFile);
+            }
+        } catch (Exception e) {
+            Gdx.app.error(LOG, "Failed to write chunk", e);
+        }
+    }
 
+    /** Deflate the serialized column and prefix it with its format, with {@link #COLUMN_FORMAT_DEFLATED_BIT} set.
+     * Saver thread only.
+     * @return length of the result in {@link #ioDeflated_TMP} */
+    private int deflate(byte[] data) {
+        final byte format = (byte) (data[0] | COLUMN_FORMAT_DEFLATED_BIT);
+        final int length = data.length - 1;
+        final Deflater deflater = this.ioDeflater;
+        deflater.reset();
+        deflater.setInput(data, 1, length);
+        deflater.finish();
+
+        byte[] result = ioDeflated_TMP;
+        result[0] = format;
+        result[1] = (byte) (length >>> 24);
+        result[2] = (byte) (length >>> 16);
+        result[3] = (byte) (length >>> 8);
+        result[4] = (byte) length;
+        int position = 5;
+        while (!deflater.finished()) {
+            if (position == result.length) {
+                result = ioDeflated_TMP = Arrays.copyOf(result, result.length << 1);
+            }
+            position += deflater.deflate(result, position, result.length - position);
+        }
+        return position;
+    }
+
+    private static int inflatedLength(byte[] data) {
+        return ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16) | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+    }
+
+    /** Inflate the data in format with {@link #COLUMN_FORMAT_DEFLATED_BIT}. Generator thread only. */
+    private byte[] inflate(byte[] data) throws DataFormatException {
+        final int length = inflatedLength(data);
+        if (length < 0) throw new IllegalStateException("Invalid inflated length " + length);
+        final byte[] result = new byte[length];
+
+        final Inflater inflater = this.generatorInflater;
+        inflater.reset();
+        inflater.setInput(data, 5, data.length - 5);
+        int position = 0;
+        while (position < length) {
+            final int read = inflater.inflate(result, position, length - position);
+            if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new IllegalStateException("Deflated column data ended prematurely");
+            }
+            position += read;
+        }
+        return result;
+    }
+
+    private File getSeedFile(){
+        return new File(worldBase, "seed.bin");
+    }
+
+    /** Load the world seed, or create and save a new one, if the world does not have one yet.
+     * @throws IllegalStateException if the seed exists but can't be read, because unsaved columns would change */
+    private void loadSeed(){
+        final File file = getSeedFile();
+        if(file.exists()){
+            final Input in = input_TMP;
+            try {
+                in.setInputStream(new FileInputStream(file));
+                worldSeed = in.readLong();
+                return;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to load world seed from " + file, e);
+            } finally {
+                StreamUtils.closeQuietly(in);
+            }
+        }
+
+        if (hasSavedData()) {
+            // Saved before seeds were introduced, terrain generated with seed 0 is the same as back then
+            worldSeed = 0;
+        } else {
+            worldSeed = MathUtils.random.nextLong();
+        }
+        final Output out = output_TMP;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            worldBase.mkdirs();
+            out.clear();
+            out.setOutputStream(new FileOutputStream(file, false));
+            out.writeLong(worldSeed);
             out.close();
-            return true;
         } catch (Exception e) {
-            Gdx.app.error(LOG, "Failed to save chunk", e);
+            Gdx.app.error(LOG, "Failed to save world seed", e);
         } finally {
             StreamUtils.closeQuietly(out);
         }
+    }
+
+    /** @return true if anything of the world was saved already */
+    private boolean hasSavedData(){
+        if (getWorldFile().exists()) return true;
+        final String[] files = worldBase.list();
+        if (files == null) return false;
+        for (String name : files) {
+            if ((name.startsWith("region.") || name.startsWith("chunk.")) && name.endsWith(".bin")) return true;
+        }
         return false;
     }
 
@@ -173,26 +669,23 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
     }
     //endregion
 
-    private void generateColumn(ChunkColumn column) {
-        generator.generateColumn(column);
-    }
-
-    private void populateColumn(ChunkColumn column) {
-        for (ChunkPopulator populator : populators) {
-            populator.populateColumn(column);
-        }
-        column.ready = true;
-    }
-
     @Override
     public void returnChunk(Chunk chunk) {
-        final ChunkColumn column = getPopulatedColumn(chunk.x, chunk.y);
+        final long key = chunkColumnKey(chunk.x, chunk.y);
+        final ChunkColumn column = chunkColumns.get(key);
+        if (column == null) throw new IllegalArgumentException("Returned chunk " + chunk + " was not borrowed");
         column.returnChunk(chunk.z);
         if (column.canBeSaved()) {
-            //Save it and throw away
-            if(saveColumn(column)){
-                chunkColumns.remove(chunkColumnKey(column.chunkX, column.chunkY));
+            //Save it (unless it can be generated again) and throw away
+            if(column.isPristine()){
+                column.freeEntityStorages();
+            } else if(!saveColumn(column)){
+                return;
             }
+            chunkColumns.remove(key);
+            column.recycle();
+            // Generator thread may load it again from now on
+            generatorExecutor.execute(() -> handedOverColumns.remove(key));
         }
     }
 
@@ -204,9 +697,18 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
     public final class ChunkColumn {
         public final int chunkX, chunkY;
         private final Chunk[] chunks = new Chunk[CHUNK_LAYERS];
+        /** Heightmap shared by all chunks of this column */
+        public final Heightmap heightmap = new Heightmap();
         private final Mask borrowedChunks = new Mask();
         private final Mask readyChunks = new Mask();
-        private boolean populated = false;
+        /** Entity storages of loaded chunks, which were not yet borrowed */
+        private final EntityStorage[] entityStorages = new EntityStorage[CHUNK_LAYERS];
+        /** Column was loaded from disk, so it has to be saved even if it was not modified */
+        private boolean persisted = false;
+        /** When not null, this column holds only generated terrain and is being populated.
+         * Writes are redirected into the target, if they fall into it, and discarded otherwise. */
+        private ChunkColumn populationTarget = null;
+        /** Column has been handed over to the main thread and its chunks end populating when first retrieved. */
         private boolean ready = false;
 
         private ChunkColumn(int chunkX, int chunkY) {
@@ -225,122 +727,153 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
         }
 
         public boolean canBeSaved() {
-            return populated && borrowedChunks.isEmpty();
+            return borrowedChunks.isEmpty();
+        }
+
+        /** @return true if the column is the same as when it was generated, so it does not have to be saved */
+        boolean isPristine() {
+            if (persisted) return false;
+            for (int chunkZ = 0; chunkZ < CHUNK_LAYERS; chunkZ++) {
+                final Chunk chunk = chunks[chunkZ];
+                if (chunk == null) continue;
+                if (chunk.isModified()) return false;
+                final EntityStorage storage = chunk.getEntityStorage() != null ? chunk.getEntityStorage() : entityStorages[chunkZ];
+                if (storage != null && !storage.isEmpty()) return false;
+            }
+            return true;
+        }
+
+        /** Free entity storages of the column which is being thrown away without saving. */
+        void freeEntityStorages() {
+            for (int chunkZ = 0; chunkZ < CHUNK_LAYERS; chunkZ++) {
+                final Chunk chunk = chunks[chunkZ];
+                if (chunk != null && chunk.getEntityStorage() != null) {
+                    EntityStorage.free(chunk.getEntityStorage());
+                }
+                if (entityStorages[chunkZ] != null) {
+                    EntityStorage.free(entityStorages[chunkZ]);
+                    entityStorages[chunkZ] = null;
+                }
+            }
+        }
+
+        /** Recycle storages of all chunks of this column, which is being thrown away. */
+        void recycle() {
+            for (Chunk chunk : chunks) {
+                if (chunk != null) {
+                    chunk.recycle();
+                }
+            }
+        }
+
+        /** Random generator for the generator or populator currently working on this column.
+         * It is seeded from the world seed, column position and the populator, so that the results are reproducible.
+         * Generators and populators must not use any other source of randomness. */
+        public Random random() {
+            return populationTarget != null ? populatorRandom : terrainRandom;
+        }
+
+        /** @return seed of the world, for generators which need randomness shared by all columns */
+        public long worldSeed() {
+            return worldSeed;
         }
 
         private Chunk getChunk(int chunkZ) {
             Chunk chunk = chunks[chunkZ];
             if (chunk == null) {
-                chunk = chunks[chunkZ] = new Chunk(world, chunkX, chunkY, chunkZ);
+                chunk = chunks[chunkZ] = new Chunk(world, chunkX, chunkY, chunkZ, heightmap);
             }
             if (ready && !readyChunks.get(chunkZ)) {
-                chunk.endPopulating(null);
+                chunk.endPopulating(entityStorages[chunkZ]);
+                entityStorages[chunkZ] = null;
                 readyChunks.set(chunkZ);
             }
             return chunk;
         }
 
-        public void setBlock(int inChunkX, int inChunkY, int inColumnZ, Block block) {
-            final int inChunkZ = inColumnZ & CHUNK_SIZE_MASK;
-            final int chunkZ = inColumnZ >> CHUNK_SIZE_SHIFT;
-
-            if (chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return;
-
-            if (validInChunkCoordinate(inChunkX) && validInChunkCoordinate(inChunkY)) {
-                getChunk(chunkZ).setLocalBlock(inChunkX, inChunkY, inChunkZ, block);
-            } else if (populated) {
-                getGeneratedColumn(chunkX + (inChunkX >> CHUNK_SIZE_SHIFT), chunkY + (inChunkY >> CHUNK_SIZE_SHIFT))
-                        .getChunk(chunkZ)
-                        .setLocalBlock(inChunkX & CHUNK_SIZE_MASK, inChunkY & CHUNK_SIZE_MASK, inChunkZ, block);
-            } else {
+        /** @return column into which the block at given in-column coordinates should be written,
+         * or null if the write should be discarded */
+        private ChunkColumn writeTarget(int inColumnX, int inColumnY) {
+            final ChunkColumn target = populationTarget;
+            if (target == null) {
+                if (validInChunkCoordinate(inColumnX) && validInChunkCoordinate(inColumnY)) return this;
                 throw new IllegalArgumentException("Generator is not permitted to modify chunks outside of its column");
             }
+            if (chunkX + (inColumnX >> CHUNK_SIZE_SHIFT) == target.chunkX
+                    && chunkY + (inColumnY >> CHUNK_SIZE_SHIFT) == target.chunkY) {
+                return target;
+            }
+            return null;
         }
 
-        public void setBlockIfAir(int inChunkX, int inChunkY, int inColumnZ, Block block) {
-            final int inChunkZ = inColumnZ & CHUNK_SIZE_MASK;
-            final int chunkZ = inColumnZ >> CHUNK_SIZE_SHIFT;
+        /** @return column from which the block at given in-column coordinates should be read */
+        private ChunkColumn readSource(int inColumnX, int inColumnY) {
+            if (validInChunkCoordinate(inColumnX) && validInChunkCoordinate(inColumnY)) return this;
+            if (populationTarget == null) {
+                throw new IllegalArgumentException("Generator is not permitted to read chunks outside of its column");
+            }
+            return getTerrainColumn(chunkX + (inColumnX >> CHUNK_SIZE_SHIFT), chunkY + (inColumnY >> CHUNK_SIZE_SHIFT));
+        }
 
+        public void setBlock(int inColumnX, int inColumnY, int inColumnZ, Block block) {
+            final int chunkZ = inColumnZ >> CHUNK_SIZE_SHIFT;
             if (chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return;
 
-            final Chunk chunk;
+            final ChunkColumn target = writeTarget(inColumnX, inColumnY);
+            if (target == null) return;
+            target.getChunk(chunkZ).setLocalBlock(inColumnX & CHUNK_SIZE_MASK, inColumnY & CHUNK_SIZE_MASK, inColumnZ & CHUNK_SIZE_MASK, block);
+        }
 
-            if (validInChunkCoordinate(inChunkX) && validInChunkCoordinate(inChunkY)) {
-                chunk = getChunk(chunkZ);
-            } else if (populated) {
-                chunk = getGeneratedColumn(chunkX + (inChunkX >> CHUNK_SIZE_SHIFT), chunkY + (inChunkY >> CHUNK_SIZE_SHIFT))
-                        .getChunk(chunkZ);
-                inChunkX &= CHUNK_SIZE_MASK;
-                inChunkY &= CHUNK_SIZE_MASK;
-            } else {
-                throw new IllegalArgumentException("Generator is not permitted to modify chunks outside of its column");
-            }
+        public void setBlockIfAir(int inColumnX, int inColumnY, int inColumnZ, Block block) {
+            final int chunkZ = inColumnZ >> CHUNK_SIZE_SHIFT;
+            if (chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return;
 
-            final Block presentBlock = chunk.getLocalBlock(inChunkX, inChunkY, inChunkZ);
-            if (presentBlock == Air.AIR) {
+            final ChunkColumn target = writeTarget(inColumnX, inColumnY);
+            if (target == null) return;
+            final Chunk chunk = target.getChunk(chunkZ);
+            final int inChunkX = inColumnX & CHUNK_SIZE_MASK;
+            final int inChunkY = inColumnY & CHUNK_SIZE_MASK;
+            final int inChunkZ = inColumnZ & CHUNK_SIZE_MASK;
+            if (chunk.getLocalBlock(inChunkX, inChunkY, inChunkZ) == Air.AIR) {
                 chunk.setLocalBlock(inChunkX, inChunkY, inChunkZ, block);
             }
         }
 
-        public void setBlockColumn(int inChunkX, int inChunkY, int inColumnZ, int height, Block block) {
-            final int maxColumnZ = inColumnZ + Math.min(height, CHUNK_LAYERS << CHUNK_SIZE_SHIFT - inColumnZ);
-            if (maxColumnZ <= inColumnZ) return;
-
-            final ChunkColumn column;
-
-            if (validInChunkCoordinate(inChunkX) && validInChunkCoordinate(inChunkY)) {
-                column = this;
-            } else if (populated) {
-                column = getGeneratedColumn(chunkX + inChunkX >> CHUNK_SIZE_SHIFT, chunkY + inChunkY >> CHUNK_SIZE_SHIFT);
-                inChunkX &= CHUNK_SIZE_MASK;
-                inChunkY &= CHUNK_SIZE_MASK;
-            } else {
-                throw new IllegalArgumentException("Generator is not permitted to modify chunks outside of its column");
-            }
-
-            int inChunkZ = inColumnZ & CHUNK_SIZE_MASK;
-            Chunk chunk = column.getChunk(inColumnZ >> CHUNK_SIZE_SHIFT);
-            while (inColumnZ++ < maxColumnZ) {
-                chunk.setLocalBlock(inChunkX, inChunkY, inChunkZ, block);
-                inChunkZ++;
-                if (inChunkZ == CHUNK_SIZE) {
-                    inChunkZ = 0;
-                    chunk = column.getChunk(inColumnZ >> CHUNK_SIZE_SHIFT);
+        public void setBlockColumn(int inColumnX, int inColumnY, int inColumnZ, int height, Block block) {
+            final int minColumnZ = Math.max(inColumnZ, 0);
+            final int maxColumnZ = Math.min(inColumnZ + height, CHUNK_LAYERS << CHUNK_SIZE_SHIFT);
+            if (maxColumnZ <= minColumnZ) return;
+
+            final ChunkColumn target = writeTarget(inColumnX, inColumnY);
+            if (target == null) return;
+            final int inChunkX = inColumnX & CHUNK_SIZE_MASK;
+            final int inChunkY = inColumnY & CHUNK_SIZE_MASK;
+
+            Chunk chunk = target.getChunk(minColumnZ >> CHUNK_SIZE_SHIFT);
+            for (int z = minColumnZ; z < maxColumnZ; z++) {
+                final int inChunkZ = z & CHUNK_SIZE_MASK;
+                if (inChunkZ == 0) {
+                    chunk = target.getChunk(z >> CHUNK_SIZE_SHIFT);
                 }
+                chunk.setLocalBlock(inChunkX, inChunkY, inChunkZ, block);
             }
         }
 
         public Block getBlock(int inColumnX, int inColumnY, int inColumnZ) {
-            final int inChunkZ = inColumnZ & CHUNK_SIZE_MASK;
             final int chunkZ = inColumnZ >> CHUNK_SIZE_SHIFT;
-
             if (chunkZ < 0 || chunkZ >= CHUNK_LAYERS) return Air.AIR;
 
-            if (validInChunkCoordinate(inColumnX) && validInChunkCoordinate(inColumnY)) {
-                return getChunk(chunkZ).getLocalBlock(inColumnX, inColumnY, inChunkZ);
-            } else if (populated) {
-                return getGeneratedColumn(chunkX + (inColumnX >> CHUNK_SIZE_SHIFT), chunkY + (inColumnY >> CHUNK_SIZE_SHIFT))
-                        .getChunk(chunkZ)
-                        .getLocalBlock(inColumnX & CHUNK_SIZE_MASK, inColumnY & CHUNK_SIZE_MASK, inChunkZ);
-            } else {
-                throw new IllegalArgumentException("Generator is not permitted to read chunks outside of its column");
-            }
+            return readSource(inColumnX, inColumnY).getChunk(chunkZ)
+                    .getLocalBlock(inColumnX & CHUNK_SIZE_MASK, inColumnY & CHUNK_SIZE_MASK, inColumnZ & CHUNK_SIZE_MASK);
         }
 
         /**
          * @return Z coordinate of first block that is not air when going from top on given coordinates.
          * -1 if all blocks in that column are air.
+         * @see Heightmap#getTopNonAirBlockZ(int, int)
          */
         public int getTopNonAirBlockZ(int inChunkX, int inChunkY) {
-            for (int chunkZ = CHUNK_LAYERS - 1; chunkZ >= 0; chunkZ--) {
-                final Chunk chunk = chunks[chunkZ];
-                if (chunk == null || chunk.isEmpty()) continue;
-                for (int inChunkZ = CHUNK_SIZE - 1; inChunkZ >= 0; inChunkZ--) {
-                    final Block block = chunk.getLocalBlock(inChunkX, inChunkY, inChunkZ);
-                    if (block != Air.AIR) return (chunkZ << CHUNK_SIZE_SHIFT) + inChunkZ;
-                }
-            }
-            return -1;
+            return heightmap.getTopNonAirBlockZ(inChunkX, inChunkY);
         }
 
         private static final byte SAVE_BIT_NO_BLOCKS = 1;
@@ -362,7 +895,7 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
                             chunkMask |= SAVE_BIT_NO_BLOCKS;
                             hasBlocks = false;
                         }
-                        if (chunk.getEntityStorage() == null) {
+                        if (chunk.getEntityStorage() == null && entityStorages[chunkZ] == null) {
                             chunkMask |= SAVE_BIT_NO_ENTITIES;
                             hasEntities = false;
                         }
@@ -370,45 +903,115 @@ public final class PersistentGeneratorChunkProvider implements ChunkProvider {
                     output.writeByte(chunkMask);
                 }
                 if (hasBlocks) {
-                    for (Block block : chunk.blocks) {
-                        output.writeInt(block.getRegistryID(), true);
-                    }
+                    saveBlocks(chunk.blocks, output);
                 }
                 if (hasEntities) {
-                    EntityStorage.saveAndFreeStorage(chunk.getEntityStorage(), output);
+                    final EntityStorage storage = chunk.getEntityStorage();
+                    if (storage != null) {
+                        EntityStorage.saveAndFreeStorage(storage, output);
+                    } else {
+                        // Loaded, but never borrowed
+                        EntityStorage.saveAndFreeStorage(entityStorages[chunkZ], output);
+                        entityStorages[chunkZ] = null;
+                    }
+                }
+            }
+            heightmap.save(output);
+        }
+
+        /** Write blocks as a palette of used blocks, followed by runs of (length, palette index). */
+        private void saveBlocks(BlockStorage blocks, Output output) {
+            final int paletteSize = blocks.paletteSize();
+            int[] remap = paletteRemap_TMP;
+            if (remap.length < paletteSize) {
+                remap = paletteRemap_TMP = new int[paletteSize];
+            }
+
+            // Palette may contain blocks which are no longer present, those are not saved
+            Arrays.fill(remap, 0, paletteSize, -1);
+            for (int key = 0; key < BlockStorage.SIZE; key++) {
+                remap[blocks.paletteIndex(key)] = 0;
+            }
+            int usedPaletteSize = 0;
+            for (int i = 0; i < paletteSize; i++) {
+                if (remap[i] == 0) {
+                    remap[i] = usedPaletteSize++;
+                }
+            }
+            output.writeInt(usedPaletteSize, true);
+            for (int i = 0; i < paletteSize; i++) {
+                if (remap[i] != -1) {
+                    output.writeInt(blocks.paletteEntry(i).getRegistryID(), true);
                 }
             }
+
+            int runStart = 0;
+            int runIndex = blocks.paletteIndex(0);
+            for (int key = 1; key < BlockStorage.SIZE; key++) {
+                final int index = blocks.paletteIndex(key);
+                if (index != runIndex) {
+                    output.writeInt(key - runStart, true);
+                    output.writeInt(remap[runIndex], true);
+                    runStart = key;
+                    runIndex = index;
+                }
+            }
+            output.writeInt(BlockStorage.SIZE - runStart, true);
+            output.writeInt(remap[runIndex], true);
+        }
+
+        private void loadBlocks(BlockStorage blocks, Input input) {
+            final int paletteSize = input.readInt(true);
+            if (paletteSize <= 0 || paletteSize > BlockStorage.SIZE) throw new IllegalStateException("Invalid palette size " + paletteSize);
+            Block[] palette = generatorPalette_TMP;
+            if (palette.length < paletteSize) {
+                palette = generatorPalette_TMP = new Block[paletteSize];
+            }
+            for (int i = 0; i < paletteSize; i++) {
+                palette[i] = Registry.block(input.readInt(true));
+            }
+            blocks.reset(palette, paletteSize);
+
+            int key = 0;
+            while (key < BlockStorage.SIZE) {
+                final int runLength = input.readInt(true);
+                if (runLength <= 0 || key + runLength > BlockStorage.SIZE) throw new IllegalStateException("Invalid run length " + runLength);
+                blocks.fill(key, key + runLength, input.readInt(true));
+                key += runLength;
+            }
         }
 
-        void loadColumn(Input input) {
+        /** Load the column in given format. Blocks of legacy format are stored as one registry ID per block. */
+        void loadColumn(Input input, byte format) {
             for (int chunkZ = 0; chunkZ < CHUNK_LAYERS; chunkZ++) {
                 final byte chunkMask = input.readByte();
                 final boolean hasBlocks = (chunkMask & SAVE_BIT_NO_BLOCKS) == 0;
                 final boolean hasEntities = (chunkMask & SAVE_BIT_NO_ENTITIES) == 0;
                 if(hasBlocks || hasEntities){
-                    final Chunk chunk = new Chunk(world, chunkX, chunkY, chunkZ);
+                    final Chunk chunk = new Chunk(world, chunkX, chunkY, chunkZ, heightmap);
                     if (hasBlocks) {
-                        for (int i = 0; i < chunk.blocks.length; i++) {
-                            final int blockID = input.readInt(true);
-                            final int x = Dimensions.inChunkKeyToX(i);
-                            final int y = Dimensions.inChunkKeyToY(i);
-                            final int z = Dimensions.inChunkKeyToZ(i);
-                            chunk.setLocalBlock(x, y, z, Registry.block(blockID));
+                        if (format == COLUMN_FORMAT_LEGACY) {
+                            for (int i = 0; i < BlockStorage.SIZE; i++) {
+                                chunk.blocks.set(i, Registry.block(input.readInt(true)));
+                            }
+                        } else {
+                            loadBlocks(chunk.blocks, input);
                         }
                     }
-                    final EntityStorage entityStorage;
                     if(hasEntities) {
-                        entityStorage = EntityStorage.obtainAndLoadStorage(input);
-                    } else {
-                        entityStorage = null;
+                        // Chunk ends populating with it when borrowed by the main thread
+                        entityStorages[chunkZ] = EntityStorage.obtainAndLoadStorage(input);
                     }
-                    chunk.endPopulating(entityStorage);
-                    readyChunks.set(chunkZ);
                     chunks[chunkZ] = chunk;
                 }
             }
-            populated = true;
-            ready = true;
+            if (format == COLUMN_FORMAT_HEIGHTMAP) {
+                heightmap.load(input);
+            } else {
+                // Blocks were loaded without notifying the heightmap
+                heightmap.recompute();
+            }
+            persisted = true;
         }
     }
 
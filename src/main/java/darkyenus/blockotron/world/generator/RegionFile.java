@@ -0,0 +1,180 @@
+package darkyenus.blockotron.world.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Container file which holds serialized data of {@link #REGION_SIZE}x{@link #REGION_SIZE} chunk columns.
+ *
+ * File starts with a header sector, which contains one int entry for each column:
+ * 24 msb bits are the offset of the first sector of the column data, 8 lsb bits are the amount of sectors.
+ * Entry 0 means that the column is not stored.
+ * Column data start with an int length of the payload, followed by the payload and padded to the whole sector.
+ *
+ * Reads go through memory mapped file, writes through the channel. All methods are thread safe.
+ */
+public final class RegionFile {
+
+    /** Amount of columns stored in one region in X and Y dimension */
+    public static final int REGION_SIZE = 32;
+    public static final int REGION_SHIFT = 5;
+    public static final int REGION_MASK = REGION_SIZE - 1;
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int SECTOR_SHIFT = 12;
+    private static final int MAX_SECTORS_PER_COLUMN = 0xFF;
+    private static final int HEADER_SECTORS = 1;
+    private static final int LENGTH_PREFIX = 4;
+
+    private final FileChannel channel;
+    /** Entries of the header, kept in memory */
+    private final int[] header = new int[REGION_SIZE * REGION_SIZE];
+    /** Set bit = sector is in use */
+    private final BitSet usedSectors = new BitSet();
+    private int totalSectors;
+
+    /** Mapping of the file for reads, replaced when the file grows */
+    private MappedByteBuffer mapped = null;
+
+    public RegionFile(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        final long size = channel.size();
+        if (size < HEADER_SECTORS * SECTOR_SIZE) {
+            // New or corrupted file, write empty header
+            channel.write(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE), 0);
+            totalSectors = HEADER_SECTORS;
+        } else {
+            totalSectors = (int) ((size + SECTOR_SIZE - 1) >> SECTOR_SHIFT);
+            final ByteBuffer headerBuffer = ByteBuffer.allocate(header.length * 4);
+            channel.read(headerBuffer, 0);
+            headerBuffer.flip();
+            headerBuffer.asIntBuffer().get(header);
+        }
+
+        usedSectors.set(0, HEADER_SECTORS);
+        for (int entry : header) {
+            if (entry == 0) continue;
+            final int offset = entry >>> 8;
+            final int sectors = entry & 0xFF;
+            if (offset + sectors <= totalSectors) {
+                usedSectors.set(offset, offset + sectors);
+            }
+        }
+    }
+
+    /** @return index of the column in this region, from world chunk column coordinates */
+    public static int columnIndex(int chunkX, int chunkY) {
+        return ((chunkY & REGION_MASK) << REGION_SHIFT) | (chunkX & REGION_MASK);
+    }
+
+    /** @return true if the column of given {@link #columnIndex(int, int)} is stored in this region */
+    public synchronized boolean contains(int columnIndex) {
+        return header[columnIndex] != 0;
+    }
+
+    /** Read the data of the column.
+     * @return column payload or null if the column is not stored */
+    public synchronized byte[] read(int columnIndex) throws IOException {
+        final int entry = header[columnIndex];
+        if (entry == 0) return null;
+        final int offset = entry >>> 8;
+        final int sectors = entry & 0xFF;
+        if (offset + sectors > totalSectors) throw new IOException("Column " + columnIndex + " data out of file");
+
+        final long fileSize = (long) totalSectors << SECTOR_SHIFT;
+        MappedByteBuffer mapped = this.mapped;
+        if (mapped == null || mapped.capacity() < fileSize) {
+            this.mapped = mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        final int position = offset << SECTOR_SHIFT;
+        final int length = mapped.getInt(position);
+        if (length < 0 || length + LENGTH_PREFIX > sectors << SECTOR_SHIFT) {
+            throw new IOException("Column " + columnIndex + " has invalid length " + length);
+        }
+        final byte[] result = new byte[length];
+        final ByteBuffer view = mapped.duplicate();
+        view.position(position + LENGTH_PREFIX);
+        view.get(result, 0, length);
+        return result;
+    }
+
+    /** Write the data of the column, replacing previous data, if any. */
+    public synchronized void write(int columnIndex, byte[] data, int length) throws IOException {
+        final int sectorsNeeded = (length + LENGTH_PREFIX + SECTOR_SIZE - 1) >> SECTOR_SHIFT;
+        if (sectorsNeeded > MAX_SECTORS_PER_COLUMN) throw new IOException("Column data too large: " + length + " bytes");
+
+        final int oldEntry = header[columnIndex];
+        final int oldOffset = oldEntry >>> 8;
+        final int oldSectors = oldEntry & 0xFF;
+
+        final int offset;
+        if (oldEntry != 0 && oldSectors >= sectorsNeeded) {
+            // Fits into the old place
+            offset = oldOffset;
+            usedSectors.clear(oldOffset + sectorsNeeded, oldOffset + oldSectors);
+        } else {
+            if (oldEntry != 0) {
+                usedSectors.clear(oldOffset, oldOffset + oldSectors);
+            }
+            offset = findFreeSectors(sectorsNeeded);
+        }
+        usedSectors.set(offset, offset + sectorsNeeded);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(sectorsNeeded << SECTOR_SHIFT);
+        buffer.putInt(length);
+        buffer.put(data, 0, length);
+        buffer.clear();
+        writeFully(buffer, (long) offset << SECTOR_SHIFT);
+        if (offset + sectorsNeeded > totalSectors) {
+            totalSectors = offset + sectorsNeeded;
+        }
+
+        setHeaderEntry(columnIndex, (offset << 8) | sectorsNeeded);
+    }
+
+    /** Remove the column from this region, if present. */
+    public synchronized void remove(int columnIndex) throws IOException {
+        final int oldEntry = header[columnIndex];
+        if (oldEntry == 0) return;
+        final int oldOffset = oldEntry >>> 8;
+        usedSectors.clear(oldOffset, oldOffset + (oldEntry & 0xFF));
+        setHeaderEntry(columnIndex, 0);
+    }
+
+    private int findFreeSectors(int count) {
+        int start = usedSectors.nextClearBit(HEADER_SECTORS);
+        while (start < totalSectors) {
+            final int end = usedSectors.nextSetBit(start);
+            if (end == -1 || end - start >= count) {
+                return start;
+            }
+            start = usedSectors.nextClearBit(end);
+        }
+        return start;
+    }
+
+    private void setHeaderEntry(int columnIndex, int entry) throws IOException {
+        header[columnIndex] = entry;
+        final ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(entry);
+        buffer.clear();
+        writeFully(buffer, (long) columnIndex * 4);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mapped = null;
+        channel.close();
+    }
+}
@@ -15,11 +15,13 @@ public class PerlinChunkGenerator implements ChunkGenerator {
     @Override
     public void generateColumn(PersistentGeneratorChunkProvider.ChunkColumn column) {
         float scale = 1f/40f;
+        // Noise repeats every 256 units, each seed gets its own slice
+        final float zOff = (column.worldSeed() & 0xFFFF) / 256f;
         final int xOff = column.chunkX << Dimensions.CHUNK_SIZE_SHIFT;
         final int yOff = column.chunkY << Dimensions.CHUNK_SIZE_SHIFT;
         for (int x = 0; x < Dimensions.CHUNK_SIZE; x++) {
             for (int y = 0; y < Dimensions.CHUNK_SIZE; y++) {
-                final float rand = STBPerlin.stb_perlin_noise3((xOff + x) * scale, (yOff + y) * scale, 0, 0, 0, 0);
+                final float rand = STBPerlin.stb_perlin_noise3((xOff + x) * scale, (yOff + y) * scale, zOff, 0, 0, 0);
                 final int height = MathUtils.round(20 + rand * 20);
                 column.setBlockColumn(x, y, 0, height, BasicBlocks.DIRT);
                 column.setBlock(x, y, height, BasicBlocks.GRASS);
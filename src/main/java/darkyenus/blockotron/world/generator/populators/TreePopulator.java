@@ -1,12 +1,13 @@
 package darkyenus.blockotron.world.generator.populators;
 
-import com.badlogic.gdx.math.MathUtils;
 import darkyenus.blockotron.world.Block;
 import darkyenus.blockotron.world.Dimensions;
 import darkyenus.blockotron.world.blocks.BasicBlocks;
 import darkyenus.blockotron.world.generator.ChunkPopulator;
 import darkyenus.blockotron.world.generator.PersistentGeneratorChunkProvider;
 
+import java.util.Random;
+
 /**
  *
  */
@@ -14,9 +15,10 @@ public class TreePopulator implements ChunkPopulator {
 
     @Override
     public void populateColumn(PersistentGeneratorChunkProvider.ChunkColumn column) {
-        final int amountOfTrees = MathUtils.random(0, 3);
+        final Random random = column.random();
+        final int amountOfTrees = random.nextInt(4);
         for (int i = 0; i < amountOfTrees; i++) {
-            final int x = MathUtils.random.nextInt(Dimensions.CHUNK_SIZE), y = MathUtils.random.nextInt(Dimensions.CHUNK_SIZE);
+            final int x = random.nextInt(Dimensions.CHUNK_SIZE), y = random.nextInt(Dimensions.CHUNK_SIZE);
             final int z = column.getTopNonAirBlockZ(x, y);
             final Block block = column.getBlock(x, y, z);
             if (block == BasicBlocks.GRASS) {
@@ -26,7 +28,7 @@ public class TreePopulator implements ChunkPopulator {
     }
 
     private void spawnTree(PersistentGeneratorChunkProvider.ChunkColumn column, int x, int y, int z){
-        int trunkHeight = MathUtils.random(4, 8);
+        int trunkHeight = 4 + column.random().nextInt(5);
         for (int oX = -2; oX <= 2; oX++) {
             for (int oY = -2; oY <= 2; oY++) {
                 for (int oZ = trunkHeight-3; oZ < trunkHeight + 2; oZ++) {
@@ -1,17 +1,28 @@
 package darkyenus.blockotron.world.systems;
 
-import com.badlogic.gdx.utils.IntArray;
-import com.badlogic.gdx.utils.IntMap;
-import com.badlogic.gdx.utils.LongArray;
-import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.*;
 import com.github.antag99.retinazer.*;
+import darkyenus.blockotron.utils.LongIntMap;
+import darkyenus.blockotron.utils.LongLruMap;
 import darkyenus.blockotron.world.*;
 import darkyenus.blockotron.world.components.BlockPosition;
 import darkyenus.blockotron.world.components.ChunkLoading;
+import darkyenus.blockotron.world.components.Kinematic;
 import darkyenus.blockotron.world.components.Position;
 
+import java.util.Comparator;
+
 /**
- * System for loading chunks around entities that request it
+ * System for loading chunks around entities that request it.
+ *
+ * Columns which are newly needed are not loaded immediately, but queued. The queue is ordered by distance
+ * to the nearest anchor, columns in the direction in which the anchor last moved go first among equally distant ones.
+ * Each update, only as many columns are requested as the budget (see {@link #setLoadBudget(int, long)}) allows,
+ * so that the nearest chunks appear first and no single frame has to load the whole area.
+ *
+ * Columns along the projected path of moving {@link Kinematic} anchors are prefetched: the chunk provider is asked
+ * to prepare them in the background, before they are needed, see {@link #setPrefetchLookahead(float)}.
  */
 @SkipWire
 public class ChunkLoadingSystem extends EntityProcessorSystem {
@@ -19,16 +30,47 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
     private final boolean serverMode;
     /** key is entity or temporary anchor */
     private final IntMap<Anchor> anchors = new IntMap<>();
-    /** key is chunkColumnKey */
-    private final LongMap<Integer> chunkUsageLevels = new LongMap<>();
+    /** How many anchors need each column, by chunkColumnKey. Columns which are not needed are not present. */
+    private final LongIntMap chunkUsageLevels = new LongIntMap(1024);
 
-    /** Columns which are loaded, but not needed anymore and kept because they will probably be needed soon. */
-    private final LongArray inactiveChunks = new LongArray(true, INACTIVE_CHUNKS_THRESHOLD + 256);
+    /** Columns which are loaded, but not needed anymore and kept because they will probably be needed soon.
+     * Least recently left columns are unloaded first, once their estimated size exceeds {@link #inactiveChunksBudget}. */
+    private final LongLruMap<Void> inactiveChunks = new LongLruMap<>();
+    /** Maximum estimated size of inactive columns, in bytes */
+    private long inactiveChunksBudget = 32L << 20;
 
     private boolean inShutdown = false;
 
-    private static final int INACTIVE_CHUNKS_THRESHOLD = 512;
-    private static final int INACTIVE_CHUNKS_KEEP = 128;
+    /** Columns which are needed, but were not yet requested from the world.
+     * Sorted by priority, the most important column is the last one. */
+    private final Array<QueuedColumn> loadQueue = new Array<>(true, 256, QueuedColumn.class);
+    /** Queued columns by chunkColumnKey */
+    private final LongMap<QueuedColumn> queuedColumns = new LongMap<>();
+    /** True when anchors have changed since the load queue was last sorted */
+    private boolean loadQueueDirty = false;
+
+    private final Pool<QueuedColumn> queuedColumnPool = new Pool<QueuedColumn>() {
+        @Override
+        protected QueuedColumn newObject() {
+            return new QueuedColumn();
+        }
+    };
+
+    /** Maximum amount of columns requested from the world in a single update */
+    private int loadBudgetColumns = 16;
+    /** Maximum time spent requesting columns in a single update, in nanoseconds */
+    private long loadBudgetNanos = 3_000_000L;
+
+    /** Columns which were prefetched, but not yet needed, by chunkColumnKey, value is the anchor which prefetched them */
+    private final LongMap<Anchor> prefetchedColumns = new LongMap<>();
+    /** True when anchors or their projected paths have changed since the prefetched columns were last checked */
+    private boolean prefetchDirty = false;
+    /** How far ahead to prefetch, in seconds of movement, 0 = prefetching disabled */
+    private float prefetchLookahead = 2f;
+    private int prefetchHits, prefetchMisses, prefetchWasted;
+
+    /** No more columns are prefetched while this many are prefetched and not yet needed */
+    private static final int MAX_PREFETCHED_COLUMNS = 256;
 
     @Wire
     private World world;
@@ -42,11 +84,67 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
     @Wire
     private Mapper<BlockPosition> blockPositionMapper;
 
+    @Wire
+    private Mapper<Kinematic> kinematicMapper;
+
     public ChunkLoadingSystem(boolean serverMode) {
         super(Family.with(ChunkLoading.class, Position.class));
         this.serverMode = serverMode;
     }
 
+    /** Set how many columns may be requested from the world in a single update.
+     * At least one column is requested each update, if any is queued.
+     * @param columns maximum amount of requested columns
+     * @param nanos maximum time spent requesting them, in nanoseconds */
+    public void setLoadBudget(int columns, long nanos) {
+        this.loadBudgetColumns = Math.max(columns, 1);
+        this.loadBudgetNanos = nanos;
+    }
+
+    /** Set how much memory may be used by columns which are no longer needed, but kept loaded in case they are needed again.
+     * @param bytes estimated size of kept columns, in bytes */
+    public void setInactiveChunksBudget(long bytes) {
+        this.inactiveChunksBudget = bytes;
+        evictInactiveChunks();
+    }
+
+    /** @return amount of columns which are no longer needed, but kept loaded */
+    public int getInactiveColumnCount() {
+        return inactiveChunks.size();
+    }
+
+    /** @return estimated size of columns which are no longer needed, but kept loaded, in bytes */
+    public long getInactiveColumnBytes() {
+        return inactiveChunks.totalBytes();
+    }
+
+    /** @return amount of columns which are needed, but were not yet requested */
+    public int getQueuedColumnCount() {
+        return queuedColumns.size;
+    }
+
+    /** Set how far ahead of moving anchors are columns prefetched.
+     * @param seconds anchors prefetch columns around the position they would reach after moving this long
+     *                at their current velocity, 0 to disable prefetching */
+    public void setPrefetchLookahead(float seconds) {
+        this.prefetchLookahead = Math.max(seconds, 0f);
+    }
+
+    /** @return amount of columns which were needed by a moving anchor and had been prefetched */
+    public int getPrefetchHits() {
+        return prefetchHits;
+    }
+
+    /** @return amount of columns which were needed by a moving anchor, but had not been prefetched */
+    public int getPrefetchMisses() {
+        return prefetchMisses;
+    }
+
+    /** @return amount of prefetched columns which were not needed after all */
+    public int getPrefetchWasted() {
+        return prefetchWasted;
+    }
+
     @Override
     public void setup() {
         super.setup();
@@ -100,6 +198,8 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
                     final Anchor remove = anchors.remove(entity);
                     if(remove != null){
                         remove.remove();
+                        remove.detached = true;
+                        prefetchDirty = true;
                     }
                 }
             }
@@ -113,12 +213,13 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
                 final long key = Dimensions.chunkColumnKey(chunk.x, chunk.y);
                 if(chunkUsageLevels.containsKey(key)){
                     //All is fine, it is active
-                } else if(inactiveChunks.contains(key)){
+                } else if(inactiveChunks.containsKey(key)){
                     //All is fine, it is already inactive
+                    inactiveChunks.addBytes(key, chunk.estimateMemoryBytes());
                 } else {
                     //We do not know anything about this!
                     //Add to inactive chunks to be unloaded later
-                    inactiveChunks.add(key);
+                    inactiveChunks.put(key, null, chunk.estimateMemoryBytes());
                 }
             }
         });
@@ -128,7 +229,162 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
     protected void process(int entity, float delta) {
         if(inShutdown) return;
         final Position position = positionMapper.get(entity);
-        anchors.get(entity).moveTo((int)position.x, (int)position.y);
+        final Anchor anchor = anchors.get(entity);
+        anchor.moveTo((int)position.x, (int)position.y);
+
+        final Kinematic kinematic = kinematicMapper.get(entity);
+        if(prefetchLookahead > 0f && kinematic != null){
+            anchor.prefetch(position.x + kinematic.velX * prefetchLookahead, position.y + kinematic.velY * prefetchLookahead);
+        }
+    }
+
+    @Override
+    protected void update(float delta) {
+        super.update(delta);
+        if(inShutdown) return;
+        if(loadQueueDirty) {
+            sortLoadQueue();
+        }
+        drainLoadQueue();
+        if(prefetchDirty) {
+            cancelStalePrefetches();
+        }
+    }
+
+    /** Ask the world to prefetch the column, if it is not needed, loaded or prefetched yet. */
+    private void prefetchColumn(int x, int y, Anchor anchor) {
+        if (prefetchedColumns.size >= MAX_PREFETCHED_COLUMNS) return;
+        final long key = Dimensions.chunkColumnKey(x, y);
+        if (chunkUsageLevels.containsKey(key) || prefetchedColumns.containsKey(key)) return;
+        if (world.getLoadedChunk(x, y, 0) != null) return;
+        prefetchedColumns.put(key, anchor);
+        world.prefetchColumn(x, y);
+    }
+
+    /** Called when a column becomes needed and is queued for loading, for prefetch metrics. */
+    private void countPrefetch(long key, Anchor anchor) {
+        if (prefetchedColumns.remove(key) != null) {
+            prefetchHits++;
+        } else if (prefetchLookahead > 0f && (anchor.moveX != 0 || anchor.moveY != 0)) {
+            prefetchMisses++;
+        }
+    }
+
+    /** Cancel prefetched columns which are no longer near the projected paths of anchors which prefetched them. */
+    private void cancelStalePrefetches() {
+        prefetchDirty = false;
+        final LongMap.Entries<Anchor> entries = prefetchedColumns.entries();
+        while (entries.hasNext) {
+            final LongMap.Entry<Anchor> entry = entries.next();
+            final Anchor anchor = entry.value;
+            final int x = Dimensions.chunkKeyToX(entry.key);
+            final int y = Dimensions.chunkKeyToY(entry.key);
+            if (anchor.detached || !anchor.isNearPath(x, y)) {
+                world.cancelPrefetch(x, y);
+                entries.remove();
+                prefetchWasted++;
+            }
+        }
+    }
+
+    private void enqueueColumn(long key) {
+        final QueuedColumn column = queuedColumnPool.obtain();
+        column.key = key;
+        queuedColumns.put(key, column);
+        loadQueue.add(column);
+    }
+
+    /** Remove the column from the index and free it. Caller removes it from the {@link #loadQueue}.
+     * @return true if the column is still needed and should be loaded */
+    private boolean dequeueColumn(QueuedColumn column) {
+        final long key = column.key;
+        queuedColumns.remove(key);
+        queuedColumnPool.free(column);
+        if (chunkUsageLevels.get(key, 0) != 0) return true;
+
+        //Not needed anymore, but some of its chunks may have been loaded by other means
+        final int bytes = estimateColumnBytes(key);
+        if (bytes != 0) {
+            inactiveChunks.put(key, null, bytes);
+        }
+        return false;
+    }
+
+    /** Drop queued columns which are no longer needed and sort the rest by their priority. */
+    private void sortLoadQueue() {
+        loadQueueDirty = false;
+        final Array<QueuedColumn> loadQueue = this.loadQueue;
+        final QueuedColumn[] items = loadQueue.items;
+        int kept = 0;
+        for (int i = 0; i < loadQueue.size; i++) {
+            final QueuedColumn column = items[i];
+            if (chunkUsageLevels.get(column.key, 0) == 0) {
+                dequeueColumn(column);
+                continue;
+            }
+            column.distance = Integer.MAX_VALUE;
+            column.alignment = 0f;
+            final int x = Dimensions.chunkKeyToX(column.key);
+            final int y = Dimensions.chunkKeyToY(column.key);
+            for (Anchor anchor : anchors.values()) {
+                anchor.prioritize(column, x, y);
+            }
+            items[kept++] = column;
+        }
+        loadQueue.truncate(kept);
+        loadQueue.sort(LOWEST_PRIORITY_FIRST);
+    }
+
+    /** Request most important queued columns, until the budget for this update is exhausted. */
+    private void drainLoadQueue() {
+        final Array<QueuedColumn> loadQueue = this.loadQueue;
+        if (loadQueue.size == 0) return;
+        final World world = this.world;
+        final long budgetEnd = System.nanoTime() + loadBudgetNanos;
+        int requested = 0;
+        while (loadQueue.size > 0 && requested < loadBudgetColumns) {
+            if (requested > 0 && System.nanoTime() > budgetEnd) break;
+            final QueuedColumn column = loadQueue.pop();
+            final long key = column.key;
+            if (!dequeueColumn(column)) continue;
+
+            final int x = Dimensions.chunkKeyToX(key);
+            final int y = Dimensions.chunkKeyToY(key);
+            //Load (possibly in background)
+            for (int z = 0; z < Dimensions.CHUNK_LAYERS; z++) {
+                world.requestChunk(x, y, z);
+            }
+            requested++;
+        }
+    }
+
+    /** Make the column inactive, it will be unloaded if it is not needed again soon enough. */
+    private void deactivateColumn(long key) {
+        inactiveChunks.put(key, null, estimateColumnBytes(key));
+    }
+
+    /** @return estimated size of loaded chunks of the column, 0 if none is loaded */
+    private int estimateColumnBytes(long columnKey) {
+        final int x = Dimensions.chunkKeyToX(columnKey);
+        final int y = Dimensions.chunkKeyToY(columnKey);
+        int bytes = 0;
+        for (int z = 0; z < Dimensions.CHUNK_LAYERS; z++) {
+            final Chunk chunk = world.getLoadedChunk(x, y, z);
+            if (chunk != null) {
+                bytes += chunk.estimateMemoryBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /** Unload least recently used inactive columns, until they fit into the budget. */
+    private void evictInactiveChunks() {
+        final LongLruMap<Void> inactiveChunks = this.inactiveChunks;
+        while (inactiveChunks.size() > 0 && inactiveChunks.totalBytes() > inactiveChunksBudget) {
+            final long key = inactiveChunks.oldestKey();
+            inactiveChunks.remove(key);
+            unloadChunk(key);
+        }
     }
 
     private void unloadChunk(long columnKey) {
@@ -147,102 +403,205 @@ public class ChunkLoadingSystem extends EntityProcessorSystem {
         //Delete anchors
         anchors.clear();
         //Unload inactive chunks
-        {
-            final int toRemove = inactiveChunks.size;
-            final long[] items = inactiveChunks.items;
-            for (int item = 0; item < toRemove; item++) {
-                final long key = items[item];
-                unloadChunk(key);
-            }
-            inactiveChunks.clear();
+        while (inactiveChunks.size() > 0) {
+            final long key = inactiveChunks.oldestKey();
+            inactiveChunks.remove(key);
+            unloadChunk(key);
         }
         //Unload active chunks
         {
-            final LongMap.Keys activeChunks = chunkUsageLevels.keys();
+            final LongIntMap.Keys activeChunks = chunkUsageLevels.keys();
             while(activeChunks.hasNext){
                 final long key = activeChunks.next();
                 unloadChunk(key);
             }
             chunkUsageLevels.clear();
         }
+        //Forget columns which were never requested
+        for (QueuedColumn column : loadQueue) {
+            queuedColumnPool.free(column);
+        }
+        loadQueue.clear();
+        queuedColumns.clear();
+        prefetchedColumns.clear();
         //Done
     }
 
+    /** Column waiting in the load queue */
+    private static final class QueuedColumn implements Pool.Poolable {
+        long key;
+        /** Squared distance to the nearest anchor, in chunks */
+        int distance;
+        /** How much is the column in the direction of movement of the nearest anchor, -1 to 1 */
+        float alignment;
+
+        @Override
+        public void reset() {
+            key = 0;
+            distance = 0;
+            alignment = 0f;
+        }
+    }
+
+    private static final Comparator<QueuedColumn> LOWEST_PRIORITY_FIRST = (a, b) -> {
+        if (a.distance != b.distance) return Integer.compare(b.distance, a.distance);
+        return Float.compare(a.alignment, b.alignment);
+    };
+
     private final class Anchor {
 
         private int chunkX, chunkY;
         private int radius;
+        /** Direction of the last movement, in chunks */
+        private int moveX, moveY;
+        /** Chunk around which were columns last prefetched */
+        private int prefetchX, prefetchY;
+        /** Entity of this anchor no longer loads chunks */
+        private boolean detached = false;
+
+        /** Raise the priority of the queued column at x, y, if it is closer to this anchor than to the others. */
+        void prioritize(QueuedColumn column, int x, int y) {
+            final int dX = x - chunkX;
+            final int dY = y - chunkY;
+            if (Math.abs(dX) > radius || Math.abs(dY) > radius) return;
+            final int distance = dX * dX + dY * dY;
+            if (distance > column.distance) return;
+
+            float alignment = 0f;
+            final int moveLength2 = moveX * moveX + moveY * moveY;
+            if (distance != 0 && moveLength2 != 0) {
+                alignment = (float) ((dX * moveX + dY * moveY) / Math.sqrt((double) distance * moveLength2));
+            }
+            if (distance < column.distance || alignment > column.alignment) {
+                column.distance = distance;
+                column.alignment = alignment;
+            }
+        }
 
-        private void add(){
-            final LongMap<Integer> chunkUsageLevels = ChunkLoadingSystem.this.chunkUsageLevels;
-            final LongArray inactiveChunks = ChunkLoadingSystem.this.inactiveChunks;
-            final World world = ChunkLoadingSystem.this.world;
+        /** Increase the usage level of the column */
+        private void use(int x, int y) {
+            final long key = Dimensions.chunkColumnKey(x, y);
+            if(chunkUsageLevels.add(key, 1) == 1){
+                if (!queuedColumns.containsKey(key) && !inactiveChunks.remove(key)) {
+                    //Was not inactive, load later
+                    countPrefetch(key, this);
+                    enqueueColumn(key);
+                }
+            }
+        }
 
-            final int chunkX = this.chunkX;
-            final int chunkY = this.chunkY;
-            final int radius = this.radius;
+        /** Decrease the usage level of the column */
+        private void release(int x, int y) {
+            final long key = Dimensions.chunkColumnKey(x, y);
+            if(chunkUsageLevels.add(key, -1) == 0){
+                if (!queuedColumns.containsKey(key)) {
+                    deactivateColumn(key);
+                }
+                //Queued columns were never requested, they are dropped from the queue instead
+            }
+        }
 
-            for (int x = chunkX - radius; x <= chunkX + radius; x++) {
-                for (int y = chunkY - radius; y <= chunkY + radius; y++) {
-                    final long key = Dimensions.chunkColumnKey(x, y);
-                    final Integer level = chunkUsageLevels.get(key, 0);
-                    chunkUsageLevels.put(key, level + 1);
-                    if(level == 0){
-                        if (!inactiveChunks.removeValue(key)) {
-                            //Was not inactive, load
-                            for (int z = 0; z < Dimensions.CHUNK_LAYERS; z++) {
-                                world.loadChunk(x, y, z);
-                            }
-                        }
+        /** Use (or release) columns of the square around fromX, fromY, which are not in the square around exceptX, exceptY.
+         * Only the columns of the difference are visited. */
+        private void changeUsage(int fromX, int fromY, int exceptX, int exceptY, boolean use) {
+            final int radius = this.radius;
+            for (int x = fromX - radius; x <= fromX + radius; x++) {
+                if (Math.abs(x - exceptX) > radius) {
+                    //Whole row of the square is outside
+                    for (int y = fromY - radius; y <= fromY + radius; y++) {
+                        if (use) use(x, y); else release(x, y);
+                    }
+                } else {
+                    //Only the ends of the row may be outside
+                    for (int y = fromY - radius; y <= fromY + radius && y < exceptY - radius; y++) {
+                        if (use) use(x, y); else release(x, y);
+                    }
+                    for (int y = Math.max(fromY - radius, exceptY + radius + 1); y <= fromY + radius; y++) {
+                        if (use) use(x, y); else release(x, y);
                     }
                 }
             }
+            loadQueueDirty = true;
         }
 
-        public void remove(){
-            final LongMap<Integer> chunkUsageLevels = ChunkLoadingSystem.this.chunkUsageLevels;
-            final LongArray inactiveChunks = ChunkLoadingSystem.this.inactiveChunks;
-
-            final int chunkX = this.chunkX;
-            final int chunkY = this.chunkY;
+        private void add(){
             final int radius = this.radius;
-
             for (int x = chunkX - radius; x <= chunkX + radius; x++) {
                 for (int y = chunkY - radius; y <= chunkY + radius; y++) {
-                    final long key = Dimensions.chunkColumnKey(x, y);
-                    final Integer newLevel = chunkUsageLevels.get(key, 1) - 1;
-                    if(newLevel == 0){
-                        chunkUsageLevels.remove(key);
-                        inactiveChunks.add(key);
-                    } else {
-                        chunkUsageLevels.put(key, newLevel);
-                    }
+                    use(x, y);
                 }
             }
+            loadQueueDirty = true;
+        }
 
-            if(inactiveChunks.size >= INACTIVE_CHUNKS_THRESHOLD){
-                final int toRemove = inactiveChunks.size - INACTIVE_CHUNKS_KEEP;
-                final long[] items = inactiveChunks.items;
-                for (int item = 0; item < toRemove; item++) {
-                    final long key = items[item];
-                    unloadChunk(key);
+        public void remove(){
+            final int radius = this.radius;
+            for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+                for (int y = chunkY - radius; y <= chunkY + radius; y++) {
+                    release(x, y);
                 }
-
-                inactiveChunks.removeRange(0, toRemove - 1);
             }
+            loadQueueDirty = true;
+            evictInactiveChunks();
         }
 
         public void moveTo(int worldX, int worldY) {
             final int newX = Dimensions.worldToChunk(worldX);
             final int newY = Dimensions.worldToChunk(worldY);
             if(newX != chunkX || newY != chunkY){
-                remove();
+                this.moveX = newX - chunkX;
+                this.moveY = newY - chunkY;
+                //Only columns which enter or leave the square change
+                changeUsage(newX, newY, chunkX, chunkY, true);
+                changeUsage(chunkX, chunkY, newX, newY, false);
+                evictInactiveChunks();
                 this.chunkX = newX;
                 this.chunkY = newY;
-                add();
             }
         }
 
+        /** Prefetch columns along the straight path from this anchor to the projected world position. */
+        public void prefetch(double worldX, double worldY) {
+            final int targetX = Dimensions.worldToChunk(worldX);
+            final int targetY = Dimensions.worldToChunk(worldY);
+            if (targetX == prefetchX && targetY == prefetchY) return;
+            prefetchX = targetX;
+            prefetchY = targetY;
+
+            final int steps = Math.max(Math.abs(targetX - chunkX), Math.abs(targetY - chunkY));
+            prefetchDirty = true;
+            int previousX = chunkX, previousY = chunkY;
+            for (int step = 1; step <= steps; step++) {
+                final int centerX = chunkX + Math.round((targetX - chunkX) * step / (float) steps);
+                final int centerY = chunkY + Math.round((targetY - chunkY) * step / (float) steps);
+                for (int x = centerX - radius; x <= centerX + radius; x++) {
+                    for (int y = centerY - radius; y <= centerY + radius; y++) {
+                        //Only columns outside of the previous square can be new
+                        if (Math.abs(x - previousX) <= radius && Math.abs(y - previousY) <= radius) continue;
+                        prefetchColumn(x, y, this);
+                    }
+                }
+                previousX = centerX;
+                previousY = centerY;
+            }
+        }
+
+        /** @return true if the column is near the path from this anchor to the chunk around which it last prefetched */
+        boolean isNearPath(int x, int y) {
+            final int pathX = prefetchX - chunkX;
+            final int pathY = prefetchY - chunkY;
+            final int dX = x - chunkX;
+            final int dY = y - chunkY;
+            final int pathLength2 = pathX * pathX + pathY * pathY;
+            // Closest point of the path, as a fraction of its length
+            final float t = pathLength2 == 0 ? 0f : MathUtils.clamp((dX * pathX + dY * pathY) / (float) pathLength2, 0f, 1f);
+            final float offX = dX - pathX * t;
+            final float offY = dY - pathY * t;
+            // Corners of the prefetched squares are radius * sqrt(2) away from the path
+            final float reach = radius * 1.5f + 1f;
+            return offX * offX + offY * offY <= reach * reach;
+        }
+
         public void addTo(int worldX, int worldY, int radius){
             this.chunkX = Dimensions.worldToChunk(worldX);
             this.chunkY = Dimensions.worldToChunk(worldY);
@@ -0,0 +1,281 @@
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.github.antag99.retinazer.EngineConfig;
+import darkyenus.blockotron.render.ChunkMesher;
+import darkyenus.blockotron.render.RectangleMeshBuilder;
+import darkyenus.blockotron.world.*;
+import darkyenus.blockotron.world.blocks.Air;
+import darkyenus.blockotron.world.blocks.BasicBlocks;
+import darkyenus.blockotron.world.blocks.SimpleBlock;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Checks that meshes built by {@link ChunkMesher} from {@link ChunkSnapshot}s cover exactly the visible faces of their chunks,
+ * with the right textures and light, and that meshes built on many threads are the same as those built on one.
+ * Does not need OpenGL context.
+ */
+public class ChunkMesherTest {
+
+    private static final int RADIUS = 2;
+    private static final Side[] SIDES = Side.values();
+    private static final float[][] FACE_OFFSETS = {
+            RectangleMeshBuilder.EAST_FACE_OFFSETS,
+            RectangleMeshBuilder.WEST_FACE_OFFSETS,
+            RectangleMeshBuilder.NORTH_FACE_OFFSETS,
+            RectangleMeshBuilder.SOUTH_FACE_OFFSETS,
+            RectangleMeshBuilder.TOP_FACE_OFFSETS,
+            RectangleMeshBuilder.BOTTOM_FACE_OFFSETS
+    };
+    private static final int FACE_SIZE = 4 * RectangleMeshBuilder.VERTEX_SIZE;
+
+    /** @return provider of stepped terrain with flat areas, holes and transparent blocks */
+    private static TestChunkProvider createChunkProvider() {
+        return new TestChunkProvider(0, (chunk, random) -> {
+            for (int cX = 0; cX < CHUNK_SIZE; cX++) {
+                for (int cY = 0; cY < CHUNK_SIZE; cY++) {
+                    final int wX = chunk.x * CHUNK_SIZE + cX;
+                    final int wY = chunk.y * CHUNK_SIZE + cY;
+                    final int height = 40 + Math.floorMod(Math.floorDiv(wX, 5) + Math.floorDiv(wY, 7), 3);
+                    for (int cZ = 0; cZ < CHUNK_SIZE; cZ++) {
+                        final int worldZ = (chunk.z << CHUNK_SIZE_SHIFT) + cZ;
+                        final Block block;
+                        if (worldZ < height - 3) {
+                            final int r = random.nextInt(40);
+                            block = r == 0 ? Air.AIR : r == 1 ? BasicBlocks.GLASS : BasicBlocks.DIRT;
+                        } else if (worldZ < height - 1) {
+                            block = BasicBlocks.DIRT;
+                        } else if (worldZ < height) {
+                            block = BasicBlocks.GRASS;
+                        } else if (worldZ < height + 6) {
+                            final int r = random.nextInt(60);
+                            block = r == 0 ? BasicBlocks.WOOD_LOG : r == 1 ? BasicBlocks.LEAVES : Air.AIR;
+                        } else {
+                            block = Air.AIR;
+                        }
+                        if (block != Air.AIR) {
+                            chunk.setLocalBlock(cX, cY, cZ, block);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** @return the side, whose faces have the same winding as the face at given offset, along given normal axis */
+    private static Side windingSide(float[] v, int offset, int normalAxis) {
+        final float sign = windingSign(v, offset, RectangleMeshBuilder.VERTEX_SIZE, normalAxis);
+        for (Side side : SIDES) {
+            final int sideAxis = side.offX != 0 ? 0 : side.offY != 0 ? 1 : 2;
+            if (sideAxis == normalAxis && Math.signum(windingSign(FACE_OFFSETS[side.ordinal()], 0, 3, sideAxis)) == Math.signum(sign)) {
+                return side;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /** @return component of the cross product of first two edges of the face, along given axis */
+    private static float windingSign(float[] v, int offset, int stride, int axis) {
+        final int a = (axis + 1) % 3, b = (axis + 2) % 3;
+        final float e1a = v[offset + stride + a] - v[offset + a], e1b = v[offset + stride + b] - v[offset + b];
+        final float e2a = v[offset + 2 * stride + a] - v[offset + stride + a], e2b = v[offset + 2 * stride + b] - v[offset + stride + b];
+        return e1a * e2b - e1b * e2a;
+    }
+
+    /** Check faces of the mesh against the chunk itself.
+     * @return amount of faces in the mesh, or -1 if wrong */
+    private static int verify(Chunk chunk, RectangleMeshBuilder builder) {
+        final boolean[] expected = new boolean[SIDES.length * BlockStorage.SIZE];
+        final boolean[] covered = new boolean[SIDES.length * BlockStorage.SIZE];
+        for (int key = 0; key < BlockStorage.SIZE; key++) {
+            if (!(chunk.blocks.get(key) instanceof SimpleBlock)) continue;
+            for (Side side : SIDES) {
+                if ((chunk.occlusion[key] & side.flag) != 0) {
+                    expected[side.ordinal() * BlockStorage.SIZE + key] = true;
+                }
+            }
+        }
+
+        final float[] v = builder.getVertices();
+        final int faces = builder.getOpaqueFaces() + builder.getTransparentFaces();
+        for (int face = 0; face < faces; face++) {
+            final boolean transparent = face >= builder.getOpaqueFaces();
+            final int offset = transparent ? v.length - (face - builder.getOpaqueFaces() + 1) * FACE_SIZE : face * FACE_SIZE;
+
+            final int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+            final int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            float repeatU = 0, repeatV = 0;
+            for (int vertex = 0; vertex < 4; vertex++) {
+                final int vertexOffset = offset + vertex * RectangleMeshBuilder.VERTEX_SIZE;
+                for (int axis = 0; axis < 3; axis++) {
+                    min[axis] = Math.min(min[axis], (int) v[vertexOffset + axis]);
+                    max[axis] = Math.max(max[axis], (int) v[vertexOffset + axis]);
+                }
+                repeatU = Math.max(repeatU, v[vertexOffset + 3]);
+                repeatV = Math.max(repeatV, v[vertexOffset + 4]);
+            }
+            final int normalAxis = min[0] == max[0] ? 0 : min[1] == max[1] ? 1 : 2;
+            final Side side = windingSide(v, offset, normalAxis);
+            if (side.offX + side.offY + side.offZ > 0) {
+                min[normalAxis]--;
+            }
+            max[normalAxis] = min[normalAxis] + 1;
+            final int area = (max[0] - min[0]) * (max[1] - min[1]) * (max[2] - min[2]);
+            if (repeatU * repeatV != area) {
+                return fail(chunk, "Face with area " + area + " repeats texture " + repeatU + "x" + repeatV + " times");
+            }
+
+            for (int x = min[0]; x < max[0]; x++) {
+                for (int y = min[1]; y < max[1]; y++) {
+                    for (int z = min[2]; z < max[2]; z++) {
+                        final int key = inChunkKey(x, y, z);
+                        final int index = side.ordinal() * BlockStorage.SIZE + key;
+                        final String where = side + " face of " + x + ", " + y + ", " + z;
+                        if (!expected[index]) return fail(chunk, "Invisible " + where + " drawn");
+                        if (covered[index]) return fail(chunk, where + " drawn more than once");
+                        covered[index] = true;
+
+                        final SimpleBlock block = (SimpleBlock) chunk.blocks.get(key);
+                        if (block.isTransparent() != transparent) return fail(chunk, where + " has wrong transparency");
+                        if (v[offset + 6] != block.getTexture(side).u || v[offset + 7] != block.getTexture(side).v) {
+                            return fail(chunk, where + " has wrong texture");
+                        }
+                        final byte light = chunk.getLight(x + side.offX, y + side.offY, z + side.offZ);
+                        if (v[offset + 5] != RectangleMeshBuilder.lightColor(light)) {
+                            return fail(chunk, where + " has wrong light");
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] && !covered[i]) {
+                final int key = i % BlockStorage.SIZE;
+                return fail(chunk, SIDES[i / BlockStorage.SIZE] + " face of "
+                        + inChunkKeyToX(key) + ", " + inChunkKeyToY(key) + ", " + inChunkKeyToZ(key) + " not drawn");
+            }
+        }
+        return faces;
+    }
+
+    private static int fail(Chunk chunk, String message) {
+        System.err.println("Chunk " + chunk.x + ", " + chunk.y + ", " + chunk.z + ": " + message);
+        System.err.flush();
+        return -1;
+    }
+
+    private static int countVisibleFaces(Chunk chunk) {
+        int faces = 0;
+        for (int key = 0; key < BlockStorage.SIZE; key++) {
+            if (chunk.blocks.get(key) instanceof SimpleBlock) {
+                faces += Integer.bitCount(chunk.occlusion[key] & 0b111111);
+            }
+        }
+        return faces;
+    }
+
+    /** @return copy of the built vertices, opaque followed by transparent */
+    private static float[] builtVertices(RectangleMeshBuilder builder) {
+        final float[] v = builder.getVertices();
+        final int opaque = builder.getOpaqueFaces() * FACE_SIZE;
+        final int transparent = builder.getTransparentFaces() * FACE_SIZE;
+        final float[] result = Arrays.copyOf(v, opaque + transparent);
+        System.arraycopy(v, v.length - transparent, result, opaque, transparent);
+        return result;
+    }
+
+    private static final class MeshTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final ChunkSnapshot snapshot;
+        final RectangleMeshBuilder builder = new RectangleMeshBuilder(16);
+
+        MeshTask(ChunkSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        protected void compute() {
+            new ChunkMesher().build(snapshot, builder);
+        }
+    }
+
+    public static void main(String[] args) {
+        GdxNativesLoader.load();
+
+        final World world = new World(createChunkProvider(), new EngineConfig());
+        final Array<Chunk> chunks = new Array<>(Chunk.class);
+        for (int x = -RADIUS; x <= RADIUS; x++) {
+            for (int y = -RADIUS; y <= RADIUS; y++) {
+                for (int z = 0; z < CHUNK_LAYERS; z++) {
+                    chunks.add(world.loadChunk(x, y, z));
+                }
+            }
+        }
+
+        // Settling light of a chunk may change light of its neighbors, which would make their snapshots out of date
+        for (Chunk chunk : chunks) {
+            chunk.settleLight();
+        }
+
+        // Serially, with one mesher
+        final ChunkMesher mesher = new ChunkMesher();
+        final ChunkSnapshot snapshot = new ChunkSnapshot();
+        final RectangleMeshBuilder builder = new RectangleMeshBuilder(16);
+        final Array<float[]> serialVertices = new Array<>(float[].class);
+        final Array<MeshTask> tasks = new Array<>(MeshTask.class);
+        int visibleFaces = 0, meshFaces = 0;
+        boolean correct = true;
+        for (Chunk chunk : chunks) {
+            snapshot.set(chunk);
+            mesher.build(snapshot, builder);
+            final int faces = verify(chunk, builder);
+            if (faces < 0) {
+                correct = false;
+            } else {
+                visibleFaces += countVisibleFaces(chunk);
+                meshFaces += faces;
+            }
+            serialVertices.add(builtVertices(builder));
+
+            final ChunkSnapshot taskSnapshot = new ChunkSnapshot();
+            taskSnapshot.set(chunk);
+            tasks.add(new MeshTask(taskSnapshot));
+        }
+        if (correct) {
+            System.out.println("Meshes match chunks");
+            System.out.println("\t" + visibleFaces + " visible faces drawn with " + meshFaces + " rectangles");
+            System.out.flush();
+        }
+
+        // In parallel, while the world changes, which must not affect the snapshots
+        final ForkJoinPool pool = new ForkJoinPool(8);
+        for (MeshTask task : tasks) {
+            pool.execute(task);
+        }
+        for (int x = -RADIUS * CHUNK_SIZE; x < (RADIUS + 1) * CHUNK_SIZE; x += 3) {
+            for (int y = -RADIUS * CHUNK_SIZE; y < (RADIUS + 1) * CHUNK_SIZE; y += 3) {
+                for (int z = 36; z < 48; z++) {
+                    world.setBlock(x, y, z, Air.AIR);
+                }
+            }
+        }
+        for (int i = 0; i < tasks.size; i++) {
+            final MeshTask task = tasks.get(i);
+            task.join();
+            if (!Arrays.equals(serialVertices.get(i), builtVertices(task.builder))) {
+                System.err.println("Mesh built in parallel differs from serial mesh for chunk "
+                        + task.snapshot.x + ", " + task.snapshot.y + ", " + task.snapshot.z);
+                System.err.flush();
+                return;
+            }
+        }
+        System.out.println("Parallel meshes match serial meshes");
+        System.out.flush();
+    }
+}
@@ -0,0 +1,116 @@
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.github.antag99.retinazer.EngineConfig;
+import darkyenus.blockotron.world.*;
+import darkyenus.blockotron.world.blocks.Air;
+import darkyenus.blockotron.world.blocks.BasicBlocks;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Checks that light computed in parallel by {@link LightScheduler} is the same as light computed serially,
+ * one chunk at a time, through {@link Chunk#settleLight()}.
+ */
+public class LightSchedulerTest {
+
+    private static final int RADIUS = 4;
+
+    /** @return provider of rough terrain with caves, overhangs and transparent blocks */
+    private static TestChunkProvider createChunkProvider(long seed) {
+        return new TestChunkProvider(seed, (chunk, random) -> TestChunkProvider.fillTerrain(chunk, random, (aboveSurface, r) -> {
+            if (aboveSurface < 0) {
+                final int kind = r.nextInt(10);
+                return kind < 6 ? BasicBlocks.DIRT : kind < 7 ? BasicBlocks.GLASS : Air.AIR;
+            } else if (aboveSurface < 8) {
+                final int kind = r.nextInt(20);
+                return kind == 0 ? BasicBlocks.WOOD_LOG : kind == 1 ? BasicBlocks.LEAVES : Air.AIR;
+            } else {
+                return Air.AIR;
+            }
+        }));
+    }
+
+    private static Array<Chunk> loadChunks(World world) {
+        final Array<Chunk> chunks = new Array<>(Chunk.class);
+        for (int x = -RADIUS; x <= RADIUS; x++) {
+            for (int y = -RADIUS; y <= RADIUS; y++) {
+                for (int z = 0; z < CHUNK_LAYERS; z++) {
+                    chunks.add(world.loadChunk(x, y, z));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private static boolean compare(String name, Array<Chunk> expected, Array<Chunk> actual) {
+        for (int i = 0; i < expected.size; i++) {
+            final Chunk expectedChunk = expected.get(i);
+            final Chunk actualChunk = actual.get(i);
+            for (int key = 0; key < BlockStorage.SIZE; key++) {
+                final byte expectedLight = expectedChunk.getLocalLight(key);
+                final byte actualLight = actualChunk.getLocalLight(key);
+                if (expectedLight != actualLight) {
+                    System.err.println(name + " differs in chunk " + expectedChunk.x + ", " + expectedChunk.y + ", " + expectedChunk.z
+                            + " at " + inChunkKeyToX(key) + ", " + inChunkKeyToY(key) + ", " + inChunkKeyToZ(key)
+                            + "\n\tExpected: " + expectedLight + "\n\tGot: " + actualLight);
+                    System.err.flush();
+                    return false;
+                }
+            }
+        }
+        System.out.println(name + " matches");
+        System.out.flush();
+        return true;
+    }
+
+    private static void test(String name, long seed, ForkJoinPool pool) {
+        final World serialWorld = new World(createChunkProvider(seed), new EngineConfig());
+        final Array<Chunk> serialChunks = loadChunks(serialWorld);
+        // Chunks are usually lit in the order in which they are first rendered, which is arbitrary
+        final Array<Chunk> serialOrder = new Array<>(serialChunks);
+        serialOrder.shuffle();
+        final long serialStart = System.nanoTime();
+        for (Chunk chunk : serialOrder) {
+            chunk.settleLight();
+        }
+        final long serialTime = System.nanoTime() - serialStart;
+
+        final World parallelWorld = new World(createChunkProvider(seed), new EngineConfig());
+        final Array<Chunk> parallelChunks = loadChunks(parallelWorld);
+        final LightScheduler scheduler = new LightScheduler(pool);
+        final long parallelStart = System.nanoTime();
+        scheduler.settle(parallelWorld, parallelChunks);
+        final long parallelTime = System.nanoTime() - parallelStart;
+
+        if (compare(name, serialChunks, parallelChunks)) {
+            System.out.println("\tserial " + serialTime / 1000_000 + " ms, parallel " + parallelTime / 1000_000 + " ms");
+        }
+
+        // Loading more chunks next to already lit ones
+        final Array<Chunk> serialMore = new Array<>(Chunk.class);
+        final Array<Chunk> parallelMore = new Array<>(Chunk.class);
+        for (int y = -RADIUS; y <= RADIUS; y++) {
+            for (int z = 0; z < CHUNK_LAYERS; z++) {
+                serialMore.add(serialWorld.loadChunk(RADIUS + 1, y, z));
+                parallelMore.add(parallelWorld.loadChunk(RADIUS + 1, y, z));
+            }
+        }
+        for (Chunk chunk : serialMore) {
+            chunk.settleLight();
+        }
+        scheduler.settle(parallelWorld, parallelMore);
+        serialChunks.addAll(serialMore);
+        parallelChunks.addAll(parallelMore);
+        compare(name + " (extended)", serialChunks, parallelChunks);
+    }
+
+    public static void main(String[] args){
+        GdxNativesLoader.load();
+
+        test("Common pool", 1, ForkJoinPool.commonPool());
+        test("Single thread", 2, new ForkJoinPool(1));
+        test("Many threads", 3, new ForkJoinPool(8));
+    }
+}
@@ -0,0 +1,216 @@
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+import com.github.antag99.retinazer.EngineConfig;
+import darkyenus.blockotron.world.*;
+import darkyenus.blockotron.world.blocks.Air;
+import darkyenus.blockotron.world.blocks.BasicBlocks;
+import darkyenus.blockotron.world.blocks.Flowerpot;
+import darkyenus.blockotron.world.blocks.SimpleBlock;
+
+import java.util.Random;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Checks that occlusion computed for the whole chunk at once by {@link OcclusionUpdater} is the same as occlusion
+ * computed for each block separately, by the rules of Chunk.isFaceVisible, and measures how much faster it is.
+ */
+public class OcclusionUpdaterTest {
+
+    private static final int RADIUS = 3;
+    private static final Side[] SIDES = Side.values();
+
+    /** @return provider which fills chunks either with random blocks, each chunk differently dense and with different
+     * subset of the blocks, or with terrain similar to generated one: solid ground with some caves and sparse blocks above it */
+    private static TestChunkProvider createChunkProvider(long seed, Block[] blocks, boolean terrain) {
+        if (terrain) {
+            return new TestChunkProvider(seed, (chunk, random) -> TestChunkProvider.fillTerrain(chunk, random, (aboveSurface, r) -> {
+                if (aboveSurface < 0) {
+                    final int kind = r.nextInt(100);
+                    return kind < 95 ? blocks[1] : kind < 97 ? blocks[3] : Air.AIR;
+                } else if (aboveSurface < 8) {
+                    final int kind = r.nextInt(50);
+                    return kind < blocks.length ? blocks[kind] : Air.AIR;
+                } else {
+                    return Air.AIR;
+                }
+            }));
+        }
+        return new TestChunkProvider(seed, (chunk, random) -> {
+            final int kinds = 1 + random.nextInt(blocks.length);
+            switch (random.nextInt(4)) {
+                case 0:
+                    // Uniform
+                    final Block block = blocks[random.nextInt(kinds)];
+                    if (block != Air.AIR) {
+                        for (int key = 0; key < BlockStorage.SIZE; key++) {
+                            chunk.blocks.set(key, block);
+                        }
+                    }
+                    break;
+                case 1:
+                    // Sparse
+                    for (int i = 0; i < 64; i++) {
+                        chunk.blocks.set(random.nextInt(BlockStorage.SIZE), blocks[random.nextInt(kinds)]);
+                    }
+                    break;
+                default:
+                    // Dense
+                    for (int key = 0; key < BlockStorage.SIZE; key++) {
+                        chunk.blocks.set(key, blocks[random.nextInt(kinds)]);
+                    }
+                    break;
+            }
+        });
+    }
+
+    /** Same as Chunk.isFaceVisible */
+    private static boolean isFaceVisible(Chunk chunk, Block me, int nX, int nY, int nZ) {
+        if (!me.isOccluding()) return true;
+
+        final Block neighbor = chunk.getBlock(nX, nY, nZ);
+
+        if (!neighbor.isOccluding()) return true;
+
+        if (me.isTransparent()) {
+            return neighbor.isTransparent() && !me.equals(neighbor);
+        } else {
+            return neighbor.isTransparent();
+        }
+    }
+
+    /** Same as Chunk.updateLocalOcclusion, air is left with zero mask like in {@link OcclusionUpdater} */
+    private static byte blockOcclusion(Chunk chunk, int x, int y, int z) {
+        final Block myself = chunk.getLocalBlock(x, y, z);
+        if (myself == Air.AIR) return 0;
+        byte occlusion = 0;
+        for (Side side : SIDES) {
+            if (isFaceVisible(chunk, myself, x + side.offX, y + side.offY, z + side.offZ)) {
+                occlusion |= side.flag;
+            }
+        }
+        return occlusion;
+    }
+
+    /** Load some chunks around the origin, each is loaded with some probability, so some neighbors are missing */
+    private static Array<Chunk> loadChunks(World world, Random random) {
+        final Array<Chunk> chunks = new Array<>(Chunk.class);
+        for (int x = -RADIUS; x <= RADIUS; x++) {
+            for (int y = -RADIUS; y <= RADIUS; y++) {
+                for (int z = 0; z < CHUNK_LAYERS; z++) {
+                    if (random.nextInt(4) != 0) {
+                        chunks.add(world.loadChunk(x, y, z));
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private static void update(Array<Chunk> chunks, Chunk[] neighbors) {
+        for (Chunk chunk : chunks) {
+            for (Side side : SIDES) {
+                neighbors[side.ordinal()] = chunk.getNeighbor(side);
+            }
+            OcclusionUpdater.updateChunk(chunk, neighbors);
+        }
+    }
+
+    /** Compute occlusion of each block of the chunks separately, into the arrays, like Chunk did before */
+    private static void blockByBlock(Array<Chunk> chunks, byte[][] occlusion) {
+        for (int i = 0; i < chunks.size; i++) {
+            final Chunk chunk = chunks.get(i);
+            final byte[] chunkOcclusion = occlusion[i];
+            for (int key = 0; key < BlockStorage.SIZE; key++) {
+                chunkOcclusion[key] = blockOcclusion(chunk, inChunkKeyToX(key), inChunkKeyToY(key), inChunkKeyToZ(key));
+            }
+        }
+    }
+
+    /** @return amount of visible faces, or -1 if occlusion of chunks is not the same as expected */
+    private static int compare(String name, Array<Chunk> chunks, byte[][] expectedOcclusion) {
+        int visibleFaces = 0;
+        for (int i = 0; i < chunks.size; i++) {
+            final Chunk chunk = chunks.get(i);
+            for (int key = 0; key < BlockStorage.SIZE; key++) {
+                final int x = inChunkKeyToX(key);
+                final int y = inChunkKeyToY(key);
+                final int z = inChunkKeyToZ(key);
+                final byte expected = expectedOcclusion[i][key];
+                final byte actual = chunk.getOcclusionMask(x, y, z);
+                if (expected != actual) {
+                    System.err.println(name + " differs in chunk " + chunk.x + ", " + chunk.y + ", " + chunk.z
+                            + " at " + x + ", " + y + ", " + z + " (" + chunk.getLocalBlock(key) + ")"
+                            + "\n\tExpected: " + expected + "\n\tGot: " + actual);
+                    System.err.flush();
+                    return -1;
+                }
+                visibleFaces += Integer.bitCount(actual);
+            }
+        }
+        System.out.println(name + " matches");
+        System.out.flush();
+        return visibleFaces;
+    }
+
+    /** @return blocks of every kind: air, opaque, transparent and non-occluding, at least two of each occluding kind */
+    private static Block[] createBlocks() {
+        // Non-occluding and transparent, which no basic block is
+        final Block nonOccludingTransparent = SimpleBlock.create("test_non_occluding_transparent", Block.TRANSPARENT)
+                .withTexture("glass").build();
+        return new Block[]{
+                Air.AIR,
+                BasicBlocks.DIRT, BasicBlocks.WOOD_LOG,
+                BasicBlocks.GLASS, BasicBlocks.LEAVES,
+                Flowerpot.FLOWERPOT, nonOccludingTransparent
+        };
+    }
+
+    private static void test(String name, long seed, Block[] blocks, boolean terrain) {
+        final World world = new World(createChunkProvider(seed, blocks, terrain), new EngineConfig());
+        final Array<Chunk> chunks = loadChunks(world, new Random(seed));
+        final Chunk[] neighbors = new Chunk[SIDES.length];
+
+        final byte[][] expectedOcclusion = new byte[chunks.size][BlockStorage.SIZE];
+
+        // Chunks which were loaded before their neighbors have occlusion from then, update it with current neighbors
+        update(chunks, neighbors);
+        blockByBlock(chunks, expectedOcclusion);
+        final int visibleFaces = compare(name, chunks, expectedOcclusion);
+        if (visibleFaces < 0) return;
+
+        // Warm up both, then measure
+        for (int i = 0; i < 5; i++) {
+            update(chunks, neighbors);
+            blockByBlock(chunks, expectedOcclusion);
+        }
+
+        final int rounds = 10;
+        final long updaterStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            update(chunks, neighbors);
+        }
+        final long updaterTime = System.nanoTime() - updaterStart;
+
+        final long blockStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            blockByBlock(chunks, expectedOcclusion);
+        }
+        final long blockTime = System.nanoTime() - blockStart;
+
+        final long chunkCount = (long) chunks.size * rounds;
+        System.out.println("\t" + chunks.size + " chunks, " + visibleFaces + " visible faces");
+        System.out.println("\tblock by block " + blockTime / chunkCount / 1000 + " us/chunk, whole chunk "
+                + updaterTime / chunkCount / 1000 + " us/chunk, " + (blockTime * 10 / Math.max(updaterTime, 1)) / 10f + "x faster");
+    }
+
+    public static void main(String[] args) {
+        GdxNativesLoader.load();
+
+        final Block[] blocks = createBlocks();
+        test("Random blocks 1", 1, blocks, false);
+        test("Random blocks 2", 2, blocks, false);
+        test("Terrain 1", 3, blocks, true);
+        test("Terrain 2", 4, blocks, true);
+    }
+}
@@ -0,0 +1,84 @@
+import com.badlogic.gdx.utils.LongMap;
+import darkyenus.blockotron.world.*;
+import darkyenus.blockotron.world.blocks.Air;
+
+import java.util.Random;
+
+import static darkyenus.blockotron.world.Dimensions.*;
+
+/**
+ * Provides chunks for tests, filled by given {@link Filler}, always the same for the same coordinates and seed.
+ * Chunks of a column share a heightmap, like those of the real provider. Returned chunks are simply forgotten.
+ */
+final class TestChunkProvider implements ChunkProvider {
+
+    /** Sets blocks of a new chunk, which is still populating */
+    interface Filler {
+        /** @param random seeded by the provider seed and the chunk position */
+        void fill(Chunk chunk, Random random);
+    }
+
+    /** Chooses blocks of {@link #fillTerrain(Chunk, Random, TerrainBlocks)} */
+    interface TerrainBlocks {
+        /** @param aboveSurface how high is the block above the surface of the terrain, negative below it
+         * @return block at that height, may use the random */
+        Block block(int aboveSurface, Random random);
+    }
+
+    private final long seed;
+    private final Filler filler;
+    private final LongMap<Heightmap> heightmaps = new LongMap<>();
+    private World world;
+
+    TestChunkProvider(long seed, Filler filler) {
+        this.seed = seed;
+        this.filler = filler;
+    }
+
+    /** Fill the chunk with rough terrain, whose surface is between 40 and 50 blocks high.
+     * Blocks are chosen from the bottom of each vertical line of the chunk to its top, lines go along X first. */
+    static void fillTerrain(Chunk chunk, Random random, TerrainBlocks blocks) {
+        for (int cX = 0; cX < CHUNK_SIZE; cX++) {
+            for (int cY = 0; cY < CHUNK_SIZE; cY++) {
+                final int height = 40 + ((chunk.x * CHUNK_SIZE + cX) * 7 + (chunk.y * CHUNK_SIZE + cY) * 3) % 11;
+                for (int cZ = 0; cZ < CHUNK_SIZE; cZ++) {
+                    final Block block = blocks.block((chunk.z << CHUNK_SIZE_SHIFT) + cZ - height, random);
+                    if (block != Air.AIR) {
+                        chunk.setLocalBlock(cX, cY, cZ, block);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void initialize(World world) {
+        this.world = world;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public Chunk borrowChunk(int x, int y, int z) {
+        final long columnKey = chunkColumnKey(x, y);
+        Heightmap heightmap = heightmaps.get(columnKey);
+        if (heightmap == null) {
+            heightmap = new Heightmap();
+            heightmaps.put(columnKey, heightmap);
+        }
+        final Chunk chunk = new Chunk(world, x, y, z, heightmap);
+        filler.fill(chunk, new Random(seed ^ chunkKey(x, y, z)));
+        chunk.endPopulating(null);
+        return chunk;
+    }
+
+    @Override
+    public void returnChunk(Chunk chunk) {
+    }
+
+    @Override
+    public void update(float delta) {
+    }
+}